@@ -0,0 +1,14 @@
+package com.dietician.config;
+
+import org.springframework.context.annotation.Configuration;
+import org.springframework.scheduling.annotation.EnableScheduling;
+
+/**
+ * Enables @Scheduled background jobs (mail outbox dispatch, etc.).
+ * Jobs that run for long, such as upload garbage collection, hand their work to their own executor.
+ * Pool size is set with spring.task.scheduling.pool.size.
+ */
+@Configuration
+@EnableScheduling
+public class SchedulingConfig {
+}
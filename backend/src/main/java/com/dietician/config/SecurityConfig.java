@@ -133,6 +133,9 @@ public class SecurityConfig {
                                 "/files/**",
                                 "/error"
                         ).permitAll()
+                        // Metrics expose internal load and endpoint timings; only health is open to every user
+                        .requestMatchers("/actuator/health", "/actuator/health/**").authenticated()
+                        .requestMatchers("/actuator/**").hasRole("ADMIN")
                         .anyRequest().authenticated()
                 )
                 .oauth2Login(oauth2 -> oauth2
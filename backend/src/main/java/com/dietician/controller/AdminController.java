@@ -2,17 +2,42 @@ package com.dietician.controller;
 
 import com.dietician.dto.AdminDto.*;
 import com.dietician.dto.AuthDto.MessageResponse;
+import com.dietician.dto.CursorPage;
 import com.dietician.service.AdminService;
+import com.dietician.service.AuditExportService;
+import com.dietician.service.AuditLogService;
+import com.dietician.service.BulkUserOperationService;
+import com.dietician.service.PatientImportService;
+import com.dietician.service.ReferenceDataCache;
+import com.dietician.util.ResourceVersion;
 import jakarta.validation.Valid;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.data.domain.Page;
+import org.springframework.format.annotation.DateTimeFormat;
+import org.springframework.http.CacheControl;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.security.access.prepost.PreAuthorize;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.context.request.NativeWebRequest;
+import org.springframework.web.context.request.WebRequest;
+import org.springframework.web.context.request.async.CallableProcessingInterceptor;
+import org.springframework.web.context.request.async.WebAsyncUtils;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.Principal;
+import java.time.Duration;
+import java.time.LocalDateTime;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * REST API controller for admin operations.
@@ -25,6 +50,14 @@ import java.util.List;
 public class AdminController {
 
     private final AdminService adminService;
+    private final AuditLogService auditLogService;
+    private final AuditExportService auditExportService;
+    private final PatientImportService patientImportService;
+    private final BulkUserOperationService bulkUserOperationService;
+    private final ReferenceDataCache referenceDataCache;
+
+    @Value("${app.reference-data.roles-max-age-seconds:300}")
+    private long rolesMaxAgeSeconds;
 
     // ============================================
     // USER MANAGEMENT ENDPOINTS
@@ -44,12 +77,60 @@ public class AdminController {
         return ResponseEntity.ok(adminService.getUsers(role, page, size));
     }
 
+    /**
+     * Get users by role, newest first, one keyset page at a time.
+     * Pass the returned nextCursor as cursor to fetch the next page.
+     * Requires: VIEW_PATIENT or VIEW_DIETICIAN action
+     */
+    @GetMapping("/users/cursor")
+    @PreAuthorize("hasPermission(null, 'VIEW_PATIENT') or hasPermission(null, 'VIEW_DIETICIAN')")
+    public ResponseEntity<CursorPage<UserSummary>> getUsersPage(
+            @RequestParam(required = false) String role,
+            @RequestParam(required = false) String cursor,
+            @RequestParam(defaultValue = "10") int size) {
+        log.info("GET /admin/users/cursor - role: {}, size: {}", role, size);
+        return ResponseEntity.ok(adminService.getUsersPage(role, cursor, size));
+    }
+
+    /**
+     * Fuzzy search users by name, mobile number, state or pincode, best matches first.
+     * Pass the returned nextCursor as cursor to fetch the next page.
+     * Requires: VIEW_PATIENT or VIEW_DIETICIAN action
+     */
+    @GetMapping("/users/search")
+    @PreAuthorize("hasPermission(null, 'VIEW_PATIENT') or hasPermission(null, 'VIEW_DIETICIAN')")
+    public ResponseEntity<CursorPage<UserSummary>> searchUsers(
+            @RequestParam String q,
+            @RequestParam(required = false) String role,
+            @RequestParam(required = false) String cursor,
+            @RequestParam(defaultValue = "10") int size) {
+        log.info("GET /admin/users/search - role: {}, size: {}", role, size);
+        return ResponseEntity.ok(adminService.searchUsers(q, role, cursor, size));
+    }
+
+    /**
+     * Get the number of users per role code.
+     * Requires: VIEW_PATIENT or VIEW_DIETICIAN action
+     */
+    @GetMapping("/users/counts")
+    @PreAuthorize("hasPermission(null, 'VIEW_PATIENT') or hasPermission(null, 'VIEW_DIETICIAN')")
+    public ResponseEntity<Map<String, Long>> getUserCounts() {
+        log.info("GET /admin/users/counts");
+        return ResponseEntity.ok(adminService.getUserCountsByRole());
+    }
+
     /**
      * Get user details by ID.
+     * Supports conditional GET: a matching If-None-Match/If-Modified-Since gets a 304 from the version probe alone.
      */
     @GetMapping("/users/{id}")
     @PreAuthorize("hasPermission(null, 'VIEW_PATIENT') or hasPermission(null, 'VIEW_DIETICIAN')")
-    public ResponseEntity<UserResponse> getUser(@PathVariable Long id) {
+    public ResponseEntity<UserResponse> getUser(@PathVariable Long id, WebRequest webRequest) {
+        ResourceVersion version = adminService.getUserVersion(id);
+        if (version != null && webRequest.checkNotModified(version.etag(), version.lastModifiedMillis())) {
+            // 304 and validators already written
+            return null;
+        }
         log.info("GET /admin/users/{}", id);
         return ResponseEntity.ok(adminService.getUserById(id));
     }
@@ -66,6 +147,36 @@ public class AdminController {
         return ResponseEntity.status(HttpStatus.CREATED).body(response);
     }
 
+    /**
+     * Bulk import patients from a CSV (header: email, full_name, optional password) or NDJSON body.
+     * The file is processed in the background; poll the returned job id for progress and the per-row report.
+     * Requires: CREATE_PATIENT action
+     */
+    @PostMapping("/users/import")
+    @PreAuthorize("hasPermission(null, 'CREATE_PATIENT')")
+    public ResponseEntity<ImportJobResponse> importPatients(
+            @RequestParam(defaultValue = "csv") String format,
+            InputStream body,
+            Principal principal) throws IOException {
+        log.info("POST /admin/users/import - format: {}", format);
+        ImportJobResponse job = patientImportService.startImport(
+                body, PatientImportService.Format.parse(format), principal.getName());
+        return ResponseEntity.status(HttpStatus.ACCEPTED).body(job);
+    }
+
+    /**
+     * Get the progress of a bulk patient import, optionally with the per-row report.
+     * Requires: CREATE_PATIENT action
+     */
+    @GetMapping("/users/import/{jobId}")
+    @PreAuthorize("hasPermission(null, 'CREATE_PATIENT')")
+    public ResponseEntity<ImportJobResponse> getImportJob(
+            @PathVariable String jobId,
+            @RequestParam(defaultValue = "false") boolean includeRows) {
+        log.info("GET /admin/users/import/{}", jobId);
+        return ResponseEntity.ok(patientImportService.getJob(jobId, includeRows));
+    }
+
     /**
      * Update user details.
      * Requires: EDIT_PATIENT or EDIT_DIETICIAN action
@@ -104,6 +215,38 @@ public class AdminController {
         return ResponseEntity.ok(adminService.resetUserPassword(id));
     }
 
+    /**
+     * Apply a status, role or password-reset change to many users, selected by id or by role filter.
+     * Runs in the background in chunks; poll the returned job id for progress and failed user ids.
+     * Requires: the action of the single-user endpoint for the same operation
+     */
+    @PostMapping("/users/bulk")
+    @PreAuthorize("(#request.operation == 'ACTIVATE' and (hasPermission(null, 'ACTIVATE_PATIENT') or " +
+            "hasPermission(null, 'ACTIVATE_DIETICIAN'))) or " +
+            "(#request.operation == 'DEACTIVATE' and (hasPermission(null, 'DEACTIVATE_PATIENT') or " +
+            "hasPermission(null, 'DEACTIVATE_DIETICIAN'))) or " +
+            "(#request.operation == 'CHANGE_ROLE' and (hasPermission(null, 'EDIT_PATIENT') or " +
+            "hasPermission(null, 'EDIT_DIETICIAN'))) or " +
+            "(#request.operation == 'RESET_PASSWORD' and (hasPermission(null, 'RESET_PATIENT_PASSWORD') or " +
+            "hasPermission(null, 'RESET_DIETICIAN_PASSWORD')))")
+    public ResponseEntity<BulkOperationJobResponse> bulkUserOperation(
+            @Valid @RequestBody BulkUserOperationRequest request,
+            Principal principal) {
+        log.info("POST /admin/users/bulk - operation: {}", request.getOperation());
+        BulkOperationJobResponse job = bulkUserOperationService.start(request, principal.getName());
+        return ResponseEntity.status(HttpStatus.ACCEPTED).body(job);
+    }
+
+    /**
+     * Get the progress of a bulk user operation.
+     */
+    @GetMapping("/users/bulk/{jobId}")
+    @PreAuthorize("hasPermission(null, 'VIEW_PATIENT') or hasPermission(null, 'VIEW_DIETICIAN')")
+    public ResponseEntity<BulkOperationJobResponse> getBulkUserOperation(@PathVariable String jobId) {
+        log.info("GET /admin/users/bulk/{}", jobId);
+        return ResponseEntity.ok(bulkUserOperationService.getJob(jobId));
+    }
+
     // ============================================
     // ROLE & ACTION MANAGEMENT ENDPOINTS
     // ============================================
@@ -114,9 +257,9 @@ public class AdminController {
      */
     @GetMapping("/roles/{roleId}/actions")
     @PreAuthorize("hasPermission(null, 'MANAGE_ROLES')")
-    public ResponseEntity<List<ActionResponse>> getRoleActions(@PathVariable Long roleId) {
+    public ResponseEntity<byte[]> getRoleActions(@PathVariable Long roleId) {
         log.info("GET /admin/roles/{}/actions", roleId);
-        return ResponseEntity.ok(adminService.getRoleActions(roleId));
+        return referenceData(referenceDataCache.roleActions(roleId), CacheControl.noCache().cachePrivate());
     }
 
     /**
@@ -138,9 +281,9 @@ public class AdminController {
      */
     @GetMapping("/actions")
     @PreAuthorize("hasPermission(null, 'MANAGE_ROLES')")
-    public ResponseEntity<List<ActionResponse>> getAllActions() {
+    public ResponseEntity<byte[]> getAllActions() {
         log.info("GET /admin/actions");
-        return ResponseEntity.ok(adminService.getAllActions());
+        return referenceData(referenceDataCache.actions(), CacheControl.noCache().cachePrivate());
     }
 
     /**
@@ -165,8 +308,100 @@ public class AdminController {
      * Public endpoint - roles are needed for UI rendering
      */
     @GetMapping("/roles")
-    public ResponseEntity<List<RoleResponse>> getAllRoles() {
-        log.info("GET /admin/roles - fetching all roles");
-        return ResponseEntity.ok(adminService.getAllRoles());
+    public ResponseEntity<byte[]> getAllRoles() {
+        log.debug("GET /admin/roles - fetching all roles");
+        return referenceData(referenceDataCache.roles(),
+                CacheControl.maxAge(Duration.ofSeconds(rolesMaxAgeSeconds)).cachePublic());
+    }
+
+    /**
+     * Pre-serialized reference data with its strong ETag.
+     * For a GET whose If-None-Match matches the ETag, Spring answers 304 without writing the body.
+     */
+    private ResponseEntity<byte[]> referenceData(ReferenceDataCache.CachedResponse cached, CacheControl cacheControl) {
+        return ResponseEntity.ok()
+                .eTag(cached.etag())
+                .cacheControl(cacheControl)
+                .contentType(MediaType.APPLICATION_JSON)
+                .body(cached.body());
+    }
+
+    // ============================================
+    // AUDIT LOG ENDPOINTS
+    // ============================================
+
+    /**
+     * Search audit logs, newest first. All filters are optional; the time range is [from, to).
+     * Pass the returned nextCursor as cursor to fetch the next page.
+     * Requires: VIEW_AUDIT_LOGS action
+     */
+    @GetMapping("/audit")
+    @PreAuthorize("hasPermission(null, 'VIEW_AUDIT_LOGS')")
+    public ResponseEntity<CursorPage<AuditLogEntry>> searchAuditLogs(
+            @RequestParam(required = false) String tableName,
+            @RequestParam(required = false) Long recordId,
+            @RequestParam(required = false) String action,
+            @RequestParam(required = false) String changedBy,
+            @RequestParam(required = false) @DateTimeFormat(iso = DateTimeFormat.ISO.DATE_TIME) LocalDateTime from,
+            @RequestParam(required = false) @DateTimeFormat(iso = DateTimeFormat.ISO.DATE_TIME) LocalDateTime to,
+            @RequestParam(required = false) String cursor,
+            @RequestParam(defaultValue = "50") int size) {
+        log.info("GET /admin/audit - table: {}, record: {}, action: {}, size: {}", tableName, recordId, action, size);
+        return ResponseEntity.ok(auditLogService.searchAuditLogs(
+                tableName, recordId, action, changedBy, from, to, cursor, size));
+    }
+
+    /**
+     * Export all audit logs in [from, to) as CSV (one row per changed field) or NDJSON (one log per line),
+     * optionally gzip-compressed. The response is streamed, so any range size can be exported.
+     * Requires: VIEW_AUDIT_LOGS action
+     */
+    @GetMapping("/audit/export")
+    @PreAuthorize("hasPermission(null, 'VIEW_AUDIT_LOGS')")
+    public ResponseEntity<StreamingResponseBody> exportAuditLogs(
+            @RequestParam @DateTimeFormat(iso = DateTimeFormat.ISO.DATE_TIME) LocalDateTime from,
+            @RequestParam @DateTimeFormat(iso = DateTimeFormat.ISO.DATE_TIME) LocalDateTime to,
+            @RequestParam(defaultValue = "ndjson") String format,
+            @RequestParam(defaultValue = "false") boolean gzip,
+            WebRequest webRequest) {
+        log.info("GET /admin/audit/export - from: {}, to: {}, format: {}, gzip: {}", from, to, format, gzip);
+        AuditExportService.Format exportFormat = AuditExportService.Format.parse(format);
+        if (!from.isBefore(to)) {
+            throw new IllegalArgumentException("from must be before to");
+        }
+        if (!auditExportService.tryAcquireSlot()) {
+            return ResponseEntity.status(HttpStatus.TOO_MANY_REQUESTS).build();
+        }
+
+        // The body may never run (async timeout or a rejected task), so the slot is also released when the
+        // async request completes; whichever comes first releases it
+        AtomicBoolean slotHeld = new AtomicBoolean(true);
+        Runnable releaseSlot = () -> {
+            if (slotHeld.compareAndSet(true, false)) {
+                auditExportService.releaseSlot();
+            }
+        };
+        WebAsyncUtils.getAsyncManager(webRequest).registerCallableInterceptor("audit-export-slot",
+                new CallableProcessingInterceptor() {
+                    @Override
+                    public <T> void afterCompletion(NativeWebRequest request, Callable<T> task) {
+                        releaseSlot.run();
+                    }
+                });
+
+        StreamingResponseBody body = out -> {
+            try {
+                auditExportService.export(from, to, exportFormat, gzip, out);
+            } finally {
+                releaseSlot.run();
+            }
+        };
+
+        String filename = "audit_" + from.toLocalDate() + "_" + to.toLocalDate() + "." + exportFormat.getExtension()
+                + (gzip ? ".gz" : "");
+        return ResponseEntity.ok()
+                .header(HttpHeaders.CONTENT_TYPE, gzip ? "application/gzip" : exportFormat.getContentType())
+                .header(HttpHeaders.CONTENT_DISPOSITION, "attachment; filename=\"" + filename + "\"")
+                .body(body);
     }
 }
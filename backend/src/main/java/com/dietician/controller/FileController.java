@@ -1,16 +1,36 @@
 package com.dietician.controller;
 
+import com.dietician.exception.ResourceNotFoundException;
 import com.dietician.service.FileStorageService;
+import com.dietician.service.FileStorageService.StoredFile;
+import com.dietician.service.ProfilePhotoDerivativeService;
+import com.dietician.storage.ObjectStore.PresignedUrl;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
-import org.springframework.core.io.Resource;
+import org.springframework.http.ContentDisposition;
 import org.springframework.http.HttpHeaders;
-import org.springframework.http.MediaType;
-import org.springframework.http.ResponseEntity;
+import org.springframework.http.HttpRange;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.context.request.ServletWebRequest;
+
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.List;
 
 /**
  * REST API endpoints for serving uploaded files
+ * Files are sent with the connector's sendfile when available, otherwise through FileChannel.transferTo,
+ * so large PDFs are never copied through the heap. Supports ETag/Last-Modified validators and single byte ranges.
+ * With a remote object store (S3) the client is redirected to a pre-signed URL instead and fetches the bytes,
+ * ranges and validators included, from the store itself.
  */
 @Slf4j
 @RestController
@@ -18,40 +38,160 @@ import org.springframework.web.bind.annotation.*;
 @RequiredArgsConstructor
 public class FileController {
 
+    // Tomcat's sendfile request attributes (org.apache.catalina.Globals)
+    private static final String SENDFILE_SUPPORTED = "org.apache.tomcat.sendfile.support";
+    private static final String SENDFILE_FILENAME = "org.apache.tomcat.sendfile.filename";
+    private static final String SENDFILE_START = "org.apache.tomcat.sendfile.start";
+    private static final String SENDFILE_END = "org.apache.tomcat.sendfile.end";
+
     private final FileStorageService fileStorageService;
 
     /**
      * Serve a file from the specified category
      */
     @GetMapping("/{category}/{filename:.+}")
-    public ResponseEntity<Resource> serveFile(
+    public void serveFile(
             @PathVariable String category,
-            @PathVariable String filename) {
+            @PathVariable String filename,
+            HttpServletRequest request,
+            HttpServletResponse response) throws IOException {
         log.debug("Serving file: {}/{}", category, filename);
-        Resource file = fileStorageService.loadFileAsResource(category, filename);
+        String cacheControl = cacheControl(category);
+        PresignedUrl downloadUrl = fileStorageService.getDownloadUrl(category, filename, cacheControl);
+        if (downloadUrl != null) {
+            redirect(downloadUrl, cacheControl, response);
+            return;
+        }
+        StoredFile file = fileStorageService.getStoredFile(category, filename);
+
+        // Set before the conditional check so a 304 carries them too
+        response.setHeader(HttpHeaders.CACHE_CONTROL, cacheControl);
+        response.setHeader(HttpHeaders.ACCEPT_RANGES, "bytes");
+        if (new ServletWebRequest(request, response).checkNotModified(file.etag(), file.lastModified())) {
+            return;
+        }
+
+        response.setContentType(file.contentType().toString());
+        response.setHeader(HttpHeaders.CONTENT_DISPOSITION, ContentDisposition.inline().filename(filename).build().toString());
 
-        // Determine content type
-        String contentType = "application/octet-stream";
-        if (filename.toLowerCase().endsWith(".jpg") || filename.toLowerCase().endsWith(".jpeg")) {
-            contentType = "image/jpeg";
-        } else if (filename.toLowerCase().endsWith(".png")) {
-            contentType = "image/png";
-        } else if (filename.toLowerCase().endsWith(".gif")) {
-            contentType = "image/gif";
-        } else if (filename.toLowerCase().endsWith(".pdf")) {
-            contentType = "application/pdf";
+        long start = 0;
+        long length = file.size();
+        HttpRange range = requestedRange(request, file);
+        if (range != null) {
+            if (file.size() == 0 || !isSatisfiable(range, file.size())) {
+                response.setHeader(HttpHeaders.CONTENT_RANGE, "bytes */" + file.size());
+                response.setStatus(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+                return;
+            }
+            start = range.getRangeStart(file.size());
+            length = range.getRangeEnd(file.size()) - start + 1;
+            response.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+            response.setHeader(HttpHeaders.CONTENT_RANGE,
+                    "bytes " + start + "-" + (start + length - 1) + "/" + file.size());
         }
+        response.setContentLengthLong(length);
 
-        // Cache-busting headers for profile photos to ensure fresh images after update
+        if ("HEAD".equals(request.getMethod()) || length == 0) {
+            return;
+        }
+        if (Boolean.TRUE.equals(request.getAttribute(SENDFILE_SUPPORTED))) {
+            // The connector writes the file straight from the page cache once the handler returns
+            request.setAttribute(SENDFILE_FILENAME, file.path().toAbsolutePath().toString());
+            request.setAttribute(SENDFILE_START, start);
+            request.setAttribute(SENDFILE_END, start + length);
+            return;
+        }
+        transfer(file, start, length, category, filename, response);
+    }
+
+    /**
+     * Send the client to the object store. The redirect may be cached while the same URL is handed out,
+     * unless the file itself must not be stored.
+     */
+    private static void redirect(PresignedUrl downloadUrl, String cacheControl, HttpServletResponse response) {
+        long reusableSeconds = Math.max(0, Duration.between(Instant.now(), downloadUrl.reusableUntil()).getSeconds());
+        response.setHeader(HttpHeaders.CACHE_CONTROL,
+                cacheControl.contains("no-store") ? cacheControl : "private, max-age=" + reusableSeconds);
+        response.setHeader(HttpHeaders.LOCATION, downloadUrl.uri().toString());
+        response.setStatus(HttpServletResponse.SC_FOUND);
+    }
+
+    private void transfer(StoredFile file, long start, long length, String category, String filename,
+                          HttpServletResponse response) throws IOException {
+        FileChannel channel;
+        try {
+            channel = FileChannel.open(file.path(), StandardOpenOption.READ);
+        } catch (NoSuchFileException e) {
+            // Deleted since its attributes were cached
+            fileStorageService.evictStoredFile(category, filename);
+            response.reset();
+            throw new ResourceNotFoundException("File not found: " + filename);
+        }
+        try (channel) {
+            WritableByteChannel out = Channels.newChannel(response.getOutputStream());
+            long position = start;
+            long remaining = length;
+            while (remaining > 0) {
+                long transferred = channel.transferTo(position, remaining, out);
+                if (transferred <= 0) {
+                    break;
+                }
+                position += transferred;
+                remaining -= transferred;
+            }
+        }
+    }
+
+    /**
+     * The single byte range to serve, or null for the whole file: no or malformed Range header,
+     * several ranges (not served as multipart), or an If-Range that no longer matches.
+     */
+    private static HttpRange requestedRange(HttpServletRequest request, StoredFile file) {
+        String rangeHeader = request.getHeader(HttpHeaders.RANGE);
+        if (rangeHeader == null) {
+            return null;
+        }
+        String ifRange = request.getHeader(HttpHeaders.IF_RANGE);
+        if (ifRange != null && !ifRange.equals(file.etag())) {
+            if (ifRange.startsWith("\"") || ifRange.startsWith("W/")) {
+                // Another entity-tag: the file changed since the client's partial download
+                return null;
+            }
+            long ifRangeDate;
+            try {
+                ifRangeDate = request.getDateHeader(HttpHeaders.IF_RANGE);
+            } catch (IllegalArgumentException e) {
+                return null;
+            }
+            if (ifRangeDate == -1 || file.lastModified() / 1000 != ifRangeDate / 1000) {
+                return null;
+            }
+        }
+        try {
+            List<HttpRange> ranges = HttpRange.parseRanges(rangeHeader);
+            return ranges.size() == 1 ? ranges.get(0) : null;
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    private static boolean isSatisfiable(HttpRange range, long size) {
+        try {
+            range.getRangeStart(size);
+            return true;
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+    }
+
+    private static String cacheControl(String category) {
+        // Photo derivatives are named after their content hash, so they never change and are cached for a year
+        if (ProfilePhotoDerivativeService.CATEGORY.equals(category)) {
+            return "public, max-age=31536000, immutable";
+        }
+        // Cache-busting headers for original profile photos to ensure fresh images after update
         // For other files, use standard caching
         long maxAge = "profile-photos".equals(category) ? 0 : 3600; // 0 seconds for photos, 1 hour for others
-        String cacheControl = "public, max-age=" + maxAge +
-                (maxAge == 0 ? ", must-revalidate, no-cache, no-store" : "");
-
-        return ResponseEntity.ok()
-                .contentType(MediaType.parseMediaType(contentType))
-                .header(HttpHeaders.CACHE_CONTROL, cacheControl)
-                .header(HttpHeaders.CONTENT_DISPOSITION, "inline; filename=\"" + file.getFilename() + "\"")
-                .body(file);
+        return "public, max-age=" + maxAge + (maxAge == 0 ? ", must-revalidate, no-cache, no-store" : "");
     }
 }
@@ -3,15 +3,19 @@ package com.dietician.controller;
 import com.dietician.dto.AuthDto;
 import com.dietician.dto.UserProfileDto;
 import com.dietician.service.UserProfileService;
+import com.dietician.util.ResourceVersion;
 import jakarta.validation.Valid;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.context.request.WebRequest;
 import org.springframework.web.multipart.MultipartFile;
 import org.springframework.web.multipart.MaxUploadSizeExceededException;
 
+import java.io.InputStream;
 import java.security.Principal;
 
 /**
@@ -27,10 +31,17 @@ public class UserProfileController {
 
     /**
      * Get current user's profile
+     * Supports conditional GET: a matching If-None-Match/If-Modified-Since gets a 304 from the version probe alone
      */
     @GetMapping("/me")
     public ResponseEntity<UserProfileDto.ProfileResponse> getMyProfile(
-            @RequestParam Long userId) {
+            @RequestParam Long userId,
+            WebRequest webRequest) {
+        ResourceVersion version = profileService.getProfileVersion(userId);
+        if (version != null && webRequest.checkNotModified(version.etag(), version.lastModifiedMillis())) {
+            // 304 and validators already written
+            return null;
+        }
         log.info("Fetching profile for user: {}", userId);
         UserProfileDto.ProfileResponse profile = profileService.getProfile(userId);
         return ResponseEntity.ok(profile);
@@ -60,6 +71,21 @@ public class UserProfileController {
         return ResponseEntity.ok(response);
     }
 
+    /**
+     * Upload profile photo as the raw request body (image bytes, no multipart)
+     * Streamed straight into storage, so the photo is written to disk once and a non-image or
+     * oversized upload is rejected before it has been fully received
+     */
+    @PutMapping("/me/photo")
+    public ResponseEntity<UserProfileDto.PhotoUploadResponse> uploadPhotoStream(
+            @RequestParam Long userId,
+            @RequestHeader(value = HttpHeaders.CONTENT_LENGTH, required = false) Long contentLength,
+            InputStream body) {
+        log.info("Uploading photo stream for user: {}, declared size: {} bytes", userId, contentLength);
+        UserProfileDto.PhotoUploadResponse response = profileService.uploadProfilePhoto(userId, body, contentLength);
+        return ResponseEntity.ok(response);
+    }
+
     // ============================================
     // Email Change Verification Endpoints
     // ============================================
@@ -11,6 +11,7 @@ import lombok.NoArgsConstructor;
 
 import java.time.LocalDateTime;
 import java.util.List;
+import java.util.Map;
 
 /**
  * Data Transfer Objects for Admin operations.
@@ -51,6 +52,8 @@ public class AdminDto {
         private Boolean isActive;
         private Boolean emailVerified;
         private String profilePictureUrl;
+        // Pre-sized derivative URLs by pixel size (64, 256, 1024), null until generated
+        private Map<Integer, String> profilePictureSizes;
         private LocalDateTime createdDate;
         private List<String> actions;
     }
@@ -169,4 +172,118 @@ public class AdminDto {
         private String roleCode;
         private String roleName;
     }
+
+    /**
+     * Audit log entry with its field-level details, for the admin audit search.
+     */
+    @Data
+    @Builder
+    @NoArgsConstructor
+    @AllArgsConstructor
+    public static class AuditLogEntry {
+        private Long id;
+        private String tableName;
+        private Long recordId;
+        private String action;
+        private String changedBy;
+        private LocalDateTime changedDate;
+        private String ipAddress;
+        private String userAgent;
+        private List<AuditLogDetailEntry> details;
+    }
+
+    /**
+     * Field-level change of an audit log entry.
+     */
+    @Data
+    @NoArgsConstructor
+    @AllArgsConstructor
+    public static class AuditLogDetailEntry {
+        private String fieldName;
+        private String oldValue;
+        private String newValue;
+    }
+
+    /**
+     * Progress and result of a bulk patient import job.
+     * rows is only filled when requested; it holds one entry per imported row.
+     */
+    @Data
+    @Builder
+    @NoArgsConstructor
+    @AllArgsConstructor
+    public static class ImportJobResponse {
+        private String jobId;
+        private String status;
+        private String message;
+        private LocalDateTime startedDate;
+        private LocalDateTime finishedDate;
+        private int processedRows;
+        private int createdRows;
+        private int duplicateRows;
+        private int invalidRows;
+        private int failedRows;
+        private List<ImportRowResult> rows;
+    }
+
+    /**
+     * Outcome of one row of a bulk import (row numbers start at 1, excluding a CSV header).
+     */
+    @Data
+    @NoArgsConstructor
+    @AllArgsConstructor
+    public static class ImportRowResult {
+        private int rowNumber;
+        private String status;
+        private Long userId;
+        private String message;
+    }
+
+    /**
+     * Bulk operation on users selected either by id or by a filter (role and optionally active status).
+     * role is the target role of CHANGE_ROLE.
+     */
+    @Data
+    @NoArgsConstructor
+    public static class BulkUserOperationRequest {
+        @NotBlank(message = "Operation is required")
+        @Pattern(regexp = "ACTIVATE|DEACTIVATE|CHANGE_ROLE|RESET_PASSWORD",
+                message = "Operation must be ACTIVATE, DEACTIVATE, CHANGE_ROLE, or RESET_PASSWORD")
+        private String operation;
+
+        @Size(max = 100000, message = "At most 100000 user ids per operation")
+        private List<Long> userIds;
+
+        @Pattern(regexp = "PATIENT|DIETICIAN|ADMIN", message = "Filter role must be PATIENT, DIETICIAN, or ADMIN")
+        private String filterRole;
+
+        private Boolean filterActive;
+
+        @Pattern(regexp = "PATIENT|DIETICIAN|ADMIN", message = "Role must be PATIENT, DIETICIAN, or ADMIN")
+        private String role;
+    }
+
+    /**
+     * Progress and result of a bulk user operation.
+     * Chunks commit independently: updated users stay updated when a later chunk fails.
+     * skippedUsers were not found or already in the requested state.
+     */
+    @Data
+    @Builder
+    @NoArgsConstructor
+    @AllArgsConstructor
+    public static class BulkOperationJobResponse {
+        private String jobId;
+        private String operation;
+        private String status;
+        private String message;
+        private LocalDateTime startedDate;
+        private LocalDateTime finishedDate;
+        private int totalUsers;
+        private int processedUsers;
+        private int updatedUsers;
+        private int skippedUsers;
+        private int failedUsers;
+        private List<Long> failedUserIds;
+    }
 }
@@ -0,0 +1,22 @@
+package com.dietician.dto;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.util.List;
+
+/**
+ * One page of a keyset-paginated list.
+ * Pass nextCursor back as the cursor parameter to fetch the following page; it is null on the last page.
+ *
+ * @param <T> item type
+ */
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class CursorPage<T> {
+    private List<T> items;
+    private String nextCursor;
+    private boolean hasMore;
+}
@@ -4,6 +4,7 @@ import jakarta.validation.constraints.*;
 import lombok.Data;
 
 import java.time.LocalDate;
+import java.util.Map;
 
 /**
  * DTOs for User Profile operations
@@ -83,6 +84,8 @@ public class UserProfileDto {
         private String addressLine;
         private String pincode;
         private String profilePhotoUrl;
+        // Pre-sized derivative URLs by pixel size (64, 256, 1024), null until generated
+        private Map<Integer, String> profilePhotoSizes;
         private Boolean emailVerified;
         // New tokens when email is updated
         private String accessToken;
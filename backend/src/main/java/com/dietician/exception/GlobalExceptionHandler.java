@@ -2,6 +2,7 @@ package com.dietician.exception;
 
 import com.dietician.dto.AuthDto;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
 import org.springframework.security.authentication.BadCredentialsException;
@@ -54,6 +55,16 @@ public class GlobalExceptionHandler {
         );
     }
 
+    /**
+     * Handle requests shed under load: 503 with Retry-After, without a stack trace
+     */
+    @ExceptionHandler(ServiceOverloadedException.class)
+    public ResponseEntity<AuthDto.MessageResponse> handleServiceOverloaded(ServiceOverloadedException ex) {
+        return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE)
+                .header(HttpHeaders.RETRY_AFTER, Integer.toString(ex.getRetryAfterSeconds()))
+                .body(new AuthDto.MessageResponse(ex.getMessage()));
+    }
+
     /**
      * Handle runtime exceptions (business logic errors)
      */
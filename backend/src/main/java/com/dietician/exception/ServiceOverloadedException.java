@@ -0,0 +1,18 @@
+package com.dietician.exception;
+
+/**
+ * Exception thrown when a request is shed because a bounded resource is saturated (HTTP 503 with Retry-After).
+ */
+public class ServiceOverloadedException extends RuntimeException {
+
+    private final int retryAfterSeconds;
+
+    public ServiceOverloadedException(String message, int retryAfterSeconds) {
+        super(message);
+        this.retryAfterSeconds = retryAfterSeconds;
+    }
+
+    public int getRetryAfterSeconds() {
+        return retryAfterSeconds;
+    }
+}
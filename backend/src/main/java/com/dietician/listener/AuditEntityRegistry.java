@@ -0,0 +1,142 @@
+package com.dietician.listener;
+
+import com.dietician.model.AuditableEntity;
+import jakarta.persistence.EntityManagerFactory;
+import jakarta.persistence.Id;
+import jakarta.persistence.Table;
+import jakarta.persistence.metamodel.EntityType;
+import jakarta.persistence.metamodel.SingularAttribute;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.context.event.ContextRefreshedEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Component;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
+import java.lang.reflect.Member;
+import java.lang.reflect.Method;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Per-entity-class audit metadata: the audited table name and a method handle reading the id.
+ * Built once from the JPA metamodel when the context starts, so the audit listener does no
+ * annotation lookups or reflection on the flush path. Classes not known to the metamodel
+ * (e.g. proxies) are described on first use and cached.
+ */
+@Slf4j
+@Component
+public class AuditEntityRegistry {
+
+    private static final MethodType ID_GETTER_TYPE = MethodType.methodType(Object.class, Object.class);
+
+    private final ObjectProvider<EntityManagerFactory> entityManagerFactory;
+    private final Map<Class<?>, EntityMetadata> metadata = new ConcurrentHashMap<>();
+
+    public AuditEntityRegistry(ObjectProvider<EntityManagerFactory> entityManagerFactory) {
+        this.entityManagerFactory = entityManagerFactory;
+    }
+
+    @EventListener(ContextRefreshedEvent.class)
+    public void init() {
+        EntityManagerFactory factory = entityManagerFactory.getIfAvailable();
+        if (factory == null) {
+            return;
+        }
+        for (EntityType<?> entityType : factory.getMetamodel().getEntities()) {
+            Class<?> javaType = entityType.getJavaType();
+            if (javaType == null || !AuditableEntity.class.isAssignableFrom(javaType)) {
+                continue;
+            }
+            metadata.put(javaType, new EntityMetadata(tableName(javaType), idGetter(javaType, idMember(entityType))));
+        }
+        log.info("Audit metadata registered for {} entity classes", metadata.size());
+    }
+
+    /**
+     * Metadata for an entity class, described and cached on first use if the metamodel did not cover it.
+     */
+    public EntityMetadata get(Class<?> entityClass) {
+        EntityMetadata entityMetadata = metadata.get(entityClass);
+        if (entityMetadata != null) {
+            return entityMetadata;
+        }
+        return metadata.computeIfAbsent(entityClass,
+                type -> new EntityMetadata(tableName(type), idGetter(type, findIdField(type))));
+    }
+
+    private static Member idMember(EntityType<?> entityType) {
+        try {
+            SingularAttribute<?, ?> id = entityType.getId(entityType.getIdType().getJavaType());
+            return id.getJavaMember();
+        } catch (RuntimeException e) {
+            // Composite ids (@IdClass) have no single id attribute
+            return findIdField(entityType.getJavaType());
+        }
+    }
+
+    /**
+     * Table name from @Table, falling back to the lower-cased class name
+     */
+    private static String tableName(Class<?> type) {
+        for (Class<?> clazz = type; clazz != null && clazz != Object.class; clazz = clazz.getSuperclass()) {
+            Table table = clazz.getAnnotation(Table.class);
+            if (table != null && !table.name().isEmpty()) {
+                return table.name();
+            }
+        }
+        return type.getSimpleName().toLowerCase();
+    }
+
+    private static Field findIdField(Class<?> type) {
+        for (Class<?> clazz = type; clazz != null && clazz != Object.class; clazz = clazz.getSuperclass()) {
+            for (Field field : clazz.getDeclaredFields()) {
+                if (field.isAnnotationPresent(Id.class)) {
+                    return field;
+                }
+            }
+        }
+        return null;
+    }
+
+    private static MethodHandle idGetter(Class<?> type, Member member) {
+        if (member == null) {
+            return null;
+        }
+        try {
+            MethodHandles.Lookup lookup = MethodHandles.privateLookupIn(member.getDeclaringClass(), MethodHandles.lookup());
+            MethodHandle getter = member instanceof Method method
+                    ? lookup.unreflect(method)
+                    : lookup.unreflectGetter((Field) member);
+            return getter.asType(ID_GETTER_TYPE);
+        } catch (IllegalAccessException e) {
+            log.error("Cannot access id of {}", type.getName(), e);
+            return null;
+        }
+    }
+
+    /**
+     * Audit metadata of one entity class.
+     */
+    public record EntityMetadata(String tableName, MethodHandle idGetter) {
+
+        /**
+         * Read the entity's id as a Long, or null if it has none or it is not numeric
+         */
+        public Long recordId(Object entity) {
+            if (idGetter == null) {
+                return null;
+            }
+            try {
+                Object idValue = idGetter.invokeExact(entity);
+                return idValue instanceof Number number ? number.longValue() : null;
+            } catch (Throwable e) {
+                log.error("Failed to extract ID from entity", e);
+                return null;
+            }
+        }
+    }
+}
@@ -3,133 +3,75 @@ package com.dietician.listener;
 import com.dietician.model.AuditableEntity;
 import com.dietician.model.User;
 import com.dietician.service.AuditLogService;
-import jakarta.persistence.PostLoad;
 import jakarta.persistence.PostPersist;
 import jakarta.persistence.PostRemove;
 import jakarta.persistence.PostUpdate;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.security.authentication.AnonymousAuthenticationToken;
 import org.springframework.security.core.Authentication;
 import org.springframework.security.core.context.SecurityContextHolder;
 import org.springframework.stereotype.Component;
 
 /**
- * Hibernate event listener for automatic audit logging
+ * JPA entity listener for automatic audit logging
  * Captures INSERT, UPDATE, and DELETE operations on entities extending AuditableEntity
+ * Not attached to any entity: services audit their changes explicitly. Attaching it with @EntityListeners
+ * audits every write of that entity, including derived deletes, on top of those calls.
+ * Hibernate instantiates listeners while the EntityManagerFactory is being built, so its collaborators are
+ * looked up on first event rather than injected, which would be a circular dependency.
  */
 @Slf4j
 @Component
 public class AuditLogEventListener {
 
-    private final AuditLogService auditLogService;
+    private final ObjectProvider<AuditLogService> auditLogService;
+    private final ObjectProvider<AuditEntityRegistry> auditEntityRegistry;
 
-    public AuditLogEventListener(AuditLogService auditLogService) {
+    public AuditLogEventListener(ObjectProvider<AuditLogService> auditLogService,
+                                 ObjectProvider<AuditEntityRegistry> auditEntityRegistry) {
         this.auditLogService = auditLogService;
+        this.auditEntityRegistry = auditEntityRegistry;
     }
 
     @PostPersist
     public void onPostInsert(Object entity) {
-        if (!(entity instanceof AuditableEntity)) {
-            return;
-        }
-
-        try {
-            AuditableEntity auditable = (AuditableEntity) entity;
-            String tableName = getTableName(entity);
-            Long recordId = getRecordId(auditable);
-            String username = getCurrentUsername();
-
-            log.debug("PostPersist: {} {} by {}", tableName, recordId, username);
-            auditLogService.createAuditLog(tableName, recordId, "INSERT", username, null);
-        } catch (Exception e) {
-            log.error("Failed to create INSERT audit log", e);
-        }
+        record(entity, "INSERT");
     }
 
     @PostUpdate
     public void onPostUpdate(Object entity) {
-        if (!(entity instanceof AuditableEntity)) {
-            return;
-        }
-
-        try {
-            AuditableEntity auditable = (AuditableEntity) entity;
-            String tableName = getTableName(entity);
-            Long recordId = getRecordId(auditable);
-            String username = getCurrentUsername();
-
-            log.debug("PostUpdate: {} {} by {}", tableName, recordId, username);
-            auditLogService.createAuditLog(tableName, recordId, "UPDATE", username, null);
-        } catch (Exception e) {
-            log.error("Failed to create UPDATE audit log", e);
-        }
+        record(entity, "UPDATE");
     }
 
     @PostRemove
     public void onPostRemove(Object entity) {
+        record(entity, "DELETE");
+    }
+
+    private void record(Object entity, String action) {
         if (!(entity instanceof AuditableEntity)) {
             return;
         }
 
-        try {
-            AuditableEntity auditable = (AuditableEntity) entity;
-            String tableName = getTableName(entity);
-            Long recordId = getRecordId(auditable);
-            String username = getCurrentUsername();
-
-            log.debug("PostRemove: {} {} by {}", tableName, recordId, username);
-            auditLogService.createAuditLog(tableName, recordId, "DELETE", username, null);
-        } catch (Exception e) {
-            log.error("Failed to create DELETE audit log", e);
-        }
-    }
-
-    /**
-     * Get table name from entity class
-     */
-    private String getTableName(Object entity) {
-        jakarta.persistence.Table tableAnnotation = entity.getClass()
-                .getAnnotation(jakarta.persistence.Table.class);
-        if (tableAnnotation != null && !tableAnnotation.name().isEmpty()) {
-            return tableAnnotation.name();
+        AuditLogService service = auditLogService.getIfAvailable();
+        AuditEntityRegistry registry = auditEntityRegistry.getIfAvailable();
+        if (service == null || registry == null) {
+            // Contexts without auditing, such as JPA test slices
+            return;
         }
-        return entity.getClass().getSimpleName().toLowerCase();
-    }
 
-    /**
-     * Get record ID from entity
-     */
-    private Long getRecordId(AuditableEntity entity) {
-        // Use reflection to get the ID field
         try {
-            java.lang.reflect.Field idField = findIdField(entity.getClass());
-            if (idField != null) {
-                idField.setAccessible(true);
-                Object idValue = idField.get(entity);
-                if (idValue instanceof Long) {
-                    return (Long) idValue;
-                } else if (idValue instanceof Integer) {
-                    return ((Integer) idValue).longValue();
-                }
-            }
-        } catch (Exception e) {
-            log.error("Failed to extract ID from entity", e);
-        }
-        return null;
-    }
+            AuditEntityRegistry.EntityMetadata metadata = registry.get(entity.getClass());
+            String tableName = metadata.tableName();
+            Long recordId = metadata.recordId(entity);
+            String username = getCurrentUsername();
 
-    /**
-     * Find the ID field in the entity class hierarchy
-     */
-    private java.lang.reflect.Field findIdField(Class<?> clazz) {
-        while (clazz != null && clazz != Object.class) {
-            for (java.lang.reflect.Field field : clazz.getDeclaredFields()) {
-                if (field.isAnnotationPresent(jakarta.persistence.Id.class)) {
-                    return field;
-                }
-            }
-            clazz = clazz.getSuperclass();
+            log.debug("{}: {} {} by {}", action, tableName, recordId, username);
+            service.createAuditLog(tableName, recordId, action, username, null);
+        } catch (Exception e) {
+            log.error("Failed to create {} audit log", action, e);
         }
-        return null;
     }
 
     /**
@@ -137,16 +79,15 @@ public class AuditLogEventListener {
      */
     private String getCurrentUsername() {
         Authentication authentication = SecurityContextHolder.getContext().getAuthentication();
-        if (authentication != null && authentication.isAuthenticated()) {
-            Object principal = authentication.getPrincipal();
-            if (principal instanceof User) {
-                User user = (User) principal;
-                return user.getEmail();
-            } else if (principal instanceof String) {
-                return (String) principal;
-            }
-            return principal.toString();
+        if (authentication == null || !authentication.isAuthenticated()
+                || authentication instanceof AnonymousAuthenticationToken) {
+            return "SYSTEM";
+        }
+
+        if (authentication.getPrincipal() instanceof User user) {
+            return user.getEmail();
         }
-        return "SYSTEM";
+        // TokenPrincipal and other UserDetails give their username (the email); toString() would give the object
+        return authentication.getName();
     }
 }
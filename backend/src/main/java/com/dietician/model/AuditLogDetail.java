@@ -6,6 +6,8 @@ import lombok.Builder;
 import lombok.Data;
 import lombok.NoArgsConstructor;
 
+import java.time.LocalDateTime;
+
 /**
  * Entity representing detailed field-level changes for audit logs
  */
@@ -18,14 +20,18 @@ import lombok.NoArgsConstructor;
 public class AuditLogDetail {
 
     @Id
-    @GeneratedValue(strategy = GenerationType.IDENTITY)
-    @SequenceGenerator(name = "audit_log_details_id_seq", sequenceName = "audit_log_details_id_seq", allocationSize = 1)
+    @GeneratedValue(strategy = GenerationType.SEQUENCE, generator = "audit_log_details_id_seq")
+    @SequenceGenerator(name = "audit_log_details_id_seq", sequenceName = "audit_log_details_id_seq", allocationSize = 50)
     private Long id;
 
     @ManyToOne(fetch = FetchType.LAZY)
     @JoinColumn(name = "audit_log_id", nullable = false)
     private AuditLog auditLog;
 
+    // Partition key, copied from the owning audit log
+    @Column(name = "changed_date", nullable = false)
+    private LocalDateTime changedDate;
+
     @Column(name = "field_name", nullable = false, length = 50)
     private String fieldName;
 
@@ -0,0 +1,76 @@
+package com.dietician.model;
+
+import com.dietician.util.StringEncryptionConverter;
+import jakarta.persistence.*;
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.time.LocalDateTime;
+
+/**
+ * Entity representing an outbound mail waiting in the transactional outbox.
+ * Recipient and body are encrypted at rest, as the body may contain OTP codes or temporary passwords.
+ */
+@Entity
+@Table(name = "mail_outbox")
+@Data
+@Builder
+@NoArgsConstructor
+@AllArgsConstructor
+public class MailOutboxMessage {
+
+    public static final String STATUS_PENDING = "PENDING";
+    public static final String STATUS_SENDING = "SENDING";
+    public static final String STATUS_SENT = "SENT";
+    public static final String STATUS_DEAD = "DEAD";
+
+    @Id
+    @GeneratedValue(strategy = GenerationType.SEQUENCE, generator = "mail_outbox_id_seq")
+    @SequenceGenerator(name = "mail_outbox_id_seq", sequenceName = "mail_outbox_id_seq", allocationSize = 50)
+    private Long id;
+
+    @Column(nullable = false, length = 500)
+    @Convert(converter = StringEncryptionConverter.class)
+    private String recipient;
+
+    @Column(nullable = false)
+    private String subject;
+
+    @Column(nullable = false, columnDefinition = "TEXT")
+    @Convert(converter = StringEncryptionConverter.class)
+    private String body;
+
+    @Column(nullable = false)
+    @Builder.Default
+    private Boolean html = false;
+
+    @Column(nullable = false, length = 20)
+    @Builder.Default
+    private String status = STATUS_PENDING;
+
+    @Column(nullable = false)
+    @Builder.Default
+    private Integer attempts = 0;
+
+    @Column(name = "next_attempt_at", nullable = false)
+    @Builder.Default
+    private LocalDateTime nextAttemptAt = LocalDateTime.now();
+
+    /**
+     * End of a dispatcher's claim on a SENDING message
+     */
+    @Column(name = "lease_expires_at")
+    private LocalDateTime leaseExpiresAt;
+
+    @Column(name = "last_error", length = 1000)
+    private String lastError;
+
+    @Column(name = "sent_date")
+    private LocalDateTime sentDate;
+
+    @Column(name = "created_date", nullable = false, updatable = false)
+    @Builder.Default
+    private LocalDateTime createdDate = LocalDateTime.now();
+}
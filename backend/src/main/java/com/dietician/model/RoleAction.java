@@ -29,7 +29,7 @@ public class RoleAction extends AuditableEntity {
 
     @Id
     @GeneratedValue(strategy = GenerationType.SEQUENCE, generator = "role_actions_id_seq")
-    @SequenceGenerator(name = "role_actions_id_seq", sequenceName = "role_actions_id_seq", allocationSize = 1)
+    @SequenceGenerator(name = "role_actions_id_seq", sequenceName = "role_actions_id_seq", allocationSize = 50)
     private Long id;
 
     @ManyToOne(fetch = FetchType.LAZY)
@@ -22,8 +22,8 @@ import java.time.LocalDate;
 @EqualsAndHashCode(of = "id", callSuper = false)
 public class UserProfile extends AuditableEntity {
     @Id
-    @GeneratedValue(strategy = GenerationType.IDENTITY)
-    @SequenceGenerator(name = "user_profiles_id_seq", sequenceName = "user_profiles_id_seq", allocationSize = 1)
+    @GeneratedValue(strategy = GenerationType.SEQUENCE, generator = "user_profiles_id_seq")
+    @SequenceGenerator(name = "user_profiles_id_seq", sequenceName = "user_profiles_id_seq", allocationSize = 50)
     private Long id;
 
     /**
@@ -72,4 +72,11 @@ public class UserProfile extends AuditableEntity {
 
     @Column(name = "profile_photo_url", length = 500)
     private String profilePhotoUrl;
+
+    /**
+     * Content hash naming the photo's size derivatives, written by ProfilePhotoDerivativeService
+     * Read-only here so saving the profile never overwrites a key set by the background pipeline
+     */
+    @Column(name = "profile_photo_key", length = 64, insertable = false, updatable = false)
+    private String profilePhotoKey;
 }
@@ -0,0 +1,79 @@
+package com.dietician.repository;
+
+import com.dietician.model.MailOutboxMessage;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+import org.springframework.stereotype.Repository;
+
+import java.time.LocalDateTime;
+import java.util.List;
+
+/**
+ * Repository for MailOutboxMessage entity.
+ */
+@Repository
+public interface MailOutboxRepository extends JpaRepository<MailOutboxMessage, Long> {
+
+    /**
+     * Lock the next batch of due messages, including claims whose lease has expired.
+     * SKIP LOCKED lets several dispatchers (nodes) drain the outbox without handing out a row twice.
+     */
+    @Query(value = """
+            SELECT * FROM diet.mail_outbox
+            WHERE (status = 'PENDING' AND next_attempt_at <= now())
+               OR (status = 'SENDING' AND lease_expires_at <= now())
+            ORDER BY next_attempt_at, id
+            LIMIT :limit
+            FOR UPDATE SKIP LOCKED
+            """, nativeQuery = true)
+    List<MailOutboxMessage> lockDueBatch(@Param("limit") int limit);
+
+    /**
+     * Claim locked messages for sending until the lease expires, counting the attempt.
+     */
+    @Modifying
+    @Query(value = """
+            UPDATE diet.mail_outbox
+            SET status = 'SENDING', lease_expires_at = :leaseExpiresAt, attempts = attempts + 1
+            WHERE id IN (:ids)
+            """, nativeQuery = true)
+    int claim(@Param("ids") List<Long> ids, @Param("leaseExpiresAt") LocalDateTime leaseExpiresAt);
+
+    /**
+     * Mark claimed messages delivered. Messages whose lease expired and were claimed again are left alone.
+     */
+    @Modifying
+    @Query(value = """
+            UPDATE diet.mail_outbox
+            SET status = 'SENT', sent_date = :sentDate, last_error = NULL, lease_expires_at = NULL
+            WHERE id IN (:ids) AND status = 'SENDING' AND lease_expires_at = :leaseExpiresAt
+            """, nativeQuery = true)
+    int markSent(@Param("ids") List<Long> ids,
+                 @Param("leaseExpiresAt") LocalDateTime leaseExpiresAt,
+                 @Param("sentDate") LocalDateTime sentDate);
+
+    /**
+     * Release a claimed message after a failed attempt: PENDING again at nextAttemptAt, or DEAD.
+     * A message whose lease expired and was claimed again is left alone.
+     */
+    @Modifying
+    @Query(value = """
+            UPDATE diet.mail_outbox
+            SET status = :status, next_attempt_at = :nextAttemptAt, last_error = :lastError, lease_expires_at = NULL
+            WHERE id = :id AND status = 'SENDING' AND lease_expires_at = :leaseExpiresAt
+            """, nativeQuery = true)
+    int markFailed(@Param("id") Long id,
+                   @Param("leaseExpiresAt") LocalDateTime leaseExpiresAt,
+                   @Param("status") String status,
+                   @Param("nextAttemptAt") LocalDateTime nextAttemptAt,
+                   @Param("lastError") String lastError);
+
+    /**
+     * Delete delivered messages older than the cutoff.
+     */
+    @Modifying
+    @Query(value = "DELETE FROM diet.mail_outbox WHERE status = 'SENT' AND sent_date < :cutoff", nativeQuery = true)
+    int deleteSentBefore(@Param("cutoff") LocalDateTime cutoff);
+}
@@ -1,11 +1,11 @@
 package com.dietician.security;
 
-import com.dietician.util.EmailHashUtil;
-import jakarta.persistence.EntityManager;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.security.access.PermissionEvaluator;
 import org.springframework.security.core.Authentication;
+import org.springframework.security.core.GrantedAuthority;
+import org.springframework.security.core.userdetails.UserDetails;
 import org.springframework.stereotype.Component;
 
 import java.io.Serializable;
@@ -13,7 +13,9 @@ import java.io.Serializable;
 /**
  * Custom PermissionEvaluator for action-based access control.
  * Checks if a user's role has a specific action permission.
- * Uses native queries to avoid encrypted email field issues.
+ * Uses the in-memory PermissionMatrix, so a check costs no database round trip.
+ * For self-contained tokens the action bitmask from the token is used while it was
+ * issued against the current matrix; otherwise the role is looked up in the matrix.
  *
  * Usage in controllers: @PreAuthorize("hasPermission(#id, 'ACTION_CODE')")
  */
@@ -22,7 +24,9 @@ import java.io.Serializable;
 @RequiredArgsConstructor
 public class CustomPermissionEvaluator implements PermissionEvaluator {
 
-    private final EntityManager entityManager;
+    private static final String ROLE_PREFIX = "ROLE_";
+
+    private final PermissionMatrix permissionMatrix;
 
     /**
      * Check if the authenticated user has a specific action permission.
@@ -34,28 +38,28 @@ public class CustomPermissionEvaluator implements PermissionEvaluator {
      */
     @Override
     public boolean hasPermission(Authentication authentication, Object targetId, Object permission) {
-        String email = authentication.getName();
+        if (authentication == null || permission == null) {
+            return false;
+        }
+
         String actionCode = permission.toString();
 
-        // Use native query to check if user's role has the action
-        // This avoids loading the User entity with encrypted email
-        String query = """
-            SELECT CASE WHEN COUNT(ra) > 0 THEN true ELSE false END
-            FROM diet.role_actions ra
-            JOIN diet.users u ON u.role_id = ra.role_id
-            WHERE u.email_search = :emailHash
-            AND ra.action_id = (SELECT id FROM diet.actions WHERE action_code = :actionCode)
-            AND u.is_active = true
-            """;
+        // Inactive users are loaded as locked accounts and never have any action
+        if (authentication.getPrincipal() instanceof UserDetails userDetails && !userDetails.isAccountNonLocked()) {
+            log.debug("Permission check: user={}, action={}, result=false (inactive)", authentication.getName(), actionCode);
+            return false;
+        }
 
-        Boolean hasPermission = (Boolean) entityManager.createNativeQuery(query)
-                .setParameter("emailHash", EmailHashUtil.hash(email))
-                .setParameter("actionCode", actionCode)
-                .getSingleResult();
+        boolean hasPermission;
+        if (authentication.getPrincipal() instanceof TokenPrincipal tokenPrincipal) {
+            hasPermission = hasTokenPermission(tokenPrincipal, actionCode);
+        } else {
+            hasPermission = permissionMatrix.hasAction(getRoleCode(authentication), actionCode);
+        }
 
-        log.debug("Permission check: user={}, action={}, result={}", email, actionCode, hasPermission);
+        log.debug("Permission check: user={}, action={}, result={}", authentication.getName(), actionCode, hasPermission);
 
-        return Boolean.TRUE.equals(hasPermission);
+        return hasPermission;
     }
 
     /**
@@ -67,4 +71,30 @@ public class CustomPermissionEvaluator implements PermissionEvaluator {
         // Delegate to the simpler hasPermission method
         return hasPermission(authentication, targetId, permission);
     }
+
+    /**
+     * Check the token's action bits, falling back to the matrix if role actions changed since it was issued.
+     */
+    private boolean hasTokenPermission(TokenPrincipal principal, String actionCode) {
+        PermissionMatrix.Snapshot snapshot = permissionMatrix.current();
+        if (principal.getPermissionVersion() != snapshot.getFingerprint()) {
+            return permissionMatrix.hasAction(principal.getRoleCode(), actionCode);
+        }
+
+        Integer ordinal = snapshot.actionOrdinal(actionCode);
+        return ordinal != null && principal.hasActionBit(ordinal);
+    }
+
+    /**
+     * Get the role code from the ROLE_ authority set by CustomUserDetailsService.
+     */
+    private String getRoleCode(Authentication authentication) {
+        for (GrantedAuthority authority : authentication.getAuthorities()) {
+            String name = authority.getAuthority();
+            if (name != null && name.startsWith(ROLE_PREFIX)) {
+                return name.substring(ROLE_PREFIX.length());
+            }
+        }
+        return null;
+    }
 }
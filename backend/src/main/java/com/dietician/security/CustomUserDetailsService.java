@@ -10,7 +10,6 @@ import org.springframework.security.core.userdetails.UserDetails;
 import org.springframework.security.core.userdetails.UserDetailsService;
 import org.springframework.security.core.userdetails.UsernameNotFoundException;
 import org.springframework.stereotype.Service;
-import org.springframework.transaction.annotation.Transactional;
 
 import java.util.Collection;
 import java.util.Collections;
@@ -18,6 +17,7 @@ import java.util.Collections;
 /**
  * Custom UserDetailsService for loading user-specific data.
  * Uses native queries to avoid encrypted email field issues.
+ * Loaded users are kept in the PrincipalCache, so most calls do not touch the database.
  */
 @Slf4j
 @Service
@@ -25,15 +25,34 @@ import java.util.Collections;
 public class CustomUserDetailsService implements UserDetailsService {
 
     private final EntityManager entityManager;
+    private final PrincipalCache principalCache;
 
+    // Not @Transactional: a cache hit should not borrow a pooled connection
     @Override
-    @Transactional(readOnly = true)
     public UserDetails loadUserByUsername(String email) throws UsernameNotFoundException {
         String emailHash = EmailHashUtil.hash(email);
 
+        PrincipalCache.CachedPrincipal principal = principalCache.get(emailHash);
+        if (principal == null) {
+            principal = loadPrincipal(email, emailHash);
+            principalCache.put(emailHash, principal);
+        }
+
+        return org.springframework.security.core.userdetails.User.builder()
+                .username(email) // Use the email from parameter, not from DB
+                .password(principal.password() != null ? principal.password() : "")
+                .authorities(getAuthorities(principal.roleCode()))
+                .accountExpired(false)
+                .accountLocked(!principal.active())
+                .credentialsExpired(false)
+                .disabled(!principal.active() || !principal.emailVerified())
+                .build();
+    }
+
+    private PrincipalCache.CachedPrincipal loadPrincipal(String email, String emailHash) {
         // Use native query to get user data without encrypted email
         String nativeQuery = """
-            SELECT u.password, u.is_active, u.email_verified, r.role_code
+            SELECT u.password, u.is_active, u.email_verified, r.role_code, u.id
             FROM diet.users u
             JOIN diet.roles r ON u.role_id = r.id
             WHERE u.email_search = :emailHash
@@ -53,16 +72,14 @@ public class CustomUserDetailsService implements UserDetailsService {
         Boolean isActive = (Boolean) result[1];
         Boolean emailVerified = (Boolean) result[2];
         String roleCode = (String) result[3];
+        Long userId = ((Number) result[4]).longValue();
 
-        return org.springframework.security.core.userdetails.User.builder()
-                .username(email) // Use the email from parameter, not from DB
-                .password(password != null ? password : "")
-                .authorities(getAuthorities(roleCode))
-                .accountExpired(false)
-                .accountLocked(Boolean.FALSE.equals(isActive))
-                .credentialsExpired(false)
-                .disabled(Boolean.FALSE.equals(isActive) || Boolean.FALSE.equals(emailVerified))
-                .build();
+        return new PrincipalCache.CachedPrincipal(
+                userId,
+                password,
+                !Boolean.FALSE.equals(isActive),
+                !Boolean.FALSE.equals(emailVerified),
+                roleCode);
     }
 
     private Collection<? extends GrantedAuthority> getAuthorities(String roleCode) {
@@ -1,5 +1,6 @@
 package com.dietician.security;
 
+import io.jsonwebtoken.Claims;
 import jakarta.servlet.FilterChain;
 import jakarta.servlet.ServletException;
 import jakarta.servlet.http.HttpServletRequest;
@@ -19,6 +20,8 @@ import java.io.IOException;
 
 /**
  * JWT Authentication Filter that validates JWT tokens on each request.
+ * Self-contained tokens are turned into an Authentication from their claims, after a cached
+ * security epoch check; legacy subject-only tokens still go through the UserDetailsService.
  */
 @Slf4j
 @Component
@@ -27,6 +30,7 @@ public class JwtAuthenticationFilter extends OncePerRequestFilter {
 
     private final JwtTokenProvider tokenProvider;
     private final UserDetailsService userDetailsService;
+    private final SecurityEpochRegistry securityEpochRegistry;
 
     @Override
     protected void doFilterInternal(HttpServletRequest request,
@@ -35,16 +39,19 @@ public class JwtAuthenticationFilter extends OncePerRequestFilter {
         try {
             String jwt = getJwtFromRequest(request);
 
-            if (StringUtils.hasText(jwt) && tokenProvider.validateToken(jwt)) {
-                String username = tokenProvider.getUsernameFromToken(jwt);
+            Claims claims = StringUtils.hasText(jwt) ? tokenProvider.parseAndValidate(jwt).orElse(null) : null;
 
-                UserDetails userDetails = userDetailsService.loadUserByUsername(username);
-                UsernamePasswordAuthenticationToken authentication =
-                        new UsernamePasswordAuthenticationToken(userDetails, null, userDetails.getAuthorities());
-                authentication.setDetails(new WebAuthenticationDetailsSource().buildDetails(request));
+            if (claims != null) {
+                UserDetails userDetails = loadUserDetails(claims);
 
-                SecurityContextHolder.getContext().setAuthentication(authentication);
-                log.debug("Set authentication for user: {}", username);
+                if (userDetails != null) {
+                    UsernamePasswordAuthenticationToken authentication =
+                            new UsernamePasswordAuthenticationToken(userDetails, null, userDetails.getAuthorities());
+                    authentication.setDetails(new WebAuthenticationDetailsSource().buildDetails(request));
+
+                    SecurityContextHolder.getContext().setAuthentication(authentication);
+                    log.debug("Set authentication for user: {}", userDetails.getUsername());
+                }
             }
         } catch (Exception ex) {
             log.error("Could not set user authentication in security context", ex);
@@ -53,6 +60,25 @@ public class JwtAuthenticationFilter extends OncePerRequestFilter {
         filterChain.doFilter(request, response);
     }
 
+    /**
+     * Resolve the principal for a validated token.
+     *
+     * @return the principal, or null if the token was revoked by a security epoch bump
+     */
+    private UserDetails loadUserDetails(Claims claims) {
+        TokenPrincipal principal = tokenProvider.getPrincipalFromClaims(claims);
+        if (principal == null) {
+            // Legacy subject-only token issued before self-contained tokens were rolled out
+            return userDetailsService.loadUserByUsername(claims.getSubject());
+        }
+
+        if (!securityEpochRegistry.isCurrent(principal.getUserId(), principal.getSecurityEpoch())) {
+            log.debug("Rejected revoked token for user: {}", principal.getUserId());
+            return null;
+        }
+        return principal;
+    }
+
     private String getJwtFromRequest(HttpServletRequest request) {
         String bearerToken = request.getHeader("Authorization");
         if (StringUtils.hasText(bearerToken) && bearerToken.startsWith("Bearer ")) {
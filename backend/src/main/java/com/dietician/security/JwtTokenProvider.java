@@ -1,7 +1,9 @@
 package com.dietician.security;
 
+import com.dietician.util.BoundedTtlCache;
 import io.jsonwebtoken.*;
 import io.jsonwebtoken.security.Keys;
+import io.micrometer.core.instrument.MeterRegistry;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.security.core.Authentication;
@@ -10,28 +12,58 @@ import org.springframework.stereotype.Component;
 
 import javax.crypto.SecretKey;
 import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
+import java.util.BitSet;
 import java.util.Date;
+import java.util.Optional;
 
 /**
  * JWT Token Provider for generating and validating JWT tokens.
  * Supports both access tokens and refresh tokens.
+ * Access tokens are self-contained: besides the email subject they carry the user id, role code,
+ * the role's action bitmask and the user's security epoch, so a request can be authenticated
+ * without loading the user. Legacy subject-only tokens are still accepted.
+ * Tokens are verified by a single shared parser; recently verified tokens are remembered by
+ * SHA-256 digest until they expire, so a client resending the same token skips the HMAC check.
  */
 @Slf4j
 @Component
 public class JwtTokenProvider {
 
+    public static final String CLAIM_USER_ID = "uid";
+    public static final String CLAIM_ROLE = "role";
+    public static final String CLAIM_PERMISSIONS = "perms";
+    public static final String CLAIM_PERMISSION_VERSION = "pv";
+    public static final String CLAIM_SECURITY_EPOCH = "sep";
+
     private final SecretKey secretKey;
     private final long jwtExpiration;
     private final long refreshExpiration;
+    private final PermissionMatrix permissionMatrix;
+    private final JwtParser parser;
+    private final BoundedTtlCache<String, Claims> verifiedTokens;
 
     public JwtTokenProvider(
             @Value("${jwt.secret}") String secret,
             @Value("${jwt.expiration}") long jwtExpiration,
-            @Value("${jwt.refresh-expiration}") long refreshExpiration) {
+            @Value("${jwt.refresh-expiration}") long refreshExpiration,
+            @Value("${jwt.verified-cache.max-size:10000}") int verifiedCacheSize,
+            @Value("${jwt.verified-cache.ttl-ms:300000}") long verifiedCacheTtl,
+            PermissionMatrix permissionMatrix,
+            MeterRegistry meterRegistry) {
         
         this.secretKey = Keys.hmacShaKeyFor(secret.getBytes(StandardCharsets.UTF_8));
         this.jwtExpiration = jwtExpiration;
         this.refreshExpiration = refreshExpiration;
+        this.permissionMatrix = permissionMatrix;
+        // JwtParser is immutable and thread-safe once built
+        this.parser = Jwts.parser()
+                .verifyWith(secretKey)
+                .build();
+        this.verifiedTokens = new BoundedTtlCache<String, Claims>(verifiedCacheSize, verifiedCacheTtl)
+                .registerMetrics(meterRegistry, "verified-tokens");
         
         log.info("JwtTokenProvider initialized with expiration: {} ms", jwtExpiration);
     }
@@ -59,10 +91,38 @@ public class JwtTokenProvider {
                 .compact();
     }
 
+    /**
+     * Generate a self-contained access token
+     *
+     * @param username the user's email, kept as the subject
+     * @param userId the user id
+     * @param roleCode the user's role code
+     * @param securityEpoch the user's current security epoch
+     */
+    public String generateToken(String username, Long userId, String roleCode, long securityEpoch) {
+        Date now = new Date();
+        Date expiryDate = new Date(now.getTime() + jwtExpiration);
+        PermissionMatrix.Snapshot snapshot = permissionMatrix.current();
+
+        return Jwts.builder()
+                .subject(username)
+                .claim(CLAIM_USER_ID, userId)
+                .claim(CLAIM_ROLE, roleCode)
+                .claim(CLAIM_PERMISSIONS, encodePermissions(snapshot.actionBits(roleCode)))
+                .claim(CLAIM_PERMISSION_VERSION, snapshot.getFingerprint())
+                .claim(CLAIM_SECURITY_EPOCH, securityEpoch)
+                .issuedAt(now)
+                .expiration(expiryDate)
+                .signWith(secretKey)
+                .compact();
+    }
+
     /**
      * Generate refresh token
+     *
+     * @param securityEpoch the user's current security epoch; a refresh is refused once it has been bumped
      */
-    public String generateRefreshToken(String username) {
+    public String generateRefreshToken(String username, long securityEpoch) {
         Date now = new Date();
         Date expiryDate = new Date(now.getTime() + refreshExpiration);
 
@@ -71,44 +131,106 @@ public class JwtTokenProvider {
                 .issuedAt(now)
                 .expiration(expiryDate)
                 .claim("type", "refresh")
+                .claim(CLAIM_SECURITY_EPOCH, securityEpoch)
                 .signWith(secretKey)
                 .compact();
     }
 
+    /**
+     * Verify a token and return its claims, verifying the signature at most once per token.
+     *
+     * @return the claims, or empty if the token is invalid or expired
+     */
+    public Optional<Claims> parseAndValidate(String token) {
+        if (token == null || token.isEmpty()) {
+            return Optional.empty();
+        }
+
+        String digest = digest(token);
+        Claims cached = verifiedTokens.get(digest);
+        if (cached != null) {
+            return Optional.of(cached);
+        }
+
+        try {
+            Claims claims = parser.parseSignedClaims(token).getPayload();
+            Date expiration = claims.getExpiration();
+            if (expiration != null) {
+                // Never serve claims from the cache past the token's own expiry
+                verifiedTokens.put(digest, claims, expiration.getTime() - System.currentTimeMillis());
+            }
+            return Optional.of(claims);
+        } catch (ExpiredJwtException ex) {
+            log.debug("Expired JWT token");
+        } catch (io.jsonwebtoken.security.SecurityException ex) {
+            log.error("Invalid JWT signature");
+        } catch (MalformedJwtException ex) {
+            log.error("Invalid JWT token");
+        } catch (UnsupportedJwtException ex) {
+            log.error("Unsupported JWT token");
+        } catch (JwtException | IllegalArgumentException ex) {
+            log.error("Invalid JWT token: {}", ex.getMessage());
+        }
+        return Optional.empty();
+    }
+
     /**
      * Get username (email) from token
      */
     public String getUsernameFromToken(String token) {
-        Claims claims = Jwts.parser()
-                .verifyWith(secretKey)
-                .build()
-                .parseSignedClaims(token)
-                .getPayload();
+        return parseAndValidate(token)
+                .map(Claims::getSubject)
+                .orElseThrow(() -> new JwtException("Invalid JWT token"));
+    }
 
-        return claims.getSubject();
+    /**
+     * Build a principal from the claims of a self-contained access token.
+     *
+     * @return the principal, or null for a legacy subject-only or refresh token
+     */
+    public TokenPrincipal getPrincipalFromClaims(Claims claims) {
+        Long userId = claims.get(CLAIM_USER_ID, Long.class);
+        if (userId == null || "refresh".equals(claims.get("type", String.class))) {
+            return null;
+        }
+
+        Long securityEpoch = claims.get(CLAIM_SECURITY_EPOCH, Long.class);
+        Long permissionVersion = claims.get(CLAIM_PERMISSION_VERSION, Long.class);
+        String permissions = claims.get(CLAIM_PERMISSIONS, String.class);
+
+        return new TokenPrincipal(
+                userId,
+                claims.getSubject(),
+                claims.get(CLAIM_ROLE, String.class),
+                securityEpoch != null ? securityEpoch : -1L,
+                permissionVersion != null ? permissionVersion : 0L,
+                decodePermissions(permissions));
     }
 
     /**
      * Validate JWT token
      */
     public boolean validateToken(String token) {
+        return parseAndValidate(token).isPresent();
+    }
+
+    private static String encodePermissions(long[] actionBits) {
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(BitSet.valueOf(actionBits).toByteArray());
+    }
+
+    private static String digest(String token) {
         try {
-            Jwts.parser()
-                    .verifyWith(secretKey)
-                    .build()
-                    .parseSignedClaims(token);
-            return true;
-        } catch (SecurityException ex) {
-            log.error("Invalid JWT signature");
-        } catch (MalformedJwtException ex) {
-            log.error("Invalid JWT token");
-        } catch (ExpiredJwtException ex) {
-            log.error("Expired JWT token");
-        } catch (UnsupportedJwtException ex) {
-            log.error("Unsupported JWT token");
-        } catch (IllegalArgumentException ex) {
-            log.error("JWT claims string is empty");
+            byte[] hash = MessageDigest.getInstance("SHA-256").digest(token.getBytes(StandardCharsets.US_ASCII));
+            return Base64.getEncoder().encodeToString(hash);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 algorithm not available", e);
+        }
+    }
+
+    private static BitSet decodePermissions(String permissions) {
+        if (permissions == null || permissions.isEmpty()) {
+            return new BitSet();
         }
-        return false;
+        return BitSet.valueOf(Base64.getUrlDecoder().decode(permissions));
     }
 }
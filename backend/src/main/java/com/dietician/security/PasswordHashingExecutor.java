@@ -0,0 +1,130 @@
+package com.dietician.security;
+
+import com.dietician.exception.ServiceOverloadedException;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.security.crypto.password.PasswordEncoder;
+import org.springframework.stereotype.Component;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs BCrypt hashing and verification for interactive requests (login, registration, password change) on a
+ * CPU-sized pool with a bounded queue. At about 100 ms of CPU per check, a credential-stuffing burst would
+ * otherwise occupy every Tomcat thread; here at most threads + queue-capacity requests wait for a hash and the
+ * rest are shed at once with a 503 and Retry-After. Bulk operations keep hashing on their own workers.
+ */
+@Slf4j
+@Component
+public class PasswordHashingExecutor {
+
+    private final PasswordEncoder passwordEncoder;
+    private final ThreadPoolExecutor executor;
+    private final long maxWaitMillis;
+    private final int retryAfterSeconds;
+    private final MeterRegistry meterRegistry;
+    private final Timer waitTimer;
+
+    public PasswordHashingExecutor(PasswordEncoder passwordEncoder,
+                                   MeterRegistry meterRegistry,
+                                   @Value("${app.auth.hashing.threads:0}") int threads,
+                                   @Value("${app.auth.hashing.queue-capacity:50}") int queueCapacity,
+                                   @Value("${app.auth.hashing.max-wait-ms:3000}") long maxWaitMillis,
+                                   @Value("${app.auth.hashing.retry-after-seconds:5}") int retryAfterSeconds) {
+        this.passwordEncoder = passwordEncoder;
+        this.meterRegistry = meterRegistry;
+        this.maxWaitMillis = maxWaitMillis;
+        this.retryAfterSeconds = retryAfterSeconds;
+
+        AtomicInteger threadCount = new AtomicInteger();
+        int poolSize = threads > 0 ? threads : Runtime.getRuntime().availableProcessors();
+        this.executor = new ThreadPoolExecutor(poolSize, poolSize, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(Math.max(1, queueCapacity)), runnable -> {
+                    Thread thread = new Thread(runnable, "password-hashing-" + threadCount.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                });
+        meterRegistry.gauge("auth.password.hashing.queued", executor, pool -> pool.getQueue().size());
+        meterRegistry.gauge("auth.password.hashing.active", executor, ThreadPoolExecutor::getActiveCount);
+        this.waitTimer = Timer.builder("auth.password.hashing.wait")
+                .description("Time password hashing tasks spend queued before a thread picks them up")
+                .register(meterRegistry);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * PasswordEncoder.matches on the hashing pool
+     *
+     * @throws ServiceOverloadedException if the pool is saturated
+     */
+    public boolean matches(CharSequence rawPassword, String encodedPassword) {
+        return execute(() -> passwordEncoder.matches(rawPassword, encodedPassword));
+    }
+
+    /**
+     * PasswordEncoder.encode on the hashing pool
+     *
+     * @throws ServiceOverloadedException if the pool is saturated
+     */
+    public String encode(CharSequence rawPassword) {
+        return execute(() -> passwordEncoder.encode(rawPassword));
+    }
+
+    private <T> T execute(Callable<T> task) {
+        long submitted = System.nanoTime();
+        Future<T> future;
+        try {
+            future = executor.submit(() -> {
+                waitTimer.record(System.nanoTime() - submitted, TimeUnit.NANOSECONDS);
+                return task.call();
+            });
+        } catch (RejectedExecutionException e) {
+            throw overloaded("queue-full");
+        }
+
+        try {
+            return future.get(maxWaitMillis, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            // Give up rather than hold the request thread longer. A cancelled task still queued is skipped when
+            // dequeued; a BCrypt call already running cannot be interrupted and keeps its pool thread until done.
+            future.cancel(false);
+            throw overloaded("timeout");
+        } catch (InterruptedException e) {
+            future.cancel(false);
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while checking password", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException runtimeException) {
+                throw runtimeException;
+            }
+            throw new IllegalStateException("Password hashing failed", e.getCause());
+        }
+    }
+
+    private ServiceOverloadedException overloaded(String reason) {
+        Counter.builder("auth.password.hashing.rejected")
+                .tag("reason", reason)
+                .description("Password hashing requests shed because the hashing pool was saturated")
+                .register(meterRegistry)
+                .increment();
+        log.warn("Password hashing pool saturated ({}), {} queued", reason, executor.getQueue().size());
+        return new ServiceOverloadedException(
+                "The server is busy processing sign-in requests. Please try again in a few seconds.", retryAfterSeconds);
+    }
+}
@@ -0,0 +1,295 @@
+package com.dietician.security;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import jakarta.persistence.EntityManager;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.event.TransactionPhase;
+import org.springframework.transaction.event.TransactionalEventListener;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * In-memory role -> action permission matrix.
+ * Holds an immutable, versioned snapshot with one bitset per role keyed by action ordinal,
+ * so permission checks are a lock-free lookup instead of a native join per check.
+ * The snapshot is rebuilt after a role's actions are changed and the change has committed. Changes committed
+ * on other nodes are picked up by a version probe: at most once per check interval, one caller compares a digest
+ * of actions and role_actions (a few hundred rows) with the one the snapshot was built from.
+ */
+@Slf4j
+@Component
+public class PermissionMatrix {
+
+    private final EntityManager entityManager;
+    private final TransactionTemplate readTransaction;
+    private final AtomicLong versionSequence = new AtomicLong();
+    private final long checkIntervalNanos;
+    // System.nanoTime() after which the next caller probes for changes made on other nodes
+    private final AtomicLong nextCheck = new AtomicLong();
+    private final Counter hits;
+    private final Counter misses;
+    private final Timer rebuildTimer;
+
+    private volatile Snapshot snapshot;
+
+    public PermissionMatrix(EntityManager entityManager,
+                            PlatformTransactionManager transactionManager,
+                            MeterRegistry meterRegistry,
+                            @Value("${app.security.permission-matrix.check-interval-ms:10000}") long checkIntervalMillis) {
+        this.entityManager = entityManager;
+        this.checkIntervalNanos = TimeUnit.MILLISECONDS.toNanos(checkIntervalMillis);
+        this.readTransaction = new TransactionTemplate(transactionManager);
+        this.readTransaction.setPropagationBehavior(TransactionDefinition.PROPAGATION_REQUIRES_NEW);
+        this.readTransaction.setReadOnly(true);
+
+        this.hits = Counter.builder("permission.matrix.lookups")
+                .tag("result", "hit")
+                .description("Permission checks answered from the in-memory matrix")
+                .register(meterRegistry);
+        this.misses = Counter.builder("permission.matrix.lookups")
+                .tag("result", "miss")
+                .description("Permission checks for an unknown role or action")
+                .register(meterRegistry);
+        this.rebuildTimer = Timer.builder("permission.matrix.rebuild")
+                .description("Time taken to rebuild the role-action matrix")
+                .register(meterRegistry);
+        Gauge.builder("permission.matrix.version", versionSequence, AtomicLong::get)
+                .description("Version of the current role-action matrix snapshot")
+                .register(meterRegistry);
+    }
+
+    /**
+     * Check whether a role has an action.
+     *
+     * @param roleCode the role code (e.g., "ADMIN")
+     * @param actionCode the action code (e.g., "VIEW_PATIENT")
+     * @return true if the role is assigned the action
+     */
+    public boolean hasAction(String roleCode, String actionCode) {
+        Snapshot current = current();
+        Integer ordinal = current.actionOrdinals.get(actionCode);
+        BitSet roleBits = roleCode != null ? current.roleBits.get(roleCode) : null;
+
+        if (ordinal == null || roleBits == null) {
+            misses.increment();
+            return false;
+        }
+
+        hits.increment();
+        return roleBits.get(ordinal);
+    }
+
+    /**
+     * Get the current snapshot, loading it on first use and rebuilding it when another node changed the data.
+     */
+    public Snapshot current() {
+        Snapshot current = snapshot;
+        if (current == null) {
+            synchronized (this) {
+                current = snapshot;
+                if (current == null) {
+                    current = rebuild();
+                }
+            }
+        } else if (checkDue()) {
+            current = refreshIfChanged(current);
+        }
+        return current;
+    }
+
+    /**
+     * True for exactly one caller once the check interval has passed
+     */
+    private boolean checkDue() {
+        long now = System.nanoTime();
+        long next = nextCheck.get();
+        return now - next >= 0 && nextCheck.compareAndSet(next, now + checkIntervalNanos);
+    }
+
+    /**
+     * Rebuild if the data differs from what the snapshot was built from. A failed probe keeps the snapshot.
+     */
+    private Snapshot refreshIfChanged(Snapshot current) {
+        try {
+            String digest = readTransaction.execute(status -> sourceDigest());
+            if (current.sourceDigest.equals(digest)) {
+                return current;
+            }
+            log.info("Role actions changed on another node, rebuilding permission matrix");
+            return rebuild();
+        } catch (RuntimeException e) {
+            log.warn("Permission matrix version check failed: {}", e.getMessage());
+            return current;
+        }
+    }
+
+    /**
+     * Digest of the rows the matrix is built from
+     */
+    private String sourceDigest() {
+        return (String) entityManager.createNativeQuery("""
+                SELECT md5(COALESCE((SELECT string_agg(a.id || ':' || a.action_code, ',' ORDER BY a.id)
+                                     FROM diet.actions a), '')
+                    || '|' || COALESCE((SELECT string_agg(r.role_code || ':' || ra.action_id, ','
+                                                          ORDER BY r.role_code, ra.action_id)
+                                        FROM diet.role_actions ra JOIN diet.roles r ON r.id = ra.role_id), ''))
+                """)
+                .getSingleResult();
+    }
+
+    /**
+     * Load the matrix once the application has started so the first request does not pay for it.
+     */
+    @EventListener(ApplicationReadyEvent.class)
+    public void onApplicationReady() {
+        current();
+    }
+
+    /**
+     * Rebuild the matrix after a role-action change has been committed.
+     */
+    @TransactionalEventListener(phase = TransactionPhase.AFTER_COMMIT, fallbackExecution = true)
+    public void onRoleActionsChanged(RoleActionsChangedEvent event) {
+        log.info("Role actions changed for role: {}, rebuilding permission matrix", event.roleId());
+        rebuild();
+    }
+
+    /**
+     * Read role_actions and atomically publish a new snapshot.
+     */
+    public synchronized Snapshot rebuild() {
+        long start = System.nanoTime();
+
+        Snapshot rebuilt = readTransaction.execute(status -> {
+            // Read first: a change committed while the rows are read is seen by the next probe
+            String sourceDigest = sourceDigest();
+
+            @SuppressWarnings("unchecked")
+            List<Object[]> actionRows = entityManager.createNativeQuery(
+                    "SELECT a.id, a.action_code FROM diet.actions a ORDER BY a.id")
+                    .getResultList();
+
+            Map<String, Integer> actionOrdinals = new HashMap<>();
+            Map<Long, Integer> ordinalsById = new HashMap<>();
+            for (Object[] row : actionRows) {
+                int ordinal = actionOrdinals.size();
+                actionOrdinals.put((String) row[1], ordinal);
+                ordinalsById.put(((Number) row[0]).longValue(), ordinal);
+            }
+
+            @SuppressWarnings("unchecked")
+            List<Object[]> roleRows = entityManager.createNativeQuery("""
+                    SELECT r.role_code, ra.action_id
+                    FROM diet.roles r
+                    LEFT JOIN diet.role_actions ra ON ra.role_id = r.id
+                    """)
+                    .getResultList();
+
+            Map<String, BitSet> roleBits = new TreeMap<>();
+            for (Object[] row : roleRows) {
+                BitSet bits = roleBits.computeIfAbsent((String) row[0], code -> new BitSet(actionOrdinals.size()));
+                if (row[1] != null) {
+                    Integer ordinal = ordinalsById.get(((Number) row[1]).longValue());
+                    if (ordinal != null) {
+                        bits.set(ordinal);
+                    }
+                }
+            }
+
+            return new Snapshot(versionSequence.get() + 1, fingerprint(actionOrdinals, roleBits), sourceDigest,
+                    Map.copyOf(actionOrdinals), Map.copyOf(roleBits));
+        });
+
+        versionSequence.set(rebuilt.version);
+        snapshot = rebuilt;
+        nextCheck.set(System.nanoTime() + checkIntervalNanos);
+
+        long elapsed = System.nanoTime() - start;
+        rebuildTimer.record(elapsed, TimeUnit.NANOSECONDS);
+        log.info("Permission matrix v{} built: {} roles, {} actions in {} ms",
+                rebuilt.version, rebuilt.roleBits.size(), rebuilt.actionOrdinals.size(), elapsed / 1_000_000);
+        return rebuilt;
+    }
+
+    /**
+     * Content hash of the matrix. Unlike the version it is stable across restarts and nodes.
+     */
+    private static long fingerprint(Map<String, Integer> actionOrdinals, Map<String, BitSet> roleBits) {
+        StringBuilder canonical = new StringBuilder();
+        new TreeMap<>(actionOrdinals).forEach((code, ordinal) ->
+                canonical.append(code).append('=').append(ordinal).append(';'));
+        roleBits.forEach((role, bits) -> canonical.append(role).append(':').append(bits).append(';'));
+
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256")
+                    .digest(canonical.toString().getBytes(StandardCharsets.UTF_8));
+            long value = 0;
+            for (int i = 0; i < Long.BYTES; i++) {
+                value = (value << 8) | (digest[i] & 0xFF);
+            }
+            return value;
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 algorithm not available", e);
+        }
+    }
+
+    /**
+     * Immutable view of the role-action matrix at a point in time.
+     * The bitsets are never handed out, so they are never mutated after publication.
+     */
+    public static final class Snapshot {
+        private final long version;
+        private final long fingerprint;
+        private final String sourceDigest;
+        private final Map<String, Integer> actionOrdinals;
+        private final Map<String, BitSet> roleBits;
+
+        private Snapshot(long version, long fingerprint, String sourceDigest,
+                         Map<String, Integer> actionOrdinals, Map<String, BitSet> roleBits) {
+            this.version = version;
+            this.fingerprint = fingerprint;
+            this.sourceDigest = sourceDigest;
+            this.actionOrdinals = actionOrdinals;
+            this.roleBits = roleBits;
+        }
+
+        public long getVersion() {
+            return version;
+        }
+
+        public long getFingerprint() {
+            return fingerprint;
+        }
+
+        public Integer actionOrdinal(String actionCode) {
+            return actionOrdinals.get(actionCode);
+        }
+
+        /**
+         * Copy of a role's action bits as a long array, or an empty array for an unknown role.
+         */
+        public long[] actionBits(String roleCode) {
+            BitSet bits = roleBits.get(roleCode);
+            return bits != null ? bits.toLongArray() : new long[0];
+        }
+    }
+}
@@ -0,0 +1,88 @@
+package com.dietician.security;
+
+import com.dietician.util.BoundedTtlCache;
+import com.dietician.util.TransactionUtils;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.Collection;
+import java.util.Objects;
+import java.util.Set;
+
+/**
+ * Bounded, TTL-based cache of authenticated principals keyed by email hash.
+ * Sits in front of CustomUserDetailsService so an authenticated request does not hit the database.
+ * Entries are evicted explicitly when a user's status, role, password or email changes;
+ * the TTL bounds how long a change made elsewhere (another node, manual SQL) can go unnoticed.
+ */
+@Slf4j
+@Component
+public class PrincipalCache {
+
+    private final BoundedTtlCache<String, CachedPrincipal> cache;
+
+    public PrincipalCache(
+            @Value("${app.security.principal-cache.max-size:10000}") int maxSize,
+            @Value("${app.security.principal-cache.ttl-ms:60000}") long ttlMillis,
+            MeterRegistry meterRegistry) {
+        this.cache = new BoundedTtlCache<String, CachedPrincipal>(maxSize, ttlMillis)
+                .registerMetrics(meterRegistry, "principals");
+
+        log.info("PrincipalCache initialized with max size: {}, ttl: {} ms", maxSize, ttlMillis);
+    }
+
+    public CachedPrincipal get(String emailHash) {
+        return cache.get(emailHash);
+    }
+
+    public void put(String emailHash, CachedPrincipal principal) {
+        cache.put(emailHash, principal);
+    }
+
+    /**
+     * Evict a user's principal now and again once the current transaction commits.
+     */
+    public void evictUser(Long userId) {
+        if (userId == null) {
+            return;
+        }
+        Runnable evict = () -> cache.invalidateIf((emailHash, principal) -> Objects.equals(principal.userId(), userId));
+        evict.run();
+        TransactionUtils.afterCommit(evict);
+        log.debug("Evicted cached principal for user: {}", userId);
+    }
+
+    /**
+     * Evict several users' principals with one pass over the cache, now and again once the current transaction commits.
+     */
+    public void evictUsers(Collection<Long> userIds) {
+        if (userIds.isEmpty()) {
+            return;
+        }
+        Set<Long> ids = Set.copyOf(userIds);
+        Runnable evict = () -> cache.invalidateIf((emailHash, principal) -> ids.contains(principal.userId()));
+        evict.run();
+        TransactionUtils.afterCommit(evict);
+        log.debug("Evicted cached principals for {} users", ids.size());
+    }
+
+    /**
+     * Evict a principal by email hash now and again once the current transaction commits.
+     */
+    public void evictEmailHash(String emailHash) {
+        if (emailHash == null) {
+            return;
+        }
+        cache.invalidate(emailHash);
+        TransactionUtils.afterCommit(() -> cache.invalidate(emailHash));
+    }
+
+    /**
+     * The subset of the users row needed to build UserDetails.
+     * Immutable, so a fresh UserDetails can be built per request without sharing credentials state.
+     */
+    public record CachedPrincipal(Long userId, String password, boolean active, boolean emailVerified, String roleCode) {
+    }
+}
@@ -0,0 +1,10 @@
+package com.dietician.security;
+
+/**
+ * Published when the actions assigned to a role are changed.
+ * Listeners that cache role-action data refresh once the change has committed.
+ *
+ * @param roleId the role whose actions changed
+ */
+public record RoleActionsChangedEvent(Long roleId) {
+}
@@ -0,0 +1,100 @@
+package com.dietician.security;
+
+import com.dietician.util.BoundedTtlCache;
+import com.dietician.util.TransactionUtils;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.persistence.EntityManager;
+import jakarta.persistence.NoResultException;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Per-user security epochs (users.security_epoch).
+ * Access and refresh tokens carry the epoch they were issued under; bumping a user's epoch revokes all of them.
+ * Current epochs are cached for a short TTL, so checking a token normally costs no database round trip.
+ */
+@Slf4j
+@Component
+public class SecurityEpochRegistry {
+
+    private final EntityManager entityManager;
+    private final BoundedTtlCache<Long, Long> cache;
+
+    public SecurityEpochRegistry(
+            EntityManager entityManager,
+            @Value("${app.security.epoch-cache.max-size:10000}") int maxSize,
+            @Value("${app.security.epoch-cache.ttl-ms:30000}") long ttlMillis,
+            MeterRegistry meterRegistry) {
+        this.entityManager = entityManager;
+        this.cache = new BoundedTtlCache<Long, Long>(maxSize, ttlMillis)
+                .registerMetrics(meterRegistry, "security-epochs");
+    }
+
+    /**
+     * Check whether an epoch taken from a token is still the user's current one.
+     * Unknown users never have a current epoch.
+     */
+    public boolean isCurrent(Long userId, long epoch) {
+        Long current = cache.get(userId, this::loadEpoch);
+        return current != null && current == epoch;
+    }
+
+    /**
+     * Get the user's current epoch for issuing a token.
+     */
+    public long current(Long userId) {
+        Long current = cache.get(userId, this::loadEpoch);
+        if (current == null) {
+            throw new IllegalStateException("User not found with id: " + userId);
+        }
+        return current;
+    }
+
+    /**
+     * Increment the user's epoch, revoking every access token issued before it.
+     * Must run inside the transaction making the change; the cached epoch is dropped now and after commit.
+     *
+     * @return the new epoch, to be used for tokens issued in the same transaction
+     */
+    public long bump(Long userId) {
+        long epoch = ((Number) entityManager.createNativeQuery(
+                "UPDATE diet.users SET security_epoch = security_epoch + 1 WHERE id = :userId RETURNING security_epoch")
+                .setParameter("userId", userId)
+                .getSingleResult()).longValue();
+        evict(userId);
+        log.debug("Security epoch for user {} bumped to {}", userId, epoch);
+        return epoch;
+    }
+
+    /**
+     * Drop the cached epoch after it was changed by a statement outside this class.
+     */
+    public void evict(Long userId) {
+        cache.invalidate(userId);
+        TransactionUtils.afterCommit(() -> cache.invalidate(userId));
+    }
+
+    /**
+     * Drop the cached epochs of several users after a set-based update.
+     */
+    public void evict(Collection<Long> userIds) {
+        List<Long> ids = List.copyOf(userIds);
+        ids.forEach(cache::invalidate);
+        TransactionUtils.afterCommit(() -> ids.forEach(cache::invalidate));
+    }
+
+    private Long loadEpoch(Long userId) {
+        try {
+            return ((Number) entityManager.createNativeQuery(
+                    "SELECT security_epoch FROM diet.users WHERE id = :userId")
+                    .setParameter("userId", userId)
+                    .getSingleResult()).longValue();
+        } catch (NoResultException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,62 @@
+package com.dietician.security;
+
+import lombok.Getter;
+import org.springframework.security.core.GrantedAuthority;
+import org.springframework.security.core.authority.SimpleGrantedAuthority;
+import org.springframework.security.core.userdetails.UserDetails;
+
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Principal built purely from the claims of a self-contained access token.
+ * Status is not carried: a deactivated user's tokens are revoked through the security epoch instead.
+ */
+@Getter
+public class TokenPrincipal implements UserDetails {
+
+    private final Long userId;
+    private final String email;
+    private final String roleCode;
+    private final long securityEpoch;
+    private final long permissionVersion;
+    private final List<GrantedAuthority> authorities;
+
+    @Getter(lombok.AccessLevel.NONE)
+    private final BitSet permissions;
+
+    public TokenPrincipal(Long userId, String email, String roleCode, long securityEpoch,
+                          long permissionVersion, BitSet permissions) {
+        this.userId = userId;
+        this.email = email;
+        this.roleCode = roleCode;
+        this.securityEpoch = securityEpoch;
+        this.permissionVersion = permissionVersion;
+        this.permissions = permissions;
+        this.authorities = List.of(new SimpleGrantedAuthority("ROLE_" + roleCode));
+    }
+
+    /**
+     * Check the action bit at the given PermissionMatrix ordinal.
+     * Only meaningful while permissionVersion matches the matrix fingerprint.
+     */
+    public boolean hasActionBit(int ordinal) {
+        return permissions.get(ordinal);
+    }
+
+    @Override
+    public Collection<? extends GrantedAuthority> getAuthorities() {
+        return authorities;
+    }
+
+    @Override
+    public String getPassword() {
+        return null;
+    }
+
+    @Override
+    public String getUsername() {
+        return email;
+    }
+}
@@ -3,11 +3,19 @@ package com.dietician.service;
 import com.dietician.dto.AdminDto.*;
 import com.dietician.dto.AdminDto.RoleResponse;
 import com.dietician.dto.AuthDto.MessageResponse;
+import com.dietician.dto.CursorPage;
 import com.dietician.exception.ResourceNotFoundException;
 import com.dietician.model.*;
 import com.dietician.repository.*;
+import com.dietician.security.PrincipalCache;
+import com.dietician.security.RoleActionsChangedEvent;
+import com.dietician.security.SecurityEpochRegistry;
+import com.dietician.util.KeysetCursor;
+import com.dietician.util.RankedCursor;
+import com.dietician.util.ResourceVersion;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.context.ApplicationEventPublisher;
 import org.springframework.data.domain.Page;
 import org.springframework.data.domain.PageRequest;
 import org.springframework.data.domain.Pageable;
@@ -20,7 +28,9 @@ import jakarta.persistence.Query;
 import jakarta.persistence.PersistenceContext;
 import java.security.SecureRandom;
 import java.time.LocalDateTime;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.stream.Collectors;
 
 /**
@@ -39,7 +49,20 @@ public class AdminService {
     private final PasswordResetTokenRepository passwordResetTokenRepository;
     private final EmailService emailService;
     private final PasswordEncoder passwordEncoder;
+    private final ApplicationEventPublisher eventPublisher;
+    private final PrincipalCache principalCache;
+    private final SecurityEpochRegistry securityEpochRegistry;
+    private final ProfileResponseCache profileResponseCache;
     private static final SecureRandom RANDOM = new SecureRandom();
+    private static final int MAX_USER_PAGE_SIZE = 200;
+    private static final int MIN_SEARCH_LENGTH = 3;
+    private static final int MAX_SEARCH_MATCHES = 1000;
+    private static final String USER_SUMMARY_SELECT = """
+            SELECT u.id, u.email_search, u.full_name, r.role_code, r.role_name,
+                   u.is_active, u.email_verified, u.created_date
+            FROM diet.users u
+            JOIN diet.roles r ON u.role_id = r.id
+            """;
     private static final String TEMP_PASSWORD_CHARS = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789!@#$%";
 
     @PersistenceContext
@@ -52,65 +75,261 @@ public class AdminService {
     /**
      * Get paginated list of users by role.
      * Uses native query to avoid decrypting encrypted email field.
+     * Deep pages get slower with the offset; prefer getUsersPage for large lists.
      */
     @Transactional(readOnly = true)
     public Page<UserSummary> getUsers(String role, int page, int size) {
         log.info("Fetching users for role: {}, page: {}, size: {}", role, page, size);
 
         Pageable pageable = PageRequest.of(page, size);
+        boolean filterByRole = role != null && !role.isEmpty();
 
-        // Build the query based on role filter
-        String baseQuery = """
-            SELECT u.id, u.email_search, u.full_name, r.role_code, r.role_name,
-                   u.is_active, u.email_verified, u.created_date
-            FROM diet.users u
-            JOIN diet.roles r ON u.role_id = r.id
-            """;
-
-        String whereClause = "";
-        String countQuery = "SELECT COUNT(*) FROM diet.users u JOIN diet.roles r ON u.role_id = r.id";
+        String query = USER_SUMMARY_SELECT
+                + (filterByRole ? " WHERE u.role_id = (SELECT id FROM diet.roles WHERE role_code = :role)" : "")
+                + " ORDER BY u.created_date DESC, u.id DESC LIMIT :size OFFSET :offset";
 
-        if (role != null && !role.isEmpty()) {
-            whereClause = " WHERE r.role_code = :role";
-            countQuery += " WHERE r.role_code = :role";
+        // Execute data query
+        int offset = page * size;
+        Query dataQ = entityManager.createNativeQuery(query);
+        dataQ.setParameter("size", size);
+        dataQ.setParameter("offset", offset);
+        if (filterByRole) {
+            dataQ.setParameter("role", role.toUpperCase());
         }
 
-        String finalQuery = baseQuery + whereClause + " ORDER BY u.created_date DESC LIMIT :size OFFSET :offset";
+        @SuppressWarnings("unchecked")
+        List<Object[]> results = dataQ.getResultList();
 
-        // Execute count query
-        Query countQ = entityManager.createNativeQuery(countQuery);
-        if (role != null && !role.isEmpty()) {
-            countQ.setParameter("role", role.toUpperCase());
+        List<UserSummary> summaries = results.stream()
+                .map(this::toUserSummary)
+                .collect(Collectors.toList());
+
+        return new org.springframework.data.domain.PageImpl<>(summaries, pageable, countUsers(role));
+    }
+
+    /**
+     * Get a page of users by role, newest first, using a (created_date, id) keyset cursor.
+     * Each page is one index range scan, however deep into the list it is.
+     */
+    @Transactional(readOnly = true)
+    public CursorPage<UserSummary> getUsersPage(String role, String cursor, int size) {
+        int pageSize = Math.max(1, Math.min(size, MAX_USER_PAGE_SIZE));
+        KeysetCursor after = KeysetCursor.decode(cursor);
+        boolean filterByRole = role != null && !role.isEmpty();
+        log.info("Fetching user page for role: {}, size: {}, after: {}", role, pageSize, after);
+
+        StringBuilder query = new StringBuilder(USER_SUMMARY_SELECT).append(" WHERE 1 = 1");
+        if (filterByRole) {
+            query.append(" AND u.role_id = (SELECT id FROM diet.roles WHERE role_code = :role)");
         }
-        Long totalCount = ((Number) countQ.getSingleResult()).longValue();
+        if (after != null) {
+            query.append(" AND (u.created_date, u.id) < (:afterDate, :afterId)");
+        }
+        // One extra row tells whether another page exists
+        query.append(" ORDER BY u.created_date DESC, u.id DESC LIMIT :limit");
 
-        // Execute data query
-        int offset = page * size;
-        Query dataQ = entityManager.createNativeQuery(finalQuery);
-        dataQ.setParameter("size", size);
-        dataQ.setParameter("offset", offset);
-        if (role != null && !role.isEmpty()) {
+        Query dataQ = entityManager.createNativeQuery(query.toString());
+        dataQ.setParameter("limit", pageSize + 1);
+        if (filterByRole) {
             dataQ.setParameter("role", role.toUpperCase());
         }
+        if (after != null) {
+            dataQ.setParameter("afterDate", after.timestamp());
+            dataQ.setParameter("afterId", after.id());
+        }
 
         @SuppressWarnings("unchecked")
         List<Object[]> results = dataQ.getResultList();
 
+        boolean hasMore = results.size() > pageSize;
         List<UserSummary> summaries = results.stream()
-                .map(row -> UserSummary.builder()
-                        .id(((Number) row[0]).longValue())
-                        // Email is encrypted, use a placeholder or hash
-                        .email("***@" + ((String) row[1]).substring(0, 8) + "...") // Show partial hash as identifier
-                        .fullName((String) row[2])
-                        .roleCode((String) row[3])
-                        .roleName((String) row[4])
-                        .isActive((Boolean) row[5])
-                        .emailVerified((Boolean) row[6])
-                        .createdDate(row[7] != null ? ((java.sql.Timestamp) row[7]).toLocalDateTime() : null)
-                        .build())
+                .limit(pageSize)
+                .map(this::toUserSummary)
+                .collect(Collectors.toList());
+
+        String nextCursor = null;
+        if (hasMore) {
+            UserSummary last = summaries.get(summaries.size() - 1);
+            nextCursor = new KeysetCursor(last.getCreatedDate(), last.getId()).encode();
+        }
+        return new CursorPage<>(summaries, nextCursor, hasMore);
+    }
+
+    /**
+     * Fuzzy search over the user's name and the profile name, mobile number, state and pincode.
+     * Matches use the pg_trgm word-similarity operator or a substring ILIKE, both served by the
+     * trigram GIN indexes (V11); results are ranked by best word similarity and paged with a
+     * (score, id) keyset cursor. Only the MAX_SEARCH_MATCHES best-scoring users of the role are ranked;
+     * the set is deterministic, so paging through it neither skips nor repeats rows.
+     */
+    @Transactional(readOnly = true)
+    public CursorPage<UserSummary> searchUsers(String text, String role, String cursor, int size) {
+        String q = text != null ? text.trim() : "";
+        if (q.length() < MIN_SEARCH_LENGTH) {
+            throw new IllegalArgumentException("Search text must be at least " + MIN_SEARCH_LENGTH + " characters");
+        }
+        int pageSize = Math.max(1, Math.min(size, MAX_USER_PAGE_SIZE));
+        RankedCursor after = RankedCursor.decode(cursor);
+        boolean filterByRole = role != null && !role.isEmpty();
+        log.info("Searching users for role: {}, size: {}", role, pageSize);
+
+        // Each candidate branch keeps its best-scoring users of the requested role, so the union holds the
+        // overall top MAX_SEARCH_MATCHES and every page of one search ranks the same candidate set
+        String roleFilter = filterByRole
+                ? " AND {alias}role_id = (SELECT id FROM diet.roles WHERE role_code = :role)"
+                : "";
+        StringBuilder query = new StringBuilder("""
+                WITH matches AS (
+                    (SELECT u.id FROM diet.users u
+                     WHERE (:q <% u.full_name OR u.full_name ILIKE :pattern){usersRole}
+                     ORDER BY word_similarity(:q, COALESCE(u.full_name, '')) DESC, u.id
+                     LIMIT :maxMatches)
+                    UNION
+                    (SELECT p.user_id FROM diet.user_profiles p
+                     JOIN diet.users pu ON pu.id = p.user_id
+                     WHERE (:q <% ({name}) OR ({name}) ILIKE :pattern
+                        OR p.mobile_number ILIKE :pattern OR p.pincode ILIKE :pattern
+                        OR :q <% p.state OR p.state ILIKE :pattern){profilesRole}
+                     ORDER BY GREATEST(word_similarity(:q, {name}),
+                                       word_similarity(:q, COALESCE(p.mobile_number, '')),
+                                       word_similarity(:q, COALESCE(p.pincode, '')),
+                                       word_similarity(:q, COALESCE(p.state, ''))) DESC, p.user_id
+                     LIMIT :maxMatches)
+                ),
+                ranked AS (
+                    SELECT u.id, u.email_search, u.full_name, r.role_code, r.role_name,
+                           u.is_active, u.email_verified, u.created_date,
+                           GREATEST(word_similarity(:q, COALESCE(u.full_name, '')),
+                                    word_similarity(:q, {name}),
+                                    word_similarity(:q, COALESCE(p.mobile_number, '')),
+                                    word_similarity(:q, COALESCE(p.pincode, '')),
+                                    word_similarity(:q, COALESCE(p.state, ''))) AS score
+                    FROM matches m
+                    JOIN diet.users u ON u.id = m.id
+                    JOIN diet.roles r ON r.id = u.role_id
+                    LEFT JOIN diet.user_profiles p ON p.user_id = u.id
+                    ORDER BY score DESC, u.id
+                    LIMIT :maxMatches
+                )
+                SELECT * FROM ranked WHERE 1 = 1
+                """.replace("{usersRole}", roleFilter.replace("{alias}", "u."))
+                .replace("{profilesRole}", roleFilter.replace("{alias}", "pu."))
+                .replace("{name}", profileName("p.")));
+        if (after != null) {
+            query.append(" AND (score < :afterScore OR (score = :afterScore AND id > :afterId))");
+        }
+        // One extra row tells whether another page exists
+        query.append(" ORDER BY score DESC, id LIMIT :limit");
+
+        Query dataQ = entityManager.createNativeQuery(query.toString());
+        dataQ.setParameter("q", q);
+        dataQ.setParameter("pattern", "%" + escapeLike(q) + "%");
+        dataQ.setParameter("maxMatches", MAX_SEARCH_MATCHES);
+        dataQ.setParameter("limit", pageSize + 1);
+        if (filterByRole) {
+            dataQ.setParameter("role", role.toUpperCase());
+        }
+        if (after != null) {
+            dataQ.setParameter("afterScore", after.score());
+            dataQ.setParameter("afterId", after.id());
+        }
+
+        @SuppressWarnings("unchecked")
+        List<Object[]> results = dataQ.getResultList();
+
+        boolean hasMore = results.size() > pageSize;
+        List<Object[]> pageRows = hasMore ? results.subList(0, pageSize) : results;
+        List<UserSummary> summaries = pageRows.stream()
+                .map(this::toUserSummary)
                 .collect(Collectors.toList());
 
-        return new org.springframework.data.domain.PageImpl<>(summaries, pageable, totalCount);
+        String nextCursor = null;
+        if (hasMore) {
+            Object[] last = pageRows.get(pageRows.size() - 1);
+            nextCursor = new RankedCursor(((Number) last[8]).floatValue(), ((Number) last[0]).longValue()).encode();
+        }
+        return new CursorPage<>(summaries, nextCursor, hasMore);
+    }
+
+    /**
+     * Profile full name, the same expression as idx_user_profiles_name_trgm so the index can be used
+     */
+    private static String profileName(String alias) {
+        return "COALESCE(" + alias + "first_name, '') || ' ' || COALESCE(" + alias + "middle_name, '') || ' ' || COALESCE("
+                + alias + "last_name, '')";
+    }
+
+    private static String escapeLike(String value) {
+        return value.replace("\\", "\\\\").replace("%", "\\%").replace("_", "\\_");
+    }
+
+    /**
+     * Number of users per role code, read from the trigger-maintained user_role_counts table.
+     */
+    @Transactional(readOnly = true)
+    public Map<String, Long> getUserCountsByRole() {
+        @SuppressWarnings("unchecked")
+        List<Object[]> rows = entityManager.createNativeQuery("""
+                SELECT r.role_code, COALESCE(c.user_count, 0)
+                FROM diet.roles r
+                LEFT JOIN diet.user_role_counts c ON c.role_id = r.id
+                ORDER BY r.role_code
+                """).getResultList();
+
+        Map<String, Long> counts = new LinkedHashMap<>();
+        for (Object[] row : rows) {
+            counts.put((String) row[0], ((Number) row[1]).longValue());
+        }
+        return counts;
+    }
+
+    private long countUsers(String role) {
+        Query countQ;
+        if (role != null && !role.isEmpty()) {
+            countQ = entityManager.createNativeQuery("""
+                    SELECT COALESCE(SUM(c.user_count), 0)
+                    FROM diet.user_role_counts c
+                    JOIN diet.roles r ON r.id = c.role_id
+                    WHERE r.role_code = :role
+                    """);
+            countQ.setParameter("role", role.toUpperCase());
+        } else {
+            countQ = entityManager.createNativeQuery("SELECT COALESCE(SUM(user_count), 0) FROM diet.user_role_counts");
+        }
+        return ((Number) countQ.getSingleResult()).longValue();
+    }
+
+    private UserSummary toUserSummary(Object[] row) {
+        return UserSummary.builder()
+                .id(((Number) row[0]).longValue())
+                // Email is encrypted, use a placeholder or hash
+                .email("***@" + ((String) row[1]).substring(0, 8) + "...") // Show partial hash as identifier
+                .fullName((String) row[2])
+                .roleCode((String) row[3])
+                .roleName((String) row[4])
+                .isActive((Boolean) row[5])
+                .emailVerified((Boolean) row[6])
+                .createdDate(row[7] != null ? ((java.sql.Timestamp) row[7]).toLocalDateTime() : null)
+                .build();
+    }
+
+    /**
+     * Version of a user's admin view for conditional GETs, or null if the user does not exist.
+     * Covers the user, profile and role rows the response is built from.
+     */
+    @Transactional(readOnly = true)
+    public ResourceVersion getUserVersion(Long userId) {
+        List<?> rows = entityManager.createNativeQuery("""
+                SELECT u.id, GREATEST(u.created_date, u.modified_date, up.created_date, up.modified_date,
+                                      r.created_date, r.modified_date)
+                FROM diet.users u
+                JOIN diet.roles r ON u.role_id = r.id
+                LEFT JOIN diet.user_profiles up ON u.id = up.user_id
+                WHERE u.id = :userId
+                """)
+                .setParameter("userId", userId)
+                .getResultList();
+        return rows.isEmpty() ? null : ResourceVersion.fromRow((Object[]) rows.get(0));
     }
 
     /**
@@ -121,7 +340,7 @@ public class AdminService {
     public UserResponse getUserById(Long userId) {
         String query = """
             SELECT u.id, u.email_search, u.full_name, r.id, r.role_code, r.role_name,
-                   u.is_active, u.email_verified, up.profile_photo_url, u.created_date
+                   u.is_active, u.email_verified, up.profile_photo_url, u.created_date, up.profile_photo_key
             FROM diet.users u
             JOIN diet.roles r ON u.role_id = r.id
             LEFT JOIN diet.user_profiles up ON u.id = up.user_id
@@ -157,6 +376,7 @@ public class AdminService {
                 .isActive((Boolean) row[6])
                 .emailVerified((Boolean) row[7])
                 .profilePictureUrl((String) row[8])
+                .profilePictureSizes(ProfilePhotoDerivativeService.derivativeUrls((String) row[10]))
                 .createdDate(row[9] != null ? ((java.sql.Timestamp) row[9]).toLocalDateTime() : null)
                 .actions(actionCodes)
                 .build();
@@ -256,6 +476,10 @@ public class AdminService {
             updateSql.append(", full_name = :fullName");
         }
         if (request.getRole() != null) {
+            // A role change revokes the user's access tokens
+            updateSql.append(", security_epoch = CASE WHEN role_id IS DISTINCT FROM "
+                    + "(SELECT id FROM diet.roles WHERE role_code = :roleCode) "
+                    + "THEN security_epoch + 1 ELSE security_epoch END");
             updateSql.append(", role_id = (SELECT id FROM diet.roles WHERE role_code = :roleCode)");
         }
         updateSql.append(" WHERE id = :userId");
@@ -270,6 +494,9 @@ public class AdminService {
         }
 
         query.executeUpdate();
+        principalCache.evictUser(userId);
+        securityEpochRegistry.evict(userId);
+        profileResponseCache.evict(userId);
 
         log.info("User updated: {}", userId);
         return getUserById(userId);
@@ -283,7 +510,8 @@ public class AdminService {
         log.info("{} user: {}", active ? "Activating" : "Deactivating", userId);
 
         int updated = entityManager.createNativeQuery(
-                "UPDATE diet.users SET is_active = :active, modified_date = now() WHERE id = :userId")
+                "UPDATE diet.users SET is_active = :active, security_epoch = security_epoch + 1, "
+                        + "modified_date = now() WHERE id = :userId")
                 .setParameter("active", active)
                 .setParameter("userId", userId)
                 .executeUpdate();
@@ -291,6 +519,8 @@ public class AdminService {
         if (updated == 0) {
             throw new ResourceNotFoundException("User not found with id: " + userId);
         }
+        principalCache.evictUser(userId);
+        securityEpochRegistry.evict(userId);
 
         String message = active ? "User activated successfully" : "User deactivated successfully";
         log.info(message);
@@ -321,10 +551,13 @@ public class AdminService {
 
         // Update password
         entityManager.createNativeQuery(
-                "UPDATE diet.users SET password = :password, modified_date = now() WHERE id = :userId")
+                "UPDATE diet.users SET password = :password, security_epoch = security_epoch + 1, "
+                        + "modified_date = now() WHERE id = :userId")
                 .setParameter("password", hashedPassword)
                 .setParameter("userId", userId)
                 .executeUpdate();
+        principalCache.evictUser(userId);
+        securityEpochRegistry.evict(userId);
 
         // Create password reset token
         PasswordResetToken resetToken = PasswordResetToken.builder()
@@ -391,6 +624,11 @@ public class AdminService {
         Role role = roleRepository.findById(roleId)
                 .orElseThrow(() -> new ResourceNotFoundException("Role not found with id: " + roleId));
 
+        // Touch the role so conditional GETs of its users see the changed actions
+        entityManager.createNativeQuery("UPDATE diet.roles SET modified_date = now() WHERE id = :roleId")
+                .setParameter("roleId", roleId)
+                .executeUpdate();
+
         // Delete existing role actions
         roleActionRepository.deleteByRoleId(roleId);
 
@@ -406,6 +644,9 @@ public class AdminService {
             roleActionRepository.saveAll(roleActions);
         }
 
+        // Permission caches are refreshed once this transaction commits
+        eventPublisher.publishEvent(new RoleActionsChangedEvent(roleId));
+
         log.info("Role actions updated for role: {}", roleId);
         return new MessageResponse("Role actions updated successfully");
     }
@@ -479,7 +720,7 @@ public class AdminService {
                 .build();
     }
 
-    private String generateTempPassword() {
+    static String generateTempPassword() {
         StringBuilder password = new StringBuilder(12);
         for (int i = 0; i < 12; i++) {
             password.append(TEMP_PASSWORD_CHARS.charAt(RANDOM.nextInt(TEMP_PASSWORD_CHARS.length())));
@@ -488,19 +729,8 @@ public class AdminService {
     }
 
     private void sendTempPasswordEmail(String email, String tempPassword, String fullName) {
-        String subject = "Your Dietician App Account";
-        String body = String.format(
-                "Hello %s,\n\n" +
-                "Your account has been created on the Dietician App.\n\n" +
-                "Email: %s\n" +
-                "Temporary Password: %s\n\n" +
-                "Please log in and change your password immediately.\n\n" +
-                "Best regards,\nDietician App Team",
-                fullName != null ? fullName : "User", email, tempPassword
-        );
-
         try {
-            emailService.sendEmail(email, subject, body);
+            emailService.sendAccountCreatedEmail(email, tempPassword, fullName);
             log.info("Temp password email sent to: {}", email);
         } catch (Exception e) {
             log.error("Failed to send temp password email to: {}", email, e);
@@ -508,19 +738,8 @@ public class AdminService {
     }
 
     private void sendPasswordResetEmail(String email, String tempPassword, String fullName) {
-        String subject = "Your Password Has Been Reset";
-        String body = String.format(
-                "Hello %s,\n\n" +
-                "Your password has been reset by an administrator.\n\n" +
-                "Email: %s\n" +
-                "New Temporary Password: %s\n\n" +
-                "Please log in and change your password immediately.\n\n" +
-                "Best regards,\nDietician App Team",
-                fullName != null ? fullName : "User", email, tempPassword
-        );
-
         try {
-            emailService.sendEmail(email, subject, body);
+            emailService.sendPasswordResetByAdminEmail(email, tempPassword, fullName);
             log.info("Password reset email sent to: {}", email);
         } catch (Exception e) {
             log.error("Failed to send password reset email to: {}", email, e);
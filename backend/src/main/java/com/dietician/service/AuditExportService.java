@@ -0,0 +1,244 @@
+package com.dietician.service;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Service;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.time.LocalDateTime;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Streams audit logs for a date range as CSV or NDJSON.
+ * Rows come from a Postgres server-side cursor with a fixed fetch size and are written straight to the
+ * response, so heap use does not depend on the size of the range. A client disconnect surfaces as an
+ * IOException on write, which closes the cursor and ends the export.
+ */
+@Slf4j
+@Service
+public class AuditExportService {
+
+    public enum Format {
+        CSV("text/csv", "csv"),
+        NDJSON("application/x-ndjson", "ndjson");
+
+        private final String contentType;
+        private final String extension;
+
+        Format(String contentType, String extension) {
+            this.contentType = contentType;
+            this.extension = extension;
+        }
+
+        public String getContentType() {
+            return contentType;
+        }
+
+        public String getExtension() {
+            return extension;
+        }
+
+        public static Format parse(String value) {
+            for (Format format : values()) {
+                if (format.name().equalsIgnoreCase(value)) {
+                    return format;
+                }
+            }
+            throw new IllegalArgumentException("Unsupported export format: " + value + ". Use csv or ndjson.");
+        }
+    }
+
+    private static final String CSV_HEADER = "id,table_name,record_id,action,changed_by,changed_date,"
+            + "ip_address,user_agent,field_name,old_value,new_value\n";
+
+    // One row per detail (or one row for a log without details); the join on changed_date prunes partitions
+    private static final String CSV_QUERY = """
+            SELECT l.id, l.table_name, l.record_id, l.action, l.changed_by, l.changed_date,
+                   l.ip_address, l.user_agent, d.field_name, d.old_value, d.new_value
+            FROM diet.audit_logs l
+            LEFT JOIN diet.audit_log_details d ON d.audit_log_id = l.id AND d.changed_date = l.changed_date
+            WHERE l.changed_date >= ? AND l.changed_date < ?
+            ORDER BY l.changed_date, l.id, d.id
+            """;
+
+    // One JSON document per log with its details, built by Postgres
+    private static final String NDJSON_QUERY = """
+            SELECT json_build_object(
+                'id', l.id, 'table_name', l.table_name, 'record_id', l.record_id, 'action', l.action,
+                'changed_by', l.changed_by, 'changed_date', l.changed_date,
+                'ip_address', l.ip_address, 'user_agent', l.user_agent,
+                'details', COALESCE((
+                    SELECT json_agg(json_build_object(
+                        'field_name', d.field_name, 'old_value', d.old_value, 'new_value', d.new_value)
+                        ORDER BY d.id)
+                    FROM diet.audit_log_details d
+                    WHERE d.audit_log_id = l.id AND d.changed_date = l.changed_date), '[]'::json))::text
+            FROM diet.audit_logs l
+            WHERE l.changed_date >= ? AND l.changed_date < ?
+            ORDER BY l.changed_date, l.id
+            """;
+
+    private final JdbcTemplate jdbcTemplate;
+    private final Semaphore exportSlots;
+    private final int fetchSize;
+
+    private final Counter rowsCounter;
+    private final Counter cancelledCounter;
+    private final Timer exportTimer;
+    private final DistributionSummary throughput;
+
+    public AuditExportService(JdbcTemplate jdbcTemplate,
+                              MeterRegistry meterRegistry,
+                              @Value("${app.audit.export.max-concurrent:2}") int maxConcurrent,
+                              @Value("${app.audit.export.fetch-size:1000}") int fetchSize) {
+        this.jdbcTemplate = jdbcTemplate;
+        this.exportSlots = new Semaphore(maxConcurrent);
+        this.fetchSize = fetchSize;
+
+        this.rowsCounter = Counter.builder("audit.export.rows")
+                .description("Rows written by audit exports")
+                .register(meterRegistry);
+        this.cancelledCounter = Counter.builder("audit.export.cancelled")
+                .description("Audit exports aborted by a client disconnect or error")
+                .register(meterRegistry);
+        this.exportTimer = Timer.builder("audit.export")
+                .description("Duration of audit exports")
+                .register(meterRegistry);
+        this.throughput = DistributionSummary.builder("audit.export.throughput")
+                .baseUnit("rows/s")
+                .description("Rows per second of completed audit exports")
+                .register(meterRegistry);
+    }
+
+    /**
+     * Reserve one of the export slots. Each running export holds a database connection,
+     * so the number of concurrent exports is capped.
+     *
+     * @return false if all slots are busy
+     */
+    public boolean tryAcquireSlot() {
+        return exportSlots.tryAcquire();
+    }
+
+    public void releaseSlot() {
+        exportSlots.release();
+    }
+
+    /**
+     * Write all audit logs in [from, to) to the stream.
+     *
+     * @return the number of rows written
+     */
+    public long export(LocalDateTime from, LocalDateTime to, Format format, boolean gzip, OutputStream out)
+            throws IOException {
+        long start = System.nanoTime();
+        long[] rows = {0};
+        try {
+            OutputStream target = gzip ? new GZIPOutputStream(out, 64 * 1024) : out;
+            Writer writer = new BufferedWriter(new OutputStreamWriter(target, StandardCharsets.UTF_8), 64 * 1024);
+
+            jdbcTemplate.execute((Connection connection) -> {
+                boolean autoCommit = connection.getAutoCommit();
+                // The driver only uses a server-side cursor inside a transaction
+                connection.setAutoCommit(false);
+                try (PreparedStatement statement = connection.prepareStatement(
+                        format == Format.CSV ? CSV_QUERY : NDJSON_QUERY)) {
+                    statement.setFetchSize(fetchSize);
+                    statement.setTimestamp(1, Timestamp.valueOf(from));
+                    statement.setTimestamp(2, Timestamp.valueOf(to));
+
+                    try (ResultSet resultSet = statement.executeQuery()) {
+                        if (format == Format.CSV) {
+                            writer.write(CSV_HEADER);
+                        }
+                        while (resultSet.next()) {
+                            if (format == Format.CSV) {
+                                writeCsvRow(writer, resultSet);
+                            } else {
+                                writer.write(resultSet.getString(1));
+                                writer.write('\n');
+                            }
+                            rows[0]++;
+                        }
+                    }
+                    connection.commit();
+                } catch (IOException e) {
+                    // Client went away: stop reading, the cursor is closed with the statement
+                    connection.rollback();
+                    throw new UncheckedIOException(e);
+                } finally {
+                    connection.setAutoCommit(autoCommit);
+                }
+                return null;
+            });
+
+            writer.flush();
+            if (gzip) {
+                ((GZIPOutputStream) target).finish();
+            }
+        } catch (UncheckedIOException e) {
+            cancelledCounter.increment();
+            log.warn("Audit export cancelled after {} rows: {}", rows[0], e.getCause().getMessage());
+            throw e.getCause();
+        } catch (RuntimeException e) {
+            cancelledCounter.increment();
+            log.error("Audit export failed after {} rows", rows[0], e);
+            throw e;
+        } finally {
+            rowsCounter.increment(rows[0]);
+        }
+
+        long elapsed = System.nanoTime() - start;
+        exportTimer.record(elapsed, TimeUnit.NANOSECONDS);
+        double rowsPerSecond = rows[0] / Math.max(elapsed / 1e9, 1e-3);
+        throughput.record(rowsPerSecond);
+        log.info("Audit export {} to {} ({}): {} rows in {} ms ({} rows/s)",
+                from, to, format, rows[0], elapsed / 1_000_000, Math.round(rowsPerSecond));
+        return rows[0];
+    }
+
+    private static void writeCsvRow(Writer writer, ResultSet resultSet) throws IOException, SQLException {
+        for (int column = 1; column <= 11; column++) {
+            if (column > 1) {
+                writer.write(',');
+            }
+            Object value = resultSet.getObject(column);
+            if (value instanceof Timestamp timestamp) {
+                writer.write(timestamp.toLocalDateTime().toString());
+            } else if (value != null) {
+                writeCsvValue(writer, value.toString());
+            }
+        }
+        writer.write('\n');
+    }
+
+    private static void writeCsvValue(Writer writer, String value) throws IOException {
+        boolean quote = value.indexOf(',') >= 0 || value.indexOf('"') >= 0
+                || value.indexOf('\n') >= 0 || value.indexOf('\r') >= 0;
+        if (!quote) {
+            writer.write(value);
+            return;
+        }
+        writer.write('"');
+        writer.write(value.replace("\"", "\"\""));
+        writer.write('"');
+    }
+}
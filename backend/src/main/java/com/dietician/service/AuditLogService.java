@@ -1,93 +1,82 @@
 package com.dietician.service;
 
-import com.dietician.model.AuditLog;
-import com.dietician.model.AuditLogDetail;
-import com.dietician.repository.AuditLogRepository;
-import com.dietician.repository.AuditLogDetailRepository;
-import lombok.RequiredArgsConstructor;
+import com.dietician.dto.AdminDto.AuditLogDetailEntry;
+import com.dietician.dto.AdminDto.AuditLogEntry;
+import com.dietician.dto.CursorPage;
+import com.dietician.util.KeysetCursor;
+import com.dietician.util.TransactionUtils;
+import jakarta.persistence.EntityManager;
+import jakarta.persistence.Query;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
-import org.springframework.transaction.annotation.Propagation;
 import org.springframework.transaction.annotation.Transactional;
 import org.springframework.web.context.request.RequestContextHolder;
 import org.springframework.web.context.request.ServletRequestAttributes;
 
 import jakarta.servlet.http.HttpServletRequest;
-import jakarta.persistence.PersistenceContext;
+import java.sql.Timestamp;
 import java.time.LocalDateTime;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 /**
- * Service for managing audit logs
+ * Service for managing audit logs.
+ * Events are captured on the caller's thread and handed to AuditLogWriter once the caller's
+ * transaction commits, so auditing no longer borrows a second pooled connection per event.
+ * Compliance-critical actions (app.audit.sync-actions) are written synchronously in the
+ * caller's transaction instead, so the change cannot commit without its audit row.
+ * Also serves the keyset-paginated admin audit search.
  */
 @Service
 @Slf4j
-@RequiredArgsConstructor
 public class AuditLogService {
 
-    private final AuditLogRepository auditLogRepository;
-    private final AuditLogDetailRepository auditLogDetailsRepository;
+    private static final int MAX_PAGE_SIZE = 200;
+
+    private final AuditLogWriter auditLogWriter;
+    private final EntityManager entityManager;
+    private final boolean synchronous;
+    private final Set<String> syncActions;
+
+    public AuditLogService(
+            AuditLogWriter auditLogWriter,
+            EntityManager entityManager,
+            @Value("${app.audit.mode:async}") String mode,
+            @Value("${app.audit.sync-actions:PASSWORD_CHANGE,EMAIL_CHANGE,DELETE}") Set<String> syncActions) {
+        this.auditLogWriter = auditLogWriter;
+        this.entityManager = entityManager;
+        this.synchronous = "sync".equalsIgnoreCase(mode);
+        this.syncActions = Set.copyOf(syncActions);
+    }
 
     /**
      * Create an audit log entry
      */
-    @Transactional(propagation = Propagation.REQUIRES_NEW)
-    public AuditLog createAuditLog(
+    public void createAuditLog(
             String tableName,
             Long recordId,
             String action,
             String username,
             Map<String, Object> changes) {
 
-        try {
-            HttpServletRequest request = getCurrentRequest();
-            String ipAddress = getClientIpAddress(request);
-            String userAgent = request != null ? request.getHeader("User-Agent") : null;
-
-            AuditLog auditLog = AuditLog.builder()
-                    .tableName(tableName)
-                    .recordId(recordId)
-                    .action(action)
-                    .changedBy(username)
-                    .ipAddress(ipAddress)
-                    .userAgent(userAgent)
-                    .build();
-
-            final AuditLog savedAuditLog = auditLogRepository.save(auditLog);
-
-            // Add details if changes provided
-            if (changes != null && !changes.isEmpty()) {
-                List<AuditLogDetail> detailList = new ArrayList<>();
-                changes.forEach((field, value) -> {
-                    String valueStr = value != null ? value.toString() : null;
-                    AuditLogDetail detail = AuditLogDetail.builder()
-                            .auditLog(savedAuditLog)
-                            .fieldName(field)
-                            .oldValue(null)
-                            .newValue(valueStr)
-                            .build();
-                    detailList.add(detail);
-                });
-                auditLogDetailsRepository.saveAll(detailList);
-            }
-
-            log.info("Audit log created: {} {} {} by {}", action, tableName, recordId, username);
-            return savedAuditLog;
-
-        } catch (Exception e) {
-            log.error("Failed to create audit log", e);
-            // Don't throw - audit logging failures shouldn't break the main operation
-            return null;
+        List<AuditLogWriter.AuditEvent.Detail> details = new ArrayList<>();
+        if (changes != null) {
+            changes.forEach((field, value) ->
+                    details.add(new AuditLogWriter.AuditEvent.Detail(field, null, value != null ? value.toString() : null)));
         }
+
+        record(tableName, recordId, action, username, details);
     }
 
     /**
      * Create an audit log entry with old and new values
      */
-    @Transactional(propagation = Propagation.REQUIRES_NEW)
-    public AuditLog createAuditLogWithChanges(
+    public void createAuditLogWithChanges(
             String tableName,
             Long recordId,
             String action,
@@ -95,50 +84,171 @@ public class AuditLogService {
             Map<String, Object> oldValues,
             Map<String, Object> newValues) {
 
-        try {
-            HttpServletRequest request = getCurrentRequest();
-            String ipAddress = getClientIpAddress(request);
-            String userAgent = request != null ? request.getHeader("User-Agent") : null;
-
-            AuditLog auditLog = AuditLog.builder()
-                    .tableName(tableName)
-                    .recordId(recordId)
-                    .action(action)
-                    .changedBy(username)
-                    .ipAddress(ipAddress)
-                    .userAgent(userAgent)
+        // Add field-level details
+        List<AuditLogWriter.AuditEvent.Detail> details = new ArrayList<>();
+        if (newValues != null) {
+            newValues.forEach((field, newValue) -> {
+                Object oldValueObj = oldValues != null ? oldValues.get(field) : null;
+                String oldValueStr = oldValueObj != null ? oldValueObj.toString() : null;
+                String oldValueFinal = oldValueStr != null ? oldValueStr : "";
+
+                String newValueStr = newValue != null ? newValue.toString() : "";
+                String newValueFinal = !newValueStr.isEmpty() ? newValueStr : null;
+
+                details.add(new AuditLogWriter.AuditEvent.Detail(field, oldValueFinal, newValueFinal));
+            });
+        }
+
+        record(tableName, recordId, action, username, details);
+    }
+
+    private void record(String tableName, Long recordId, String action, String username,
+                        List<AuditLogWriter.AuditEvent.Detail> details) {
+        // Request headers are only reachable from the request thread, so capture them now
+        HttpServletRequest request = getCurrentRequest();
+        String ipAddress = getClientIpAddress(request);
+        String userAgent = request != null ? request.getHeader("User-Agent") : null;
+
+        AuditLogWriter.AuditEvent event = new AuditLogWriter.AuditEvent(
+                tableName, recordId, action, username, LocalDateTime.now(), ipAddress, userAgent, details);
+
+        if (synchronous || syncActions.contains(action)) {
+            // Failures propagate: a compliance-critical change must not commit without its audit row
+            auditLogWriter.write(event);
+            log.info("Audit log created: {} {} {} by {}", action, tableName, recordId, username);
+            return;
+        }
+
+        TransactionUtils.afterCommit(() -> {
+            if (auditLogWriter.submit(event)) {
+                log.info("Audit log queued: {} {} {} by {}", action, tableName, recordId, username);
+            }
+        });
+    }
+
+    /**
+     * Search audit logs, newest first, with keyset pagination on (changed_date, id).
+     * Every filter is optional; each page costs one index range scan plus one batched details fetch.
+     *
+     * @param cursor nextCursor of the previous page, or null for the first page
+     */
+    @Transactional(readOnly = true)
+    public CursorPage<AuditLogEntry> searchAuditLogs(String tableName, Long recordId, String action, String changedBy,
+                                                     LocalDateTime from, LocalDateTime to, String cursor, int size) {
+        int pageSize = Math.max(1, Math.min(size, MAX_PAGE_SIZE));
+        KeysetCursor after = KeysetCursor.decode(cursor);
+
+        StringBuilder sql = new StringBuilder("""
+                SELECT id, table_name, record_id, action, changed_by, changed_date, ip_address, user_agent
+                FROM diet.audit_logs
+                WHERE 1 = 1
+                """);
+        Map<String, Object> params = new HashMap<>();
+        if (tableName != null && !tableName.isBlank()) {
+            sql.append(" AND table_name = :tableName");
+            params.put("tableName", tableName);
+        }
+        if (recordId != null) {
+            sql.append(" AND record_id = :recordId");
+            params.put("recordId", recordId);
+        }
+        if (action != null && !action.isBlank()) {
+            sql.append(" AND action = :action");
+            params.put("action", action.toUpperCase());
+        }
+        if (changedBy != null && !changedBy.isBlank()) {
+            sql.append(" AND changed_by = :changedBy");
+            params.put("changedBy", changedBy);
+        }
+        if (from != null) {
+            sql.append(" AND changed_date >= :from");
+            params.put("from", from);
+        }
+        if (to != null) {
+            sql.append(" AND changed_date < :to");
+            params.put("to", to);
+        }
+        if (after != null) {
+            sql.append(" AND (changed_date, id) < (:afterDate, :afterId)");
+            params.put("afterDate", after.timestamp());
+            params.put("afterId", after.id());
+        }
+        // One extra row tells whether another page exists
+        sql.append(" ORDER BY changed_date DESC, id DESC LIMIT :limit");
+        params.put("limit", pageSize + 1);
+
+        Query query = entityManager.createNativeQuery(sql.toString());
+        params.forEach(query::setParameter);
+
+        @SuppressWarnings("unchecked")
+        List<Object[]> rows = query.getResultList();
+
+        boolean hasMore = rows.size() > pageSize;
+        if (hasMore) {
+            rows = rows.subList(0, pageSize);
+        }
+
+        Map<Long, AuditLogEntry> entries = new LinkedHashMap<>();
+        AuditLogEntry last = null;
+        for (Object[] row : rows) {
+            last = AuditLogEntry.builder()
+                    .id(((Number) row[0]).longValue())
+                    .tableName((String) row[1])
+                    .recordId(((Number) row[2]).longValue())
+                    .action((String) row[3])
+                    .changedBy((String) row[4])
+                    .changedDate(((Timestamp) row[5]).toLocalDateTime())
+                    .ipAddress((String) row[6])
+                    .userAgent((String) row[7])
+                    .details(new ArrayList<>())
                     .build();
+            entries.put(last.getId(), last);
+        }
+
+        loadDetails(entries);
 
-            final AuditLog savedAuditLog = auditLogRepository.save(auditLog);
-
-            // Add field-level details
-            if (newValues != null) {
-                List<AuditLogDetail> detailList = new ArrayList<>();
-                newValues.forEach((field, newValue) -> {
-                    Object oldValueObj = oldValues != null ? oldValues.get(field) : null;
-                    String oldValueStr = oldValueObj != null ? oldValueObj.toString() : null;
-                    String oldValueFinal = oldValueStr != null ? oldValueStr : "";
-
-                    String newValueStr = newValue != null ? newValue.toString() : "";
-                    String newValueFinal = !newValueStr.isEmpty() ? newValueStr : null;
-
-                    AuditLogDetail detail = AuditLogDetail.builder()
-                            .auditLog(savedAuditLog)
-                            .fieldName(field)
-                            .oldValue(oldValueFinal)
-                            .newValue(newValueFinal)
-                            .build();
-                    detailList.add(detail);
-                });
-                auditLogDetailsRepository.saveAll(detailList);
+        String nextCursor = hasMore && last != null
+                ? new KeysetCursor(last.getChangedDate(), last.getId()).encode()
+                : null;
+        return new CursorPage<>(new ArrayList<>(entries.values()), nextCursor, hasMore);
+    }
+
+    /**
+     * Fetch the details of a whole page in one query.
+     * The changed_date bounds of the page let Postgres prune audit_log_details partitions.
+     */
+    private void loadDetails(Map<Long, AuditLogEntry> entries) {
+        if (entries.isEmpty()) {
+            return;
+        }
+        LocalDateTime minDate = null;
+        LocalDateTime maxDate = null;
+        for (AuditLogEntry entry : entries.values()) {
+            if (minDate == null || entry.getChangedDate().isBefore(minDate)) {
+                minDate = entry.getChangedDate();
+            }
+            if (maxDate == null || entry.getChangedDate().isAfter(maxDate)) {
+                maxDate = entry.getChangedDate();
             }
+        }
 
-            log.info("Audit log created: {} {} {} by {}", action, tableName, recordId, username);
-            return savedAuditLog;
+        @SuppressWarnings("unchecked")
+        List<Object[]> rows = entityManager.createNativeQuery("""
+                SELECT audit_log_id, field_name, old_value, new_value
+                FROM diet.audit_log_details
+                WHERE audit_log_id IN (:ids) AND changed_date BETWEEN :minDate AND :maxDate
+                ORDER BY audit_log_id, id
+                """)
+                .setParameter("ids", entries.keySet())
+                .setParameter("minDate", minDate)
+                .setParameter("maxDate", maxDate)
+                .getResultList();
 
-        } catch (Exception e) {
-            log.error("Failed to create audit log", e);
-            return null;
+        for (Object[] row : rows) {
+            AuditLogEntry entry = entries.get(((Number) row[0]).longValue());
+            if (entry != null) {
+                entry.getDetails().add(new AuditLogDetailEntry((String) row[1], (String) row[2], (String) row[3]));
+            }
         }
     }
 
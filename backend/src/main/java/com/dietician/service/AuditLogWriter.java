@@ -0,0 +1,322 @@
+package com.dietician.service;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.sql.Timestamp;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Batched writer for audit_logs / audit_log_details.
+ * Events are queued in a bounded lock-free queue and written by a single writer thread as
+ * multi-row inserts, once a batch fills up or the flush interval elapses. When the queue is
+ * full new events are dropped and counted rather than blocking the request thread; the writer thread
+ * logs one warning per flush interval with the number dropped since the last one.
+ * write() inserts synchronously on the caller's thread, joining the caller's transaction if there is one.
+ */
+@Slf4j
+@Component
+public class AuditLogWriter {
+
+    private static final String[] LOG_COLUMNS =
+            {"id", "table_name", "record_id", "action", "changed_by", "changed_date", "ip_address", "user_agent"};
+    private static final String[] DETAIL_COLUMNS =
+            {"id", "audit_log_id", "changed_date", "field_name", "old_value", "new_value"};
+    // Must match the sequences' INCREMENT BY and the entities' allocationSize (pooled-lo)
+    private static final int ID_BLOCK_SIZE = 50;
+    // Postgres allows at most 65535 bind parameters per statement
+    private static final int MAX_ROWS_PER_STATEMENT = 1000;
+
+    private final JdbcTemplate jdbcTemplate;
+    private final TransactionTemplate writeTransaction;
+    private final TransactionTemplate callerTransaction;
+    private final ConcurrentLinkedQueue<AuditEvent> queue = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger queued = new AtomicInteger();
+    private final AtomicLong droppedSinceWarning = new AtomicLong();
+
+    private final int capacity;
+    private final int batchSize;
+    private final long flushIntervalNanos;
+
+    private final Counter writtenCounter;
+    private final Counter droppedCounter;
+    private final Counter failedCounter;
+    private final Timer flushTimer;
+
+    private volatile boolean running;
+    private Thread writerThread;
+
+    public AuditLogWriter(JdbcTemplate jdbcTemplate,
+                          PlatformTransactionManager transactionManager,
+                          MeterRegistry meterRegistry,
+                          @Value("${app.audit.queue-capacity:10000}") int capacity,
+                          @Value("${app.audit.batch-size:200}") int batchSize,
+                          @Value("${app.audit.flush-interval-ms:500}") long flushIntervalMillis) {
+        this.jdbcTemplate = jdbcTemplate;
+        this.writeTransaction = new TransactionTemplate(transactionManager);
+        this.writeTransaction.setPropagationBehavior(TransactionDefinition.PROPAGATION_REQUIRES_NEW);
+        this.callerTransaction = new TransactionTemplate(transactionManager);
+        this.capacity = capacity;
+        this.batchSize = Math.max(1, batchSize);
+        this.flushIntervalNanos = TimeUnit.MILLISECONDS.toNanos(flushIntervalMillis);
+
+        this.writtenCounter = Counter.builder("audit.events")
+                .tag("result", "written")
+                .description("Audit events written to the database")
+                .register(meterRegistry);
+        this.droppedCounter = Counter.builder("audit.events")
+                .tag("result", "dropped")
+                .description("Audit events dropped because the queue was full")
+                .register(meterRegistry);
+        this.failedCounter = Counter.builder("audit.events")
+                .tag("result", "failed")
+                .description("Audit events lost because the insert failed")
+                .register(meterRegistry);
+        this.flushTimer = Timer.builder("audit.flush")
+                .description("Time taken to write one batch of audit events")
+                .register(meterRegistry);
+        Gauge.builder("audit.queue.size", queued, AtomicInteger::get)
+                .description("Audit events waiting to be written")
+                .register(meterRegistry);
+    }
+
+    @PostConstruct
+    public void start() {
+        running = true;
+        writerThread = new Thread(this::runWriter, "audit-writer");
+        writerThread.setDaemon(true);
+        writerThread.start();
+        log.info("AuditLogWriter started with capacity: {}, batch size: {}, flush interval: {} ms",
+                capacity, batchSize, TimeUnit.NANOSECONDS.toMillis(flushIntervalNanos));
+    }
+
+    /**
+     * Stop the writer thread and write whatever is still queued.
+     */
+    @PreDestroy
+    public void stop() throws InterruptedException {
+        running = false;
+        LockSupport.unpark(writerThread);
+        writerThread.join(TimeUnit.SECONDS.toMillis(10));
+        flushAll();
+    }
+
+    /**
+     * Queue an event for the writer thread.
+     *
+     * @return false if the queue was full and the event was dropped
+     */
+    public boolean submit(AuditEvent event) {
+        int size = queued.incrementAndGet();
+        if (size > capacity) {
+            queued.decrementAndGet();
+            droppedCounter.increment();
+            droppedSinceWarning.incrementAndGet();
+            return false;
+        }
+
+        queue.offer(event);
+        if (size >= batchSize) {
+            LockSupport.unpark(writerThread);
+        }
+        return true;
+    }
+
+    /**
+     * Write an event synchronously on the caller's thread.
+     * Joins the caller's transaction, so the audit row commits or rolls back with the change itself.
+     */
+    public void write(AuditEvent event) {
+        callerTransaction.executeWithoutResult(status -> insert(List.of(event)));
+        writtenCounter.increment();
+    }
+
+    private void runWriter() {
+        while (running) {
+            long deadline = System.nanoTime() + flushIntervalNanos;
+            while (running && queued.get() < batchSize) {
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    break;
+                }
+                LockSupport.parkNanos(this, remaining);
+            }
+
+            warnDropped();
+            try {
+                flushAll();
+            } catch (Exception e) {
+                // Never let the writer thread die
+                log.error("Audit writer flush failed", e);
+            }
+        }
+        warnDropped();
+    }
+
+    private void warnDropped() {
+        long dropped = droppedSinceWarning.getAndSet(0);
+        if (dropped > 0) {
+            log.warn("Audit queue full, dropped {} events since the last warning", dropped);
+        }
+    }
+
+    private void flushAll() {
+        List<AuditEvent> batch = drain();
+        while (!batch.isEmpty()) {
+            flush(batch);
+            batch = drain();
+        }
+    }
+
+    private List<AuditEvent> drain() {
+        List<AuditEvent> batch = new ArrayList<>(Math.min(batchSize, Math.max(queued.get(), 1)));
+        AuditEvent event;
+        while (batch.size() < batchSize && (event = queue.poll()) != null) {
+            queued.decrementAndGet();
+            batch.add(event);
+        }
+        return batch;
+    }
+
+    private void flush(List<AuditEvent> batch) {
+        long start = System.nanoTime();
+        try {
+            writeTransaction.executeWithoutResult(status -> insert(batch));
+            writtenCounter.increment(batch.size());
+        } catch (Exception e) {
+            log.warn("Audit batch of {} events failed, retrying one by one: {}", batch.size(), e.getMessage());
+            // Isolate the offending event instead of losing the whole batch
+            for (AuditEvent event : batch) {
+                try {
+                    writeTransaction.executeWithoutResult(status -> insert(List.of(event)));
+                    writtenCounter.increment();
+                } catch (Exception single) {
+                    failedCounter.increment();
+                    log.error("Failed to write audit event: {} {} {} by {}",
+                            event.action(), event.tableName(), event.recordId(), event.changedBy(), single);
+                }
+            }
+        } finally {
+            flushTimer.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    /**
+     * Insert events and their details with one multi-row statement per table (per chunk).
+     * Ids are taken from the sequences up front so details can reference them without RETURNING.
+     */
+    private void insert(List<AuditEvent> events) {
+        List<Long> ids = allocateIds("diet.audit_logs_id_seq", events.size());
+        int detailCount = events.stream().mapToInt(event -> event.details().size()).sum();
+        List<Long> detailIds = allocateIds("diet.audit_log_details_id_seq", detailCount);
+
+        List<Object[]> logRows = new ArrayList<>(events.size());
+        List<Object[]> detailRows = new ArrayList<>();
+        for (int i = 0; i < events.size(); i++) {
+            AuditEvent event = events.get(i);
+            Long id = ids.get(i);
+            Timestamp changedDate = Timestamp.valueOf(event.changedDate());
+            logRows.add(new Object[]{
+                    id,
+                    truncate(event.tableName(), 50),
+                    event.recordId(),
+                    truncate(event.action(), 20),
+                    truncate(event.changedBy() != null ? event.changedBy() : "SYSTEM", 100),
+                    changedDate,
+                    truncate(event.ipAddress(), 45),
+                    truncate(event.userAgent(), 255)
+            });
+            for (AuditEvent.Detail detail : event.details()) {
+                detailRows.add(new Object[]{detailIds.get(detailRows.size()), id, changedDate,
+                        truncate(detail.fieldName(), 50), detail.oldValue(), detail.newValue()});
+            }
+        }
+
+        insertRows("diet.audit_logs", LOG_COLUMNS, logRows);
+        insertRows("diet.audit_log_details", DETAIL_COLUMNS, detailRows);
+    }
+
+    /**
+     * Allocate ids the same way Hibernate's pooled-lo optimizer does: each nextval reserves
+     * [value, value + ID_BLOCK_SIZE - 1], so these ids never collide with entity inserts.
+     */
+    private List<Long> allocateIds(String sequence, int count) {
+        if (count == 0) {
+            return List.of();
+        }
+        int blocks = (count + ID_BLOCK_SIZE - 1) / ID_BLOCK_SIZE;
+        List<Long> blockStarts = jdbcTemplate.queryForList(
+                "SELECT nextval('" + sequence + "') FROM generate_series(1, ?)", Long.class, blocks);
+
+        List<Long> ids = new ArrayList<>(count);
+        for (Long start : blockStarts) {
+            for (int i = 0; i < ID_BLOCK_SIZE && ids.size() < count; i++) {
+                ids.add(start + i);
+            }
+        }
+        return ids;
+    }
+
+    private void insertRows(String table, String[] columns, List<Object[]> rows) {
+        for (int from = 0; from < rows.size(); from += MAX_ROWS_PER_STATEMENT) {
+            List<Object[]> chunk = rows.subList(from, Math.min(from + MAX_ROWS_PER_STATEMENT, rows.size()));
+
+            String placeholders = "(" + String.join(", ", Collections.nCopies(columns.length, "?")) + ")";
+            StringBuilder sql = new StringBuilder("INSERT INTO ").append(table)
+                    .append(" (").append(String.join(", ", columns)).append(") VALUES ");
+            Object[] args = new Object[chunk.size() * columns.length];
+            for (int row = 0; row < chunk.size(); row++) {
+                if (row > 0) {
+                    sql.append(", ");
+                }
+                sql.append(placeholders);
+                System.arraycopy(chunk.get(row), 0, args, row * columns.length, columns.length);
+            }
+            jdbcTemplate.update(sql.toString(), args);
+        }
+    }
+
+    private static String truncate(String value, int maxLength) {
+        return value != null && value.length() > maxLength ? value.substring(0, maxLength) : value;
+    }
+
+    /**
+     * Immutable audit event, captured on the request thread.
+     */
+    public record AuditEvent(
+            String tableName,
+            Long recordId,
+            String action,
+            String changedBy,
+            LocalDateTime changedDate,
+            String ipAddress,
+            String userAgent,
+            List<Detail> details) {
+
+        public AuditEvent {
+            details = details != null ? List.copyOf(details) : List.of();
+        }
+
+        public record Detail(String fieldName, String oldValue, String newValue) {
+        }
+    }
+}
@@ -0,0 +1,244 @@
+package com.dietician.service;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.LocalDate;
+import java.time.YearMonth;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Maintenance of the monthly audit_logs / audit_log_details partitions (see V8 migration).
+ * Creates partitions ahead of time, and retires months older than the retention period:
+ * detach, export to gzip-compressed NDJSON (one audit log with its details per line), then drop.
+ * Each step is idempotent, so a run interrupted after detaching picks up where it stopped.
+ */
+@Slf4j
+@Service
+public class AuditPartitionMaintenance {
+
+    private static final Pattern PARTITION_NAME = Pattern.compile("audit_logs_y(\\d{4})m(\\d{2})");
+    // Arbitrary key for pg_try_advisory_lock, so only one node maintains partitions at a time
+    private static final long ADVISORY_LOCK_KEY = 0x617564697470L;
+    private static final int EXPORT_FETCH_SIZE = 1000;
+
+    private final JdbcTemplate jdbcTemplate;
+
+    @Value("${app.audit.partitions.months-ahead:3}")
+    private int monthsAhead;
+
+    @Value("${app.audit.partitions.retention-months:12}")
+    private int retentionMonths;
+
+    @Value("${app.audit.partitions.archive-dir:./archive/audit}")
+    private String archiveDir;
+
+    public AuditPartitionMaintenance(JdbcTemplate jdbcTemplate) {
+        this.jdbcTemplate = jdbcTemplate;
+    }
+
+    /**
+     * Make sure the current month's partition exists as soon as the application starts.
+     */
+    @EventListener(ApplicationReadyEvent.class)
+    public void onApplicationReady() {
+        maintain();
+    }
+
+    @Scheduled(cron = "${app.audit.partitions.cron:0 30 2 * * *}")
+    public void maintain() {
+        try {
+            jdbcTemplate.execute((Connection connection) -> {
+                if (!tryLock(connection)) {
+                    log.info("Audit partition maintenance already running elsewhere, skipping");
+                    return null;
+                }
+                try {
+                    createUpcomingPartitions(connection);
+                    retireExpiredPartitions(connection);
+                } catch (IOException e) {
+                    throw new UncheckedIOException("Failed to archive audit partition", e);
+                } finally {
+                    unlock(connection);
+                }
+                return null;
+            });
+        } catch (Exception e) {
+            log.error("Audit partition maintenance failed", e);
+        }
+    }
+
+    private void createUpcomingPartitions(Connection connection) throws SQLException {
+        LocalDate thisMonth = YearMonth.now().atDay(1);
+        try (PreparedStatement statement = connection.prepareStatement("SELECT diet.ensure_audit_partitions(?, ?)")) {
+            statement.setObject(1, thisMonth);
+            statement.setObject(2, thisMonth.plusMonths(monthsAhead));
+            try (ResultSet resultSet = statement.executeQuery()) {
+                resultSet.next();
+                int created = resultSet.getInt(1);
+                if (created > 0) {
+                    log.info("Created {} monthly audit partitions", created);
+                }
+            }
+        }
+    }
+
+    private void retireExpiredPartitions(Connection connection) throws SQLException, IOException {
+        YearMonth oldestKept = YearMonth.now().minusMonths(retentionMonths);
+
+        for (YearMonth month : findPartitionMonths(connection)) {
+            if (!month.isBefore(oldestKept)) {
+                continue;
+            }
+            String suffix = String.format("y%04dm%02d", month.getYear(), month.getMonthValue());
+            String logsTable = "audit_logs_" + suffix;
+            String detailsTable = "audit_log_details_" + suffix;
+
+            long start = System.nanoTime();
+            detachIfAttached(connection, "audit_log_details", detailsTable);
+            detachIfAttached(connection, "audit_logs", logsTable);
+
+            long rows = export(connection, logsTable, detailsTable);
+
+            // One statement, so the pair is never half dropped
+            try (Statement statement = connection.createStatement()) {
+                statement.execute("DROP TABLE IF EXISTS diet." + detailsTable + ", diet." + logsTable);
+            }
+            log.info("Archived and dropped audit partition {}: {} logs in {} ms",
+                    suffix, rows, (System.nanoTime() - start) / 1_000_000);
+        }
+    }
+
+    /**
+     * Months of all monthly audit_logs partitions, attached or left detached by an interrupted run.
+     */
+    private List<YearMonth> findPartitionMonths(Connection connection) throws SQLException {
+        List<YearMonth> months = new ArrayList<>();
+        try (PreparedStatement statement = connection.prepareStatement("""
+                SELECT c.relname
+                FROM pg_class c
+                JOIN pg_namespace n ON n.oid = c.relnamespace
+                WHERE n.nspname = 'diet' AND c.relkind = 'r' AND c.relname LIKE 'audit\\_logs\\_y%'
+                ORDER BY c.relname
+                """);
+             ResultSet resultSet = statement.executeQuery()) {
+            while (resultSet.next()) {
+                Matcher matcher = PARTITION_NAME.matcher(resultSet.getString(1));
+                if (matcher.matches()) {
+                    months.add(YearMonth.of(Integer.parseInt(matcher.group(1)), Integer.parseInt(matcher.group(2))));
+                }
+            }
+        }
+        return months;
+    }
+
+    private void detachIfAttached(Connection connection, String parent, String partition) throws SQLException {
+        boolean attached;
+        try (PreparedStatement statement = connection.prepareStatement("""
+                SELECT 1
+                FROM pg_inherits i
+                WHERE i.inhrelid = to_regclass(?) AND i.inhparent = to_regclass(?)
+                """)) {
+            statement.setString(1, "diet." + partition);
+            statement.setString(2, "diet." + parent);
+            try (ResultSet resultSet = statement.executeQuery()) {
+                attached = resultSet.next();
+            }
+        }
+
+        if (attached) {
+            try (Statement statement = connection.createStatement()) {
+                statement.execute("ALTER TABLE diet." + parent + " DETACH PARTITION diet." + partition);
+            }
+        }
+    }
+
+    /**
+     * Stream a detached month to archive-dir/audit_logs_yYYYYmMM.ndjson.gz.
+     * Written to a temporary file and moved into place, so a partial file is never mistaken for an archive.
+     */
+    private long export(Connection connection, String logsTable, String detailsTable) throws SQLException, IOException {
+        Path directory = Paths.get(archiveDir);
+        Files.createDirectories(directory);
+        Path target = directory.resolve(logsTable + ".ndjson.gz");
+        Path temp = directory.resolve(logsTable + ".ndjson.gz.tmp");
+
+        String sql = """
+                SELECT json_build_object(
+                    'id', l.id, 'table_name', l.table_name, 'record_id', l.record_id, 'action', l.action,
+                    'changed_by', l.changed_by, 'changed_date', l.changed_date,
+                    'ip_address', l.ip_address, 'user_agent', l.user_agent,
+                    'details', COALESCE((
+                        SELECT json_agg(json_build_object(
+                            'id', d.id, 'field_name', d.field_name, 'old_value', d.old_value, 'new_value', d.new_value)
+                            ORDER BY d.id)
+                        FROM diet.%s d
+                        WHERE d.audit_log_id = l.id), '[]'::json))::text
+                FROM diet.%s l
+                ORDER BY l.id
+                """.formatted(detailsTable, logsTable);
+
+        long rows = 0;
+        boolean autoCommit = connection.getAutoCommit();
+        // The driver only streams with a fetch size inside a transaction
+        connection.setAutoCommit(false);
+        try (PreparedStatement statement = connection.prepareStatement(sql);
+             Writer writer = new BufferedWriter(new OutputStreamWriter(
+                     new GZIPOutputStream(Files.newOutputStream(temp), 64 * 1024), StandardCharsets.UTF_8))) {
+            statement.setFetchSize(EXPORT_FETCH_SIZE);
+            try (ResultSet resultSet = statement.executeQuery()) {
+                while (resultSet.next()) {
+                    writer.write(resultSet.getString(1));
+                    writer.write('\n');
+                    rows++;
+                }
+            }
+            connection.commit();
+        } finally {
+            connection.setAutoCommit(autoCommit);
+        }
+
+        Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        return rows;
+    }
+
+    private boolean tryLock(Connection connection) throws SQLException {
+        try (PreparedStatement statement = connection.prepareStatement("SELECT pg_try_advisory_lock(?)")) {
+            statement.setLong(1, ADVISORY_LOCK_KEY);
+            try (ResultSet resultSet = statement.executeQuery()) {
+                return resultSet.next() && resultSet.getBoolean(1);
+            }
+        }
+    }
+
+    private void unlock(Connection connection) throws SQLException {
+        try (PreparedStatement statement = connection.prepareStatement("SELECT pg_advisory_unlock(?)")) {
+            statement.setLong(1, ADVISORY_LOCK_KEY);
+            statement.executeQuery().close();
+        }
+    }
+}
@@ -8,20 +8,29 @@ import com.dietician.repository.UserRepository;
 import com.dietician.util.EmailHashUtil;
 import com.dietician.util.EncryptionUtil;
 import com.dietician.security.JwtTokenProvider;
+import com.dietician.security.PasswordHashingExecutor;
+import com.dietician.security.PrincipalCache;
+import com.dietician.security.SecurityEpochRegistry;
+import io.jsonwebtoken.Claims;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.RowMapper;
 import org.springframework.security.authentication.AuthenticationManager;
 import org.springframework.security.authentication.UsernamePasswordAuthenticationToken;
 import org.springframework.security.core.Authentication;
 import org.springframework.security.core.context.SecurityContextHolder;
-import org.springframework.security.crypto.password.PasswordEncoder;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionTemplate;
 
 import jakarta.persistence.EntityManager;
 import jakarta.persistence.Query;
 import java.security.SecureRandom;
+import java.time.Instant;
 import java.time.LocalDateTime;
+import java.util.List;
 
 /**
  * Authentication service handling user registration, login, and OTP verification.
@@ -31,27 +40,59 @@ import java.time.LocalDateTime;
 @RequiredArgsConstructor
 public class AuthService {
 
+    // A row as an Object[] in column order, like a native query result
+    private static final RowMapper<Object[]> ROW = (resultSet, rowNum) -> {
+        Object[] row = new Object[resultSet.getMetaData().getColumnCount()];
+        for (int i = 0; i < row.length; i++) {
+            row[i] = resultSet.getObject(i + 1);
+        }
+        return row;
+    };
+
     private final UserRepository userRepository;
     private final RoleRepository roleRepository;
-    private final PasswordEncoder passwordEncoder;
+    // BCrypt runs on a bounded pool, not on the request thread
+    private final PasswordHashingExecutor passwordHashing;
     private final JwtTokenProvider tokenProvider;
     private final EmailService emailService;
     private final AuthenticationManager authenticationManager;
     private final AuditLogService auditLogService;
     private final EntityManager entityManager;
+    // Credential lookups that must not hold a connection while the password is checked
+    private final JdbcTemplate jdbcTemplate;
+    private final TransactionTemplate transactionTemplate;
     private final EncryptionUtil encryptionUtil;
+    private final PrincipalCache principalCache;
+    private final SecurityEpochRegistry securityEpochRegistry;
+    private final ProfileResponseCache profileResponseCache;
     private final SecureRandom secureRandom = new SecureRandom();
 
+    // ISO-8601 instant; empty rejects every refresh token without a security epoch
+    @Value("${app.security.legacy-refresh-tokens-until:}")
+    private String legacyRefreshTokensUntil;
+
     /**
      * Register a new user with email and password
+     * The password is hashed before the transaction opens, so waiting for the hashing pool holds no connection;
+     * an already registered email is rejected first so it costs no BCrypt.
      */
-    @Transactional
     public AuthDto.MessageResponse register(AuthDto.RegisterRequest request) {
-        // Check if user already exists
         String emailHash = EmailHashUtil.hash(request.getEmail());
+        checkEmailAvailable(emailHash);
+        String encodedPassword = passwordHashing.encode(request.getPassword());
+        return transactionTemplate.execute(status -> createUser(request, emailHash, encodedPassword));
+    }
+
+    private void checkEmailAvailable(String emailHash) {
         if (userRepository.existsByEmailSearch(emailHash)) {
             throw new RuntimeException("This email is already registered. Please log in or use a different email.");
         }
+    }
+
+    private AuthDto.MessageResponse createUser(AuthDto.RegisterRequest request, String emailHash,
+                                               String encodedPassword) {
+        // Check again: the email may have been registered while the password was hashed
+        checkEmailAvailable(emailHash);
 
         // Generate OTP
         String otpCode = generateOtp();
@@ -64,7 +105,7 @@ public class AuthService {
         User user = User.builder()
                 .email(request.getEmail())
                 .emailSearch(emailHash)
-                .password(passwordEncoder.encode(request.getPassword()))
+                .password(encodedPassword)
                 .fullName(request.getFullName())
                 .emailVerified(false)
                 .otpCode(otpCode)
@@ -88,8 +129,9 @@ public class AuthService {
     /**
      * Login with email and password
      * Uses native query to avoid encrypted email field decryption issues
+     * Not transactional: the row is read with JdbcTemplate, which returns its connection before the BCrypt check,
+     * so logins waiting for the hashing pool never hold database connections.
      */
-    @Transactional(readOnly = true)
     public AuthDto.AuthResponse login(AuthDto.LoginRequest request) {
         String emailHash = EmailHashUtil.hash(request.getEmail());
 
@@ -98,22 +140,18 @@ public class AuthService {
         String nativeQuery = """
             SELECT u.id, u.password, u.full_name, u.email_verified,
                    u.is_active, up.profile_photo_url,
-                   r.id as role_id, r.role_code, r.role_name
+                   r.id as role_id, r.role_code, r.role_name, u.security_epoch
             FROM diet.users u
             JOIN diet.roles r ON u.role_id = r.id
             LEFT JOIN diet.user_profiles up ON u.id = up.user_id
-            WHERE u.email_search = :emailHash
+            WHERE u.email_search = ?
             """;
 
-        Query query = entityManager.createNativeQuery(nativeQuery);
-        query.setParameter("emailHash", emailHash);
-
-        Object[] result;
-        try {
-            result = (Object[]) query.getSingleResult();
-        } catch (Exception e) {
+        List<Object[]> rows = jdbcTemplate.query(nativeQuery, ROW, emailHash);
+        if (rows.size() != 1) {
             throw new RuntimeException("Invalid email or password");
         }
+        Object[] result = rows.get(0);
 
         Long userId = ((Number) result[0]).longValue();
         String password = (String) result[1];
@@ -123,6 +161,7 @@ public class AuthService {
         String profilePictureUrl = (String) result[5];
         String roleCode = (String) result[7];
         String roleName = (String) result[8];
+        long securityEpoch = ((Number) result[9]).longValue();
 
         if (!Boolean.TRUE.equals(emailVerified)) {
             throw new RuntimeException("Please verify your email address before logging in. Check your inbox for the verification code.");
@@ -133,13 +172,13 @@ public class AuthService {
         }
 
         // Verify password
-        if (!passwordEncoder.matches(request.getPassword(), password)) {
+        if (!passwordHashing.matches(request.getPassword(), password)) {
             throw new RuntimeException("Invalid email or password");
         }
 
         // Generate tokens
-        String accessToken = tokenProvider.generateToken(request.getEmail());
-        String refreshToken = tokenProvider.generateRefreshToken(request.getEmail());
+        String accessToken = tokenProvider.generateToken(request.getEmail(), userId, roleCode, securityEpoch);
+        String refreshToken = tokenProvider.generateRefreshToken(request.getEmail(), securityEpoch);
 
         log.info("User logged in successfully: {}", request.getEmail());
 
@@ -176,7 +215,7 @@ public class AuthService {
         String nativeQuery = """
             SELECT u.id, u.otp_code, u.otp_expiry, u.full_name,
                    u.email_verified, u.is_active, up.profile_photo_url,
-                   r.role_code
+                   r.role_code, u.security_epoch
             FROM diet.users u
             JOIN diet.roles r ON u.role_id = r.id
             LEFT JOIN diet.user_profiles up ON u.id = up.user_id
@@ -201,6 +240,7 @@ public class AuthService {
         Boolean isActive = (Boolean) result[5];
         String profilePictureUrl = (String) result[6];
         String roleCode = (String) result[7];
+        long securityEpoch = ((Number) result[8]).longValue();
 
         // Check OTP
         if (otpCode == null || !otpCode.equals(request.getOtpCode())) {
@@ -216,11 +256,13 @@ public class AuthService {
         // Mark email as verified using native update
         entityManager.createNativeQuery("""
                 UPDATE diet.users
-                SET email_verified = true, otp_code = NULL, otp_expiry = NULL
+                SET email_verified = true, otp_code = NULL, otp_expiry = NULL, modified_date = now()
                 WHERE id = :userId
                 """)
                 .setParameter("userId", userId)
                 .executeUpdate();
+        principalCache.evictEmailHash(emailHash);
+        profileResponseCache.evict(userId);
 
         log.info("Email verified successfully: {}", request.getEmail());
 
@@ -228,8 +270,8 @@ public class AuthService {
         emailService.sendWelcomeEmail(request.getEmail(), fullName);
 
         // Generate tokens
-        String accessToken = tokenProvider.generateToken(request.getEmail());
-        String refreshToken = tokenProvider.generateRefreshToken(request.getEmail());
+        String accessToken = tokenProvider.generateToken(request.getEmail(), userId, roleCode, securityEpoch);
+        String refreshToken = tokenProvider.generateRefreshToken(request.getEmail(), securityEpoch);
 
         // Build response
         AuthDto.UserInfo userInfo = new AuthDto.UserInfo();
@@ -304,22 +346,23 @@ public class AuthService {
     /**
      * Refresh access token
      * Uses native query to avoid encrypted email field
+     * The refresh token must carry the user's current security epoch, so a password change, reset, role change,
+     * email change or deactivation revokes refresh tokens along with access tokens.
      */
     public AuthDto.AuthResponse refreshToken(AuthDto.RefreshTokenRequest request) {
         String refreshToken = request.getRefreshToken();
 
-        if (!tokenProvider.validateToken(refreshToken)) {
-            throw new RuntimeException("Your session has expired. Please log in again.");
-        }
-
-        String email = tokenProvider.getUsernameFromToken(refreshToken);
+        Claims claims = tokenProvider.parseAndValidate(refreshToken)
+                .filter(parsed -> "refresh".equals(parsed.get("type", String.class)))
+                .orElseThrow(() -> new RuntimeException("Your session has expired. Please log in again."));
+        String email = claims.getSubject();
         String emailHash = EmailHashUtil.hash(email);
 
         // Use native query to get user data without encrypted email
         // Include profile picture from user_profiles table
         String nativeQuery = """
             SELECT u.id, u.full_name, u.email_verified,
-                   u.is_active, up.profile_photo_url, r.role_code
+                   u.is_active, up.profile_photo_url, r.role_code, u.security_epoch
             FROM diet.users u
             JOIN diet.roles r ON u.role_id = r.id
             LEFT JOIN diet.user_profiles up ON u.id = up.user_id
@@ -342,12 +385,17 @@ public class AuthService {
         Boolean isActive = (Boolean) result[3];
         String profilePictureUrl = (String) result[4];
         String roleCode = (String) result[5];
+        long securityEpoch = ((Number) result[6]).longValue();
+
+        if (!isRefreshTokenCurrent(claims, securityEpoch)) {
+            throw new RuntimeException("Your session has expired. Please log in again.");
+        }
 
         if (!Boolean.TRUE.equals(isActive)) {
             throw new RuntimeException("Your account has been deactivated. Please contact support.");
         }
 
-        String newAccessToken = tokenProvider.generateToken(email);
+        String newAccessToken = tokenProvider.generateToken(email, userId, roleCode, securityEpoch);
 
         // Build response
         AuthDto.UserInfo userInfo = new AuthDto.UserInfo();
@@ -366,11 +414,27 @@ public class AuthService {
         );
     }
 
+    /**
+     * Whether a refresh token was issued under the user's current security epoch.
+     * Refresh tokens issued before epochs were added to them carry none; they are accepted only until
+     * app.security.legacy-refresh-tokens-until, and only for users whose epoch was never bumped.
+     */
+    private boolean isRefreshTokenCurrent(Claims claims, long currentEpoch) {
+        Long tokenEpoch = claims.get(JwtTokenProvider.CLAIM_SECURITY_EPOCH, Long.class);
+        if (tokenEpoch != null) {
+            return tokenEpoch == currentEpoch;
+        }
+        return currentEpoch == 0
+                && !legacyRefreshTokensUntil.isBlank()
+                && Instant.now().isBefore(Instant.parse(legacyRefreshTokensUntil));
+    }
+
     /**
      * Change password for authenticated user
      * Uses native query to avoid encrypted email field
+     * Passwords are checked and hashed outside any transaction; only the update and its audit row are in one.
+     * The update bumps the user's security epoch, so access tokens issued before the change stop working.
      */
-    @Transactional
     public AuthDto.MessageResponse changePassword(AuthDto.ChangePasswordRequest request) {
         // Get authenticated user email from security context
         Authentication authentication = SecurityContextHolder.getContext().getAuthentication();
@@ -385,18 +449,14 @@ public class AuthService {
         String nativeQuery = """
             SELECT u.id, u.password, u.google_id
             FROM diet.users u
-            WHERE u.email_search = :emailHash
+            WHERE u.email_search = ?
             """;
 
-        Query query = entityManager.createNativeQuery(nativeQuery);
-        query.setParameter("emailHash", emailHash);
-
-        Object[] result;
-        try {
-            result = (Object[]) query.getSingleResult();
-        } catch (Exception e) {
+        List<Object[]> rows = jdbcTemplate.query(nativeQuery, ROW, emailHash);
+        if (rows.size() != 1) {
             throw new RuntimeException("User not found");
         }
+        Object[] result = rows.get(0);
 
         Long userId = ((Number) result[0]).longValue();
         String password = (String) result[1];
@@ -411,28 +471,33 @@ public class AuthService {
         }
 
         // Verify current password
-        if (!passwordEncoder.matches(request.getCurrentPassword(), password)) {
+        if (!passwordHashing.matches(request.getCurrentPassword(), password)) {
             throw new RuntimeException("Current password is incorrect");
         }
 
         // Check if new password is same as current password
-        if (passwordEncoder.matches(request.getNewPassword(), password)) {
+        if (passwordHashing.matches(request.getNewPassword(), password)) {
             throw new RuntimeException("New password must be different from current password");
         }
 
         // Encode and save new password
-        String encodedPassword = passwordEncoder.encode(request.getNewPassword());
-        entityManager.createNativeQuery("""
-                UPDATE diet.users SET password = :password WHERE id = :userId
-                """)
-                .setParameter("password", encodedPassword)
-                .setParameter("userId", userId)
-                .executeUpdate();
-
-        log.info("Password changed successfully for user: {}", email);
-
-        // Create audit log
-        auditLogService.createAuditLog("users", userId, "PASSWORD_CHANGE", email, null);
+        String encodedPassword = passwordHashing.encode(request.getNewPassword());
+        transactionTemplate.executeWithoutResult(status -> {
+            entityManager.createNativeQuery("""
+                    UPDATE diet.users SET password = :password, modified_date = now() WHERE id = :userId
+                    """)
+                    .setParameter("password", encodedPassword)
+                    .setParameter("userId", userId)
+                    .executeUpdate();
+            // Revoke every access token issued under the old password; bump also evicts the cached epoch
+            securityEpochRegistry.bump(userId);
+            principalCache.evictUser(userId);
+
+            log.info("Password changed successfully for user: {}", email);
+
+            // Create audit log
+            auditLogService.createAuditLog("users", userId, "PASSWORD_CHANGE", email, null);
+        });
 
         return new AuthDto.MessageResponse("Password changed successfully");
     }
@@ -466,17 +531,19 @@ public class AuthService {
             // Update profile picture from Google if it has changed
             if (pictureUrl != null && !pictureUrl.equals(currentPictureUrl)) {
                 entityManager.createNativeQuery(
-                        "UPDATE diet.users SET profile_picture_url = :pictureUrl WHERE id = :userId")
+                        "UPDATE diet.users SET profile_picture_url = :pictureUrl, modified_date = now() WHERE id = :userId")
                         .setParameter("pictureUrl", pictureUrl)
                         .setParameter("userId", userId)
                         .executeUpdate();
 
                 // Also update profile photo in user_profiles table
                 entityManager.createNativeQuery(
-                        "UPDATE diet.user_profiles SET profile_photo_url = :pictureUrl WHERE user_id = :userId")
+                        "UPDATE diet.user_profiles SET profile_photo_url = :pictureUrl, modified_date = now() "
+                        + "WHERE user_id = :userId")
                         .setParameter("pictureUrl", pictureUrl)
                         .setParameter("userId", userId)
                         .executeUpdate();
+                profileResponseCache.evict(userId);
 
                 log.info("Updated profile picture for OAuth user: {} from Google", email);
             }
@@ -498,7 +565,7 @@ public class AuthService {
 
         if (existingUserId != null) {
             // Link Google account to existing user - also update profile picture if provided
-            String updateQuery = "UPDATE diet.users SET google_id = :googleId, email_verified = true";
+            String updateQuery = "UPDATE diet.users SET google_id = :googleId, email_verified = true, modified_date = now()";
             if (pictureUrl != null) {
                 updateQuery += ", profile_picture_url = :pictureUrl";
             }
@@ -515,11 +582,13 @@ public class AuthService {
             // Also update profile photo in user_profiles table if picture URL is provided
             if (pictureUrl != null) {
                 entityManager.createNativeQuery(
-                        "UPDATE diet.user_profiles SET profile_photo_url = :pictureUrl WHERE user_id = :userId")
+                        "UPDATE diet.user_profiles SET profile_photo_url = :pictureUrl, modified_date = now() "
+                        + "WHERE user_id = :userId")
                         .setParameter("pictureUrl", pictureUrl)
                         .setParameter("userId", existingUserId)
                         .executeUpdate();
             }
+            profileResponseCache.evict(existingUserId);
 
             // Get user details
             Object[] user = (Object[]) entityManager.createNativeQuery(
@@ -591,8 +660,9 @@ public class AuthService {
                     .getSingleResult()).longValue();
         }
 
-        String accessToken = tokenProvider.generateToken(email);
-        String refreshToken = tokenProvider.generateRefreshToken(email);
+        long securityEpoch = securityEpochRegistry.current(userId);
+        String accessToken = tokenProvider.generateToken(email, userId, roleCode, securityEpoch);
+        String refreshToken = tokenProvider.generateRefreshToken(email, securityEpoch);
 
         AuthDto.UserInfo userInfo = new AuthDto.UserInfo();
         userInfo.setId(userId);
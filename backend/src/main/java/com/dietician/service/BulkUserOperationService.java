@@ -0,0 +1,456 @@
+package com.dietician.service;
+
+import com.dietician.dto.AdminDto.BulkOperationJobResponse;
+import com.dietician.dto.AdminDto.BulkUserOperationRequest;
+import com.dietician.exception.ResourceNotFoundException;
+import com.dietician.model.Role;
+import com.dietician.repository.RoleRepository;
+import com.dietician.security.PrincipalCache;
+import com.dietician.security.SecurityEpochRegistry;
+import com.dietician.util.BoundedTtlCache;
+import com.dietician.util.EncryptionUtil;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.security.crypto.password.PasswordEncoder;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.sql.Timestamp;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+
+/**
+ * Bulk status, role and password-reset changes on users selected by id or by filter.
+ * Runs as a background job that applies the change with set-based SQL one chunk at a time.
+ * Each chunk is its own transaction with one aggregated audit entry and its notification mails,
+ * so a failing chunk is reported and skipped while the others still commit.
+ */
+@Slf4j
+@Service
+public class BulkUserOperationService {
+
+    public static final String OP_ACTIVATE = "ACTIVATE";
+    public static final String OP_DEACTIVATE = "DEACTIVATE";
+    public static final String OP_CHANGE_ROLE = "CHANGE_ROLE";
+    public static final String OP_RESET_PASSWORD = "RESET_PASSWORD";
+
+    public static final String STATUS_RUNNING = "RUNNING";
+    public static final String STATUS_COMPLETED = "COMPLETED";
+    public static final String STATUS_COMPLETED_WITH_ERRORS = "COMPLETED_WITH_ERRORS";
+    public static final String STATUS_FAILED = "FAILED";
+
+    // Failed ids reported per job; the counts stay exact beyond it
+    private static final int MAX_REPORTED_FAILURES = 1000;
+
+    private final JdbcTemplate jdbcTemplate;
+    private final TransactionTemplate transactionTemplate;
+    private final PasswordEncoder passwordEncoder;
+    private final EncryptionUtil encryptionUtil;
+    private final EmailService emailService;
+    private final AuditLogService auditLogService;
+    private final PrincipalCache principalCache;
+    private final SecurityEpochRegistry securityEpochRegistry;
+    private final RoleRepository roleRepository;
+
+    private final BoundedTtlCache<String, BulkJob> jobs;
+    private final ThreadPoolExecutor jobExecutor;
+    private final ExecutorService workers;
+    private final int chunkSize;
+
+    private final Counter updatedCounter;
+    private final Counter failedCounter;
+    private final Timer chunkTimer;
+
+    public BulkUserOperationService(JdbcTemplate jdbcTemplate,
+                                    PlatformTransactionManager transactionManager,
+                                    PasswordEncoder passwordEncoder,
+                                    EncryptionUtil encryptionUtil,
+                                    EmailService emailService,
+                                    AuditLogService auditLogService,
+                                    PrincipalCache principalCache,
+                                    SecurityEpochRegistry securityEpochRegistry,
+                                    RoleRepository roleRepository,
+                                    MeterRegistry meterRegistry,
+                                    @Value("${app.admin.bulk.chunk-size:500}") int chunkSize,
+                                    @Value("${app.admin.bulk.workers:0}") int workerCount,
+                                    @Value("${app.admin.bulk.max-queued-jobs:4}") int maxQueuedJobs,
+                                    @Value("${app.admin.bulk.job-ttl-ms:86400000}") long jobTtlMillis) {
+        this.jdbcTemplate = jdbcTemplate;
+        this.transactionTemplate = new TransactionTemplate(transactionManager);
+        this.passwordEncoder = passwordEncoder;
+        this.encryptionUtil = encryptionUtil;
+        this.emailService = emailService;
+        this.auditLogService = auditLogService;
+        this.principalCache = principalCache;
+        this.securityEpochRegistry = securityEpochRegistry;
+        this.roleRepository = roleRepository;
+        this.chunkSize = Math.max(1, chunkSize);
+
+        this.jobs = new BoundedTtlCache<>(1000, jobTtlMillis);
+        this.jobExecutor = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(Math.max(1, maxQueuedJobs)), namedThreads("bulk-user-operation"));
+        // Password resets hash one BCrypt per user here rather than on the common ForkJoinPool; by default
+        // a quarter of the cores, so a reset batch cannot starve logins, which hash BCrypt on request threads
+        int threads = workerCount > 0 ? workerCount : Math.max(1, Runtime.getRuntime().availableProcessors() / 4);
+        this.workers = Executors.newFixedThreadPool(threads, namedThreads("bulk-user-operation-worker"));
+
+        this.updatedCounter = Counter.builder("admin.bulk.users")
+                .tag("result", "updated")
+                .description("Users changed by bulk admin operations")
+                .register(meterRegistry);
+        this.failedCounter = Counter.builder("admin.bulk.users")
+                .tag("result", "failed")
+                .description("Users in failed chunks of bulk admin operations")
+                .register(meterRegistry);
+        this.chunkTimer = Timer.builder("admin.bulk.chunk")
+                .description("Time taken to apply a bulk admin operation to one chunk")
+                .register(meterRegistry);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        jobExecutor.shutdownNow();
+        workers.shutdownNow();
+    }
+
+    /**
+     * Validate the request and queue the operation.
+     *
+     * @return the new job, still running
+     */
+    public BulkOperationJobResponse start(BulkUserOperationRequest request, String startedBy) {
+        boolean byIds = request.getUserIds() != null && !request.getUserIds().isEmpty();
+        boolean byFilter = request.getFilterRole() != null;
+        if (byIds == byFilter) {
+            throw new IllegalArgumentException("Provide either userIds or filterRole");
+        }
+        String operation = request.getOperation();
+        Long targetRoleId = null;
+        if (OP_CHANGE_ROLE.equals(operation)) {
+            if (request.getRole() == null) {
+                throw new IllegalArgumentException("Role is required for CHANGE_ROLE");
+            }
+            targetRoleId = roleId(request.getRole());
+        }
+        Selection selection = byIds
+                ? new Selection(request.getUserIds().stream().filter(Objects::nonNull).distinct().sorted().toList(),
+                        null, null)
+                : new Selection(null, roleId(request.getFilterRole()), request.getFilterActive());
+
+        BulkJob job = new BulkJob(UUID.randomUUID().toString(), operation);
+        jobs.put(job.id, job);
+        Long roleId = targetRoleId;
+        try {
+            jobExecutor.execute(() -> run(job, selection, roleId, startedBy));
+        } catch (RejectedExecutionException e) {
+            jobs.invalidate(job.id);
+            throw new IllegalStateException("Too many bulk operations in progress, try again later");
+        }
+        log.info("Bulk {} {} queued by {}", operation, job.id, startedBy);
+        return job.toResponse();
+    }
+
+    public BulkOperationJobResponse getJob(String jobId) {
+        BulkJob job = jobs.get(jobId);
+        if (job == null) {
+            throw new ResourceNotFoundException("Bulk operation not found: " + jobId);
+        }
+        return job.toResponse();
+    }
+
+    private Long roleId(String roleCode) {
+        return roleRepository.findByRoleCode(roleCode.toUpperCase())
+                .map(Role::getId)
+                .orElseThrow(() -> new IllegalArgumentException("Invalid role: " + roleCode));
+    }
+
+    private void run(BulkJob job, Selection selection, Long targetRoleId, String startedBy) {
+        long start = System.nanoTime();
+        try {
+            if (selection.userIds() != null) {
+                job.setTotal(selection.userIds().size());
+                for (int from = 0; from < selection.userIds().size(); from += chunkSize) {
+                    List<Long> chunk = selection.userIds().subList(from, Math.min(from + chunkSize, selection.userIds().size()));
+                    processChunk(job, chunk, targetRoleId, startedBy);
+                }
+            } else {
+                job.setTotal(countMatching(selection));
+                // Keyset over id, so users changed by earlier chunks never shift later ones
+                long afterId = 0;
+                List<Long> chunk;
+                while (!(chunk = nextMatching(selection, afterId)).isEmpty()) {
+                    processChunk(job, chunk, targetRoleId, startedBy);
+                    afterId = chunk.get(chunk.size() - 1);
+                }
+            }
+            job.finish(null);
+            log.info("Bulk {} {} finished in {} ms: {}", job.operation, job.id,
+                    TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start), job.toResponse().getStatus());
+        } catch (Exception e) {
+            log.error("Bulk {} {} failed", job.operation, job.id, e);
+            job.finish(e.getMessage());
+        }
+    }
+
+    private int countMatching(Selection selection) {
+        String sql = "SELECT count(*) FROM diet.users WHERE role_id = ?"
+                + (selection.active() != null ? " AND is_active = ?" : "");
+        Object[] args = selection.active() != null
+                ? new Object[]{selection.roleId(), selection.active()}
+                : new Object[]{selection.roleId()};
+        Integer count = jdbcTemplate.queryForObject(sql, Integer.class, args);
+        return count != null ? count : 0;
+    }
+
+    private List<Long> nextMatching(Selection selection, long afterId) {
+        String sql = "SELECT id FROM diet.users WHERE role_id = ?"
+                + (selection.active() != null ? " AND is_active = ?" : "")
+                + " AND id > ? ORDER BY id LIMIT ?";
+        Object[] args = selection.active() != null
+                ? new Object[]{selection.roleId(), selection.active(), afterId, chunkSize}
+                : new Object[]{selection.roleId(), afterId, chunkSize};
+        return jdbcTemplate.queryForList(sql, Long.class, args);
+    }
+
+    private void processChunk(BulkJob job, List<Long> ids, Long targetRoleId, String startedBy) {
+        long start = System.nanoTime();
+        List<Long> failed = new ArrayList<>();
+        try {
+            // BCrypt runs before the transaction so the chunk does not hold a connection while hashing
+            List<PasswordReset> resets = OP_RESET_PASSWORD.equals(job.operation) ? preparePasswordResets(ids, failed) : null;
+
+            List<Long> updated = transactionTemplate.execute(status -> {
+                List<Long> changed = switch (job.operation) {
+                    case OP_ACTIVATE, OP_DEACTIVATE -> setActive(ids, OP_ACTIVATE.equals(job.operation), startedBy);
+                    case OP_CHANGE_ROLE -> changeRole(ids, targetRoleId, startedBy);
+                    case OP_RESET_PASSWORD -> resetPasswords(resets, startedBy);
+                    default -> throw new IllegalArgumentException("Unsupported operation: " + job.operation);
+                };
+                if (!changed.isEmpty()) {
+                    principalCache.evictUsers(changed);
+                    securityEpochRegistry.evict(changed);
+                    audit(job, changed, targetRoleId, startedBy);
+                }
+                return changed;
+            });
+
+            job.addChunk(ids.size(), updated.size(), failed);
+            updatedCounter.increment(updated.size());
+            failedCounter.increment(failed.size());
+        } catch (Exception e) {
+            log.error("Bulk {} {} chunk of {} users failed", job.operation, job.id, ids.size(), e);
+            job.addChunk(ids.size(), 0, ids);
+            failedCounter.increment(ids.size());
+        } finally {
+            chunkTimer.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    private List<Long> setActive(List<Long> ids, boolean active, String startedBy) {
+        // Users already in the requested state keep their tokens
+        return jdbcTemplate.queryForList("""
+                UPDATE diet.users
+                SET is_active = ?, security_epoch = security_epoch + 1, modified_by = ?, modified_date = now()
+                WHERE id = ANY(?) AND is_active <> ?
+                RETURNING id
+                """, Long.class, active, startedBy, ids.toArray(new Long[0]), active);
+    }
+
+    private List<Long> changeRole(List<Long> ids, Long roleId, String startedBy) {
+        // A role change revokes the user's access tokens
+        return jdbcTemplate.queryForList("""
+                UPDATE diet.users
+                SET role_id = ?, security_epoch = security_epoch + 1, modified_by = ?, modified_date = now()
+                WHERE id = ANY(?) AND role_id <> ?
+                RETURNING id
+                """, Long.class, roleId, startedBy, ids.toArray(new Long[0]), roleId);
+    }
+
+    /**
+     * Generate and hash a temporary password per user. Users whose email cannot be decrypted
+     * could never receive theirs, so they are left unchanged and reported as failed.
+     */
+    private List<PasswordReset> preparePasswordResets(List<Long> ids, List<Long> failed) {
+        List<Map<String, Object>> rows = jdbcTemplate.queryForList(
+                "SELECT id, email, full_name FROM diet.users WHERE id = ANY(?) ORDER BY id",
+                (Object) ids.toArray(new Long[0]));
+
+        List<CompletableFuture<PasswordReset>> futures = new ArrayList<>(rows.size());
+        for (Map<String, Object> row : rows) {
+            futures.add(CompletableFuture.supplyAsync(() -> {
+                Long id = ((Number) row.get("id")).longValue();
+                try {
+                    String email = encryptionUtil.decrypt((String) row.get("email"));
+                    String tempPassword = AdminService.generateTempPassword();
+                    return new PasswordReset(id, email, (String) row.get("full_name"), tempPassword,
+                            passwordEncoder.encode(tempPassword));
+                } catch (RuntimeException e) {
+                    log.warn("Cannot reset password of user {}: {}", id, e.getMessage());
+                    return new PasswordReset(id, null, null, null, null);
+                }
+            }, workers));
+        }
+        List<PasswordReset> resets = new ArrayList<>(futures.size());
+        for (CompletableFuture<PasswordReset> future : futures) {
+            resets.add(future.join());
+        }
+
+        resets.stream().filter(reset -> reset.passwordHash() == null).forEach(reset -> failed.add(reset.userId()));
+        resets.removeIf(reset -> reset.passwordHash() == null);
+        return resets;
+    }
+
+    private List<Long> resetPasswords(List<PasswordReset> resets, String startedBy) {
+        if (resets.isEmpty()) {
+            return List.of();
+        }
+        Long[] ids = resets.stream().map(PasswordReset::userId).toArray(Long[]::new);
+        String[] hashes = resets.stream().map(PasswordReset::passwordHash).toArray(String[]::new);
+        String[] tokens = resets.stream().map(reset -> UUID.randomUUID().toString()).toArray(String[]::new);
+
+        List<Long> updated = jdbcTemplate.queryForList("""
+                UPDATE diet.users u
+                SET password = v.password, security_epoch = u.security_epoch + 1, modified_by = ?, modified_date = now()
+                FROM unnest(?::bigint[], ?::text[]) AS v(id, password)
+                WHERE u.id = v.id
+                RETURNING u.id
+                """, Long.class, startedBy, ids, hashes);
+
+        jdbcTemplate.update("""
+                INSERT INTO diet.password_reset_tokens (user_id, token, expiry_timestamp, used, created_date)
+                SELECT t.user_id, t.token, ?, false, now()
+                FROM unnest(?::bigint[], ?::text[]) AS t(user_id, token)
+                WHERE t.user_id = ANY(?)
+                """, Timestamp.valueOf(LocalDateTime.now().plusDays(7)), ids, tokens, updated.toArray(new Long[0]));
+
+        // Queued in the same transaction, so no mail goes out for a chunk that rolls back
+        Set<Long> updatedIds = Set.copyOf(updated);
+        for (PasswordReset reset : resets) {
+            if (updatedIds.contains(reset.userId())) {
+                emailService.sendPasswordResetByAdminEmail(reset.email(), reset.tempPassword(), reset.fullName());
+            }
+        }
+        return updated;
+    }
+
+    /**
+     * One audit entry per chunk listing every changed user.
+     * It is not about a single record, so record_id is 0 and the ids are in the user_ids detail.
+     */
+    private void audit(BulkJob job, List<Long> changed, Long targetRoleId, String startedBy) {
+        Map<String, Object> changes = new LinkedHashMap<>();
+        changes.put("job_id", job.id);
+        changes.put("user_count", changed.size());
+        changes.put("user_ids", changed.stream().map(String::valueOf).collect(Collectors.joining(",")));
+        switch (job.operation) {
+            case OP_ACTIVATE, OP_DEACTIVATE -> changes.put("is_active", OP_ACTIVATE.equals(job.operation));
+            case OP_CHANGE_ROLE -> changes.put("role_id", targetRoleId);
+            default -> {
+            }
+        }
+        auditLogService.createAuditLog("users", 0L, "BULK_" + job.operation, startedBy, changes);
+    }
+
+    private record Selection(List<Long> userIds, Long roleId, Boolean active) {
+    }
+
+    private record PasswordReset(Long userId, String email, String fullName, String tempPassword, String passwordHash) {
+    }
+
+    private static ThreadFactory namedThreads(String prefix) {
+        AtomicInteger counter = new AtomicInteger();
+        return runnable -> {
+            Thread thread = new Thread(runnable, prefix + "-" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    /**
+     * Mutable job state, written by the job thread and read by pollers.
+     */
+    private static final class BulkJob {
+
+        private final String id;
+        private final String operation;
+        private final LocalDateTime startedDate = LocalDateTime.now();
+        private final List<Long> failedUserIds = new ArrayList<>();
+        private String status = STATUS_RUNNING;
+        private String message;
+        private LocalDateTime finishedDate;
+        private int total;
+        private int processed;
+        private int updated;
+        private int failed;
+
+        BulkJob(String id, String operation) {
+            this.id = id;
+            this.operation = operation;
+        }
+
+        synchronized void setTotal(int total) {
+            this.total = total;
+        }
+
+        synchronized void addChunk(int size, int updatedCount, List<Long> failedIds) {
+            processed += size;
+            updated += updatedCount;
+            failed += failedIds.size();
+            for (Long failedId : failedIds) {
+                if (failedUserIds.size() >= MAX_REPORTED_FAILURES) {
+                    break;
+                }
+                failedUserIds.add(failedId);
+            }
+        }
+
+        synchronized void finish(String failureMessage) {
+            if (failureMessage != null) {
+                status = STATUS_FAILED;
+                message = failureMessage;
+            } else {
+                status = failed > 0 ? STATUS_COMPLETED_WITH_ERRORS : STATUS_COMPLETED;
+            }
+            finishedDate = LocalDateTime.now();
+        }
+
+        synchronized BulkOperationJobResponse toResponse() {
+            return BulkOperationJobResponse.builder()
+                    .jobId(id)
+                    .operation(operation)
+                    .status(status)
+                    .message(message)
+                    .startedDate(startedDate)
+                    .finishedDate(finishedDate)
+                    .totalUsers(total)
+                    .processedUsers(processed)
+                    .updatedUsers(updated)
+                    .skippedUsers(processed - updated - failed)
+                    .failedUsers(failed)
+                    .failedUserIds(new ArrayList<>(failedUserIds))
+                    .build();
+        }
+    }
+}
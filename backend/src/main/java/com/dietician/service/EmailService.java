@@ -1,122 +1,100 @@
 package com.dietician.service;
 
-import jakarta.mail.MessagingException;
-import jakarta.mail.internet.MimeMessage;
+import com.dietician.model.MailOutboxMessage;
+import com.dietician.repository.MailOutboxRepository;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
-import org.springframework.beans.factory.annotation.Value;
-import org.springframework.mail.javamail.JavaMailSender;
-import org.springframework.mail.javamail.MimeMessageHelper;
-import org.springframework.scheduling.annotation.Async;
 import org.springframework.stereotype.Service;
 
 /**
- * Email service for sending OTP verification and notification emails via Mail-in-a-Box.
+ * Email service for OTP verification and notification emails via Mail-in-a-Box.
+ * Mails are written to the mail outbox in the caller's transaction and delivered by
+ * MailOutboxDispatcher, so a slow SMTP server never blocks a request and a mail is only
+ * sent if the change that triggered it commits.
  */
 @Slf4j
 @Service
 @RequiredArgsConstructor
 public class EmailService {
 
-    private final JavaMailSender mailSender;
-
-    @Value("${spring.mail.username}")
-    private String fromEmail;
+    private final MailOutboxRepository mailOutboxRepository;
 
     /**
      * Send OTP verification email (for registration)
      */
-    @Async
     public void sendOtpEmail(String toEmail, String otpCode, String userName) {
-        try {
-            MimeMessage message = mailSender.createMimeMessage();
-            MimeMessageHelper helper = new MimeMessageHelper(message, true, "UTF-8");
-
-            helper.setFrom(fromEmail);
-            helper.setTo(toEmail);
-            helper.setSubject("Verify Your Email - Dietitian App");
-
-            String htmlContent = buildOtpEmailTemplate(otpCode, userName);
-            helper.setText(htmlContent, true);
-
-            mailSender.send(message);
-            log.info("OTP email sent successfully to: {}", toEmail);
-
-        } catch (MessagingException e) {
-            log.error("Failed to send OTP email to: {}", toEmail, e);
-            throw new RuntimeException("Failed to send email", e);
-        }
+        enqueue(toEmail, "Verify Your Email - Dietitian App", buildOtpEmailTemplate(otpCode, userName), true);
+        log.info("OTP email queued for: {}", toEmail);
     }
 
     /**
      * Send OTP verification email for email change
      */
-    @Async
     public void sendEmailChangeOtpEmail(String toEmail, String otpCode, String userName) {
-        try {
-            MimeMessage message = mailSender.createMimeMessage();
-            MimeMessageHelper helper = new MimeMessageHelper(message, true, "UTF-8");
-
-            helper.setFrom(fromEmail);
-            helper.setTo(toEmail);
-            helper.setSubject("Verify Email Change - Dietitian App");
-
-            String htmlContent = buildEmailChangeOtpTemplate(otpCode, userName);
-            helper.setText(htmlContent, true);
-
-            mailSender.send(message);
-            log.info("Email change OTP sent successfully to: {}", toEmail);
-
-        } catch (MessagingException e) {
-            log.error("Failed to send email change OTP to: {}", toEmail, e);
-            throw new RuntimeException("Failed to send email", e);
-        }
+        enqueue(toEmail, "Verify Email Change - Dietitian App", buildEmailChangeOtpTemplate(otpCode, userName), true);
+        log.info("Email change OTP queued for: {}", toEmail);
     }
 
     /**
      * Send welcome email after successful registration
      */
-    @Async
     public void sendWelcomeEmail(String toEmail, String userName) {
-        try {
-            MimeMessage message = mailSender.createMimeMessage();
-            MimeMessageHelper helper = new MimeMessageHelper(message, true, "UTF-8");
-
-            helper.setFrom(fromEmail);
-            helper.setTo(toEmail);
-            helper.setSubject("Welcome to Dietitian App!");
-
-            String htmlContent = buildWelcomeEmailTemplate(userName);
-            helper.setText(htmlContent, true);
+        enqueue(toEmail, "Welcome to Dietitian App!", buildWelcomeEmailTemplate(userName), true);
+        log.info("Welcome email queued for: {}", toEmail);
+    }
 
-            mailSender.send(message);
-            log.info("Welcome email sent successfully to: {}", toEmail);
+    /**
+     * Send the temporary password of an account created by an administrator
+     */
+    public void sendAccountCreatedEmail(String toEmail, String tempPassword, String userName) {
+        String body = String.format(
+                "Hello %s,\n\n" +
+                "Your account has been created on the Dietician App.\n\n" +
+                "Email: %s\n" +
+                "Temporary Password: %s\n\n" +
+                "Please log in and change your password immediately.\n\n" +
+                "Best regards,\nDietician App Team",
+                userName != null ? userName : "User", toEmail, tempPassword
+        );
+        enqueue(toEmail, "Your Dietician App Account", body, false);
+        log.info("Account created email queued for: {}", toEmail);
+    }
 
-        } catch (MessagingException e) {
-            log.error("Failed to send welcome email to: {}", toEmail, e);
-        }
+    /**
+     * Send the temporary password set by an administrator's password reset
+     */
+    public void sendPasswordResetByAdminEmail(String toEmail, String tempPassword, String userName) {
+        String body = String.format(
+                "Hello %s,\n\n" +
+                "Your password has been reset by an administrator.\n\n" +
+                "Email: %s\n" +
+                "New Temporary Password: %s\n\n" +
+                "Please log in and change your password immediately.\n\n" +
+                "Best regards,\nDietician App Team",
+                userName != null ? userName : "User", toEmail, tempPassword
+        );
+        enqueue(toEmail, "Your Password Has Been Reset", body, false);
+        log.info("Password reset email queued for: {}", toEmail);
     }
 
     /**
      * Send a simple plain text email (for admin notifications)
      */
-    @Async
     public void sendEmail(String toEmail, String subject, String body) {
-        try {
-            MimeMessage message = mailSender.createMimeMessage();
-            MimeMessageHelper helper = new MimeMessageHelper(message, false, "UTF-8");
-
-            helper.setFrom(fromEmail);
-            helper.setTo(toEmail);
-            helper.setSubject(subject);
-            helper.setText(body);
-
-            mailSender.send(message);
-            log.info("Email sent successfully to: {}", toEmail);
+        enqueue(toEmail, subject, body, false);
+        log.info("Email queued for: {}", toEmail);
+    }
 
-        } catch (MessagingException e) {
-            log.error("Failed to send email to: {}", toEmail, e);
-        }
+    /**
+     * Write a message to the outbox. Joins the caller's transaction if there is one.
+     */
+    private void enqueue(String toEmail, String subject, String body, boolean html) {
+        mailOutboxRepository.save(MailOutboxMessage.builder()
+                .recipient(toEmail)
+                .subject(subject)
+                .body(body)
+                .html(html)
+                .build());
     }
 
     private String buildOtpEmailTemplate(String otpCode, String userName) {
@@ -1,105 +1,418 @@
 package com.dietician.service;
 
+import com.dietician.exception.ResourceNotFoundException;
+import com.dietician.storage.ObjectStore;
+import com.dietician.storage.ObjectStore.PresignedUrl;
+import com.dietician.storage.ObjectStore.StoredObject;
+import com.dietician.util.BoundedTtlCache;
+import com.dietician.util.ContentTypeSniffer;
+import com.dietician.util.ContentTypeSniffer.SniffedType;
+import com.dietician.util.TransactionUtils;
+import io.micrometer.core.instrument.MeterRegistry;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Value;
-import org.springframework.core.io.Resource;
-import org.springframework.core.io.UrlResource;
+import org.springframework.http.ContentDisposition;
+import org.springframework.http.MediaType;
+import org.springframework.http.MediaTypeFactory;
+import org.springframework.jdbc.core.JdbcTemplate;
 import org.springframework.stereotype.Service;
-import org.springframework.web.multipart.MultipartFile;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.support.TransactionTemplate;
 
 import java.io.IOException;
-import java.net.MalformedURLException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
-import java.nio.file.Paths;
-import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.util.HexFormat;
+import java.util.Set;
+import java.util.regex.Pattern;
 
 /**
  * Service for handling file storage operations
+ * Uploads are content-addressed: named after the SHA-256 of their content (computed while the upload is copied),
+ * stored once per category in two levels of hex shard directories ({category}/ab/cd/{hash}{ext}) and
+ * reference-counted in stored_files, so an identical upload is a refcount increment rather than another copy.
+ * URLs stay logical (/api/files/{category}/{filename}); names from before content addressing are still
+ * served from the flat category directory. The bytes live in the configured ObjectStore (local disk or an
+ * S3-compatible bucket); reference counts and content locks are in the database, shared by all nodes.
  */
 @Service
 @Slf4j
 public class FileStorageService {
 
-    @Value("${app.upload.dir:/var/dietician/uploads}")
-    private String uploadDir;
+    // Names starting with a SHA-256 live in shard directories; exactly {hash}{ext} names are refcounted uploads
+    private static final Pattern SHARDED_NAME = Pattern.compile("^[0-9a-f]{64}.*");
+    private static final Pattern CONTENT_ADDRESSED_NAME = Pattern.compile("^[0-9a-f]{64}(\\.[a-z0-9]{1,10})?$");
+    private static final int COPY_BUFFER_SIZE = 64 * 1024;
+
+    private final ObjectStore objectStore;
+    private final JdbcTemplate jdbcTemplate;
+    private final TransactionTemplate releaseTransaction;
+    // Size, modification time and content type of served files, so a hit costs no stat call (or HEAD request)
+    private final BoundedTtlCache<String, StoredFile> attributes;
+
+    public FileStorageService(
+            ObjectStore objectStore,
+            @Value("${app.upload.attribute-cache.max-size:10000}") int attributeCacheSize,
+            @Value("${app.upload.attribute-cache.ttl-ms:60000}") long attributeCacheTtlMillis,
+            MeterRegistry meterRegistry,
+            JdbcTemplate jdbcTemplate,
+            PlatformTransactionManager transactionManager) {
+        this.objectStore = objectStore;
+        this.jdbcTemplate = jdbcTemplate;
+        // Releases run after the caller's commit, so they need a transaction of their own
+        this.releaseTransaction = new TransactionTemplate(transactionManager);
+        this.releaseTransaction.setPropagationBehavior(TransactionDefinition.PROPAGATION_REQUIRES_NEW);
+        this.attributes = new BoundedTtlCache<String, StoredFile>(attributeCacheSize, attributeCacheTtlMillis)
+                .registerMetrics(meterRegistry, "file-attributes");
+    }
 
     /**
-     * Store a file in the specified category
+     * Receive content streamed from the client into a staging file, reading it exactly once and without
+     * touching the database, so a slow client holds no connection: call it outside any transaction.
+     * The type is sniffed from the first bytes, so a disallowed file is rejected before the rest is received;
+     * the content is hashed and its size enforced as it is copied. Pass the result to storeStaged and close it
+     * afterwards; the staging file is deleted unless the store took it.
      *
-     * @param file     The file to store
-     * @param category The category (e.g., "profile-photos")
-     * @param entityId The entity ID for naming
-     * @return The URL to access the file
+     * @param content      The content, e.g. the raw request body
+     * @param category     The category (e.g., "profile-photos")
+     * @param maxBytes     The maximum accepted size
+     * @param allowedTypes The accepted sniffed types, or null to accept any content
+     * @return The staged file, named after its content
+     * @throws IllegalArgumentException if the content is empty, too large or of a type not allowed
      */
-    public String storeFile(MultipartFile file, String category, String entityId) {
+    public StagedFile stageFile(InputStream content, String category, long maxBytes, Set<MediaType> allowedTypes) {
         try {
-            // Create directory if not exists
-            Path uploadPath = Paths.get(uploadDir, category);
-            if (!Files.exists(uploadPath)) {
-                Files.createDirectories(uploadPath);
+            byte[] header = content.readNBytes(ContentTypeSniffer.HEADER_LENGTH);
+            if (header.length == 0) {
+                throw new IllegalArgumentException("Please select a file to upload");
+            }
+            SniffedType type = ContentTypeSniffer.sniff(header);
+            if (allowedTypes != null && (type == null || !allowedTypes.contains(type.mediaType()))) {
+                throw new IllegalArgumentException("Unsupported file type");
             }
 
-            // Generate unique filename
-            String originalFilename = file.getOriginalFilename();
-            String extension = "";
-            if (originalFilename != null && originalFilename.contains(".")) {
-                extension = originalFilename.substring(originalFilename.lastIndexOf("."));
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            Path tempFile = Files.createTempFile(objectStore.stagingDirectory(), ".tmp-", null);
+            try {
+                long size = 0;
+                try (OutputStream output = Files.newOutputStream(tempFile)) {
+                    byte[] buffer = header;
+                    int read = header.length;
+                    do {
+                        size += read;
+                        if (size > maxBytes) {
+                            throw new IllegalArgumentException("File size must not exceed " + formatSize(maxBytes));
+                        }
+                        digest.update(buffer, 0, read);
+                        output.write(buffer, 0, read);
+                        if (buffer == header) {
+                            buffer = new byte[COPY_BUFFER_SIZE];
+                        }
+                    } while ((read = content.read(buffer)) != -1);
+                }
+                String extension = type != null ? type.extension() : "";
+                String filename = HexFormat.of().formatHex(digest.digest()) + extension;
+                return new StagedFile(tempFile, category, filename, size);
+            } catch (IOException | RuntimeException e) {
+                Files.deleteIfExists(tempFile);
+                throw e;
             }
-            String filename = entityId + "_" + System.currentTimeMillis() + extension;
+        } catch (IOException | NoSuchAlgorithmException e) {
+            log.error("Failed to store file", e);
+            throw new RuntimeException("Failed to store file: " + e.getMessage());
+        }
+    }
 
-            // Store file
-            Path filePath = uploadPath.resolve(filename);
-            Files.copy(file.getInputStream(), filePath, StandardCopyOption.REPLACE_EXISTING);
+    /**
+     * Store a staged file under its content-addressed key; if the category already holds the same content
+     * only its reference count is incremented. Joins the caller's transaction, which should be short: a rolled
+     * back store leaves at most an unreferenced file behind.
+     *
+     * @param file     The staged file
+     * @param entityId The entity ID the file belongs to (for logging; names come from the content)
+     * @return The URL to access the file
+     */
+    public String storeStaged(StagedFile file, String entityId) {
+        try {
+            return moveIntoPlace(file.path(), file.category(), file.filename(), file.size(), entityId);
+        } catch (IOException e) {
+            log.error("Failed to store file", e);
+            throw new RuntimeException("Failed to store file: " + e.getMessage());
+        }
+    }
 
-            log.info("File stored successfully: {}", filename);
+    /**
+     * Take a reference on the content and put the temporary file under its content-addressed key,
+     * unless the category already holds the same content
+     */
+    private String moveIntoPlace(Path tempFile, String category, String filename, long size, String entityId)
+            throws IOException {
+        // Held until the caller commits, so the upload garbage collector cannot remove the content in between
+        lockContent(category, filename);
+        // Taking the row lock first orders this store after any concurrent release of the same file
+        Integer refCount = jdbcTemplate.queryForObject("""
+                INSERT INTO diet.stored_files (category, filename, size_bytes, ref_count, created_date)
+                VALUES (?, ?, ?, 1, now())
+                ON CONFLICT (category, filename)
+                DO UPDATE SET ref_count = stored_files.ref_count + 1, modified_date = now()
+                RETURNING ref_count
+                """, Integer.class, category, filename, size);
 
-            // Return URL path
-            return "/api/files/" + category + "/" + filename;
+        String key = objectKey(category, filename);
+        if (objectStore.stat(key) != null) {
+            log.info("File stored for {} as existing content: {} (references: {})", entityId, filename, refCount);
+        } else {
+            objectStore.put(key, tempFile, contentType(filename).toString());
+            evictStoredFile(category, filename);
+            log.info("File stored successfully for {}: {} ({} bytes)", entityId, filename, size);
+        }
+
+        // Return URL path
+        return "/api/files/" + category + "/" + filename;
+    }
 
+    private static String formatSize(long bytes) {
+        return bytes % (1024 * 1024) == 0 ? bytes / (1024 * 1024) + "MB" : bytes + " bytes";
+    }
+
+    /**
+     * Store generated content under a fixed name, e.g. a derivative named after its content hash.
+     * Readers never see a partial file.
+     *
+     * @param category The category
+     * @param filename The filename
+     * @param content  The file content
+     * @return The URL to access the file
+     */
+    public String storeFile(String category, String filename, byte[] content) {
+        try {
+            objectStore.put(objectKey(category, filename), content, contentType(filename).toString());
+            evictStoredFile(category, filename);
+            log.debug("File stored successfully: {}", filename);
+            return "/api/files/" + category + "/" + filename;
         } catch (IOException e) {
-            log.error("Failed to store file", e);
+            log.error("Failed to store file: {}", filename, e);
             throw new RuntimeException("Failed to store file: " + e.getMessage());
         }
     }
 
     /**
-     * Load a file as a Resource
+     * Read a stored file's content
      *
      * @param category The category
      * @param filename The filename
-     * @return The file as a Resource
+     * @return The file content
      */
-    public Resource loadFileAsResource(String category, String filename) {
-        try {
-            Path filePath = Paths.get(uploadDir, category).resolve(filename).normalize();
-            Resource resource = new UrlResource(filePath.toUri());
-            if (resource.exists() && resource.isReadable()) {
-                return resource;
-            } else {
-                log.error("File not found or not readable: {}", filePath);
-                throw new RuntimeException("File not found: " + filename);
-            }
-        } catch (MalformedURLException e) {
-            log.error("Error loading file", e);
+    public byte[] readFile(String category, String filename) {
+        try (InputStream input = objectStore.read(objectKey(category, filename))) {
+            return input.readAllBytes();
+        } catch (IOException e) {
+            log.error("Failed to read file: {}", filename, e);
             throw new RuntimeException("File not found: " + filename, e);
         }
     }
 
+    /**
+     * Look up a stored file for serving: its local path (null for a remote store) and cached attributes
+     *
+     * @param category The category
+     * @param filename The filename
+     * @return The file and its attributes
+     * @throws ResourceNotFoundException if the file does not exist or lies outside the category
+     */
+    public StoredFile getStoredFile(String category, String filename) {
+        String key = category + "/" + filename;
+        StoredFile cached = attributes.get(key);
+        if (cached != null) {
+            return cached;
+        }
+        String objectKey = objectKey(category, filename);
+        StoredObject object;
+        try {
+            object = objectStore.stat(objectKey);
+        } catch (IOException e) {
+            log.debug("File not readable: {}: {}", objectKey, e.getMessage());
+            object = null;
+        }
+        if (object == null) {
+            throw new ResourceNotFoundException("File not found: " + filename);
+        }
+        // Content-addressed files carry their hash; others are identified by size and modification time
+        String etag = CONTENT_ADDRESSED_NAME.matcher(filename).matches()
+                ? "\"" + filename.substring(0, 64) + "\""
+                : "\"" + Long.toHexString(object.size()) + "-" + Long.toHexString(object.lastModified()) + "\"";
+        StoredFile storedFile = new StoredFile(objectStore.localPath(objectKey), object.size(),
+                object.lastModified(), etag, contentType(filename));
+        attributes.put(key, storedFile);
+        return storedFile;
+    }
+
+    /**
+     * A URL the client can download the file from directly, bypassing this node, or null if the
+     * object store cannot hand those out and the file has to be served through getStoredFile
+     *
+     * @param category     The category
+     * @param filename     The filename
+     * @param cacheControl The Cache-Control the file is to be served with
+     */
+    public PresignedUrl getDownloadUrl(String category, String filename, String cacheControl) {
+        return objectStore.presignGet(objectKey(category, filename), cacheControl,
+                ContentDisposition.inline().filename(filename).build().toString());
+    }
+
+    /**
+     * Forget cached attributes, e.g. when a served file turned out to be gone
+     */
+    public void evictStoredFile(String category, String filename) {
+        attributes.invalidate(category + "/" + filename);
+    }
+
     /**
      * Delete a file
+     * A content-addressed file only loses one reference; it is removed once the last reference is released
+     * and the caller's transaction has committed.
      *
      * @param category The category
      * @param filename The filename
      */
     public void deleteFile(String category, String filename) {
+        if (CONTENT_ADDRESSED_NAME.matcher(filename).matches()) {
+            int released = jdbcTemplate.update("""
+                    UPDATE diet.stored_files SET ref_count = GREATEST(ref_count - 1, 0), modified_date = now()
+                    WHERE category = ? AND filename = ?
+                    """, category, filename);
+            if (released > 0) {
+                TransactionUtils.afterCommit(() -> removeIfUnreferenced(category, filename));
+                return;
+            }
+            // No reference row: stored before reference counting, delete directly
+        }
         try {
-            Path filePath = Paths.get(uploadDir, category).resolve(filename).normalize();
-            Files.deleteIfExists(filePath);
+            objectStore.delete(objectKey(category, filename));
+            evictStoredFile(category, filename);
             log.info("File deleted: {}", filename);
         } catch (IOException e) {
             log.error("Failed to delete file: {}", filename, e);
             throw new RuntimeException("Failed to delete file: " + e.getMessage());
         }
     }
+
+    /**
+     * Delete a file the upload garbage collector found unreferenced.
+     * A content-addressed file is only deleted, together with its reference row, if no store has taken a
+     * reference within the grace period; the content lock makes a store in progress finish first.
+     *
+     * @return true if the file was deleted
+     */
+    public boolean deleteOrphan(String category, String filename, Duration grace) {
+        Boolean deleted = releaseTransaction.execute(status -> {
+            if (CONTENT_ADDRESSED_NAME.matcher(filename).matches()) {
+                lockContent(category, filename);
+                Integer recentReferences = jdbcTemplate.queryForObject("""
+                        SELECT COUNT(*) FROM diet.stored_files
+                        WHERE category = ? AND filename = ?
+                          AND COALESCE(modified_date, created_date) > now() - make_interval(secs => ?)
+                        """, Integer.class, category, filename, grace.toSeconds());
+                if (recentReferences != null && recentReferences > 0) {
+                    return false;
+                }
+                jdbcTemplate.update("DELETE FROM diet.stored_files WHERE category = ? AND filename = ?", category, filename);
+            }
+            try {
+                objectStore.delete(objectKey(category, filename));
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            evictStoredFile(category, filename);
+            return true;
+        });
+        return Boolean.TRUE.equals(deleted);
+    }
+
+    /**
+     * Transaction-scoped advisory lock on one content-addressed file, taken by stores and the garbage collector
+     */
+    private void lockContent(String category, String filename) {
+        jdbcTemplate.queryForObject("SELECT 1 FROM pg_advisory_xact_lock(hashtextextended(?, 0))",
+                Integer.class, category + "/" + filename);
+    }
+
+    /**
+     * Remove a content-addressed file whose reference count dropped to zero. The object is deleted while the
+     * row delete holds its lock, so a concurrent store of the same content waits and then writes it anew.
+     */
+    private void removeIfUnreferenced(String category, String filename) {
+        try {
+            releaseTransaction.executeWithoutResult(status -> {
+                int removed = jdbcTemplate.update(
+                        "DELETE FROM diet.stored_files WHERE category = ? AND filename = ? AND ref_count = 0",
+                        category, filename);
+                if (removed == 0) {
+                    return;
+                }
+                try {
+                    objectStore.delete(objectKey(category, filename));
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+                evictStoredFile(category, filename);
+                log.info("File deleted (last reference released): {}", filename);
+            });
+        } catch (RuntimeException e) {
+            log.error("Failed to remove unreferenced file: {}", filename, e);
+        }
+    }
+
+    /**
+     * Object key of a logical file: hash-named files in shard directories ({category}/ab/cd/{filename}),
+     * other names flat in the category
+     *
+     * @throws ResourceNotFoundException if the category or name is not a single path segment
+     */
+    public String objectKey(String category, String filename) {
+        if (!isSegment(category) || !isSegment(filename)) {
+            throw new ResourceNotFoundException("File not found: " + filename);
+        }
+        return SHARDED_NAME.matcher(filename).matches()
+                ? category + "/" + filename.substring(0, 2) + "/" + filename.substring(2, 4) + "/" + filename
+                : category + "/" + filename;
+    }
+
+    private static boolean isSegment(String name) {
+        return name != null && !name.isEmpty() && !name.equals(".") && !name.equals("..")
+                && name.indexOf('/') < 0 && name.indexOf('\\') < 0;
+    }
+
+    private static MediaType contentType(String filename) {
+        return MediaTypeFactory.getMediaType(filename).orElse(MediaType.APPLICATION_OCTET_STREAM);
+    }
+
+    /**
+     * A stored file with the attributes needed to serve it: local path (null if the store is remote),
+     * strong ETag (size and modification time, files are never rewritten in place) and content type from the name.
+     */
+    public record StoredFile(Path path, long size, long lastModified, String etag, MediaType contentType) {
+    }
+
+    /**
+     * Uploaded content received into a staging file, named after its content hash. Closing deletes the
+     * staging file if the store has not taken it.
+     */
+    public record StagedFile(Path path, String category, String filename, long size) implements AutoCloseable {
+        @Override
+        public void close() {
+            try {
+                Files.deleteIfExists(path);
+            } catch (IOException e) {
+                log.warn("Failed to delete staging file {}: {}", path, e.getMessage());
+            }
+        }
+    }
 }
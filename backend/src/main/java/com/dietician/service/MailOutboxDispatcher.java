@@ -0,0 +1,253 @@
+package com.dietician.service;
+
+import com.dietician.model.MailOutboxMessage;
+import com.dietician.repository.MailOutboxRepository;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.mail.MessagingException;
+import jakarta.mail.internet.MimeMessage;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.mail.MailException;
+import org.springframework.mail.MailSendException;
+import org.springframework.mail.javamail.JavaMailSender;
+import org.springframework.mail.javamail.MimeMessageHelper;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.time.LocalDateTime;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Background dispatcher draining the mail outbox.
+ * Each batch is claimed in a short transaction (FOR UPDATE SKIP LOCKED, then status SENDING with a lease),
+ * sent over a single SMTP connection with no transaction open, and its outcome recorded in a second short
+ * transaction. A batch whose dispatcher dies mid-send is claimed again once the lease expires, so delivery
+ * is at least once.
+ * Failed messages are retried with exponential backoff and dead-lettered after the maximum number of attempts.
+ */
+@Slf4j
+@Service
+public class MailOutboxDispatcher {
+
+    private static final int MAX_ERROR_LENGTH = 1000;
+
+    private final MailOutboxRepository mailOutboxRepository;
+    private final JavaMailSender mailSender;
+    private final TransactionTemplate transactionTemplate;
+    private final Counter sentCounter;
+    private final Counter retryCounter;
+    private final Counter deadCounter;
+
+    @Value("${spring.mail.username}")
+    private String fromEmail;
+
+    @Value("${app.mail.outbox.batch-size:50}")
+    private int batchSize;
+
+    @Value("${app.mail.outbox.max-attempts:8}")
+    private int maxAttempts;
+
+    @Value("${app.mail.outbox.initial-backoff-ms:30000}")
+    private long initialBackoffMillis;
+
+    @Value("${app.mail.outbox.max-backoff-ms:3600000}")
+    private long maxBackoffMillis;
+
+    @Value("${app.mail.outbox.sent-retention-days:7}")
+    private int sentRetentionDays;
+
+    @Value("${app.mail.outbox.lease-ms:300000}")
+    private long leaseMillis;
+
+    public MailOutboxDispatcher(MailOutboxRepository mailOutboxRepository,
+                                JavaMailSender mailSender,
+                                PlatformTransactionManager transactionManager,
+                                MeterRegistry meterRegistry) {
+        this.mailOutboxRepository = mailOutboxRepository;
+        this.mailSender = mailSender;
+        this.transactionTemplate = new TransactionTemplate(transactionManager);
+
+        this.sentCounter = Counter.builder("mail.outbox.messages")
+                .tag("result", "sent")
+                .description("Outbox messages delivered")
+                .register(meterRegistry);
+        this.retryCounter = Counter.builder("mail.outbox.messages")
+                .tag("result", "retry")
+                .description("Outbox deliveries that failed and were rescheduled")
+                .register(meterRegistry);
+        this.deadCounter = Counter.builder("mail.outbox.messages")
+                .tag("result", "dead")
+                .description("Outbox messages dead-lettered after the maximum number of attempts")
+                .register(meterRegistry);
+    }
+
+    /**
+     * Drain due messages, one claimed batch at a time, until a batch comes back short.
+     */
+    @Scheduled(fixedDelayString = "${app.mail.outbox.poll-interval-ms:2000}")
+    public void dispatch() {
+        try {
+            int processed;
+            do {
+                processed = dispatchBatch();
+            } while (processed == batchSize);
+        } catch (Exception e) {
+            log.error("Mail outbox dispatch failed", e);
+        }
+    }
+
+    /**
+     * Delete delivered messages past the retention period.
+     */
+    @Scheduled(fixedDelayString = "${app.mail.outbox.purge-interval-ms:3600000}")
+    public void purgeSent() {
+        Integer deleted = transactionTemplate.execute(status ->
+                mailOutboxRepository.deleteSentBefore(LocalDateTime.now().minusDays(sentRetentionDays)));
+        if (deleted != null && deleted > 0) {
+            log.info("Purged {} delivered messages from the mail outbox", deleted);
+        }
+    }
+
+    /**
+     * Claim a batch, send it, then record the outcome of each message.
+     *
+     * @return the number of messages claimed
+     */
+    private int dispatchBatch() {
+        // Truncated to the column's precision: the lease identifies this claim when the outcome is recorded
+        LocalDateTime leaseExpiresAt = LocalDateTime.now().plus(leaseMillis, ChronoUnit.MILLIS)
+                .truncatedTo(ChronoUnit.MICROS);
+        List<MailOutboxMessage> batch = transactionTemplate.execute(status -> claimBatch(leaseExpiresAt));
+        if (batch == null || batch.isEmpty()) {
+            return 0;
+        }
+
+        Map<MailOutboxMessage, Exception> failed = new LinkedHashMap<>();
+        Map<MimeMessage, MailOutboxMessage> prepared = new LinkedHashMap<>();
+        for (MailOutboxMessage message : batch) {
+            if (message.getAttempts() >= maxAttempts) {
+                // Every earlier claim expired without an outcome (e.g. the dispatcher died mid-send)
+                failed.put(message, new IllegalStateException("Claim lease expired " + message.getAttempts() + " times"));
+                continue;
+            }
+            try {
+                prepared.put(toMimeMessage(message), message);
+            } catch (MessagingException | RuntimeException e) {
+                failed.put(message, e);
+            }
+        }
+
+        Map<Object, Exception> sendFailures = send(prepared);
+
+        List<Long> sent = new ArrayList<>();
+        prepared.forEach((mimeMessage, message) -> {
+            Exception failure = sendFailures.get(mimeMessage);
+            if (failure != null) {
+                failed.put(message, failure);
+            } else {
+                sent.add(message.getId());
+            }
+        });
+
+        transactionTemplate.executeWithoutResult(status -> {
+            if (!sent.isEmpty()) {
+                int updated = mailOutboxRepository.markSent(sent, leaseExpiresAt, LocalDateTime.now());
+                sentCounter.increment(sent.size());
+                if (updated < sent.size()) {
+                    log.warn("{} sent messages had been claimed again after their lease expired", sent.size() - updated);
+                }
+            }
+            failed.forEach((message, e) -> markFailed(message, leaseExpiresAt, e));
+        });
+
+        log.debug("Mail outbox batch processed: {} messages, {} failed", batch.size(), failed.size());
+        return batch.size();
+    }
+
+    private List<MailOutboxMessage> claimBatch(LocalDateTime leaseExpiresAt) {
+        List<MailOutboxMessage> batch = mailOutboxRepository.lockDueBatch(batchSize);
+        if (!batch.isEmpty()) {
+            mailOutboxRepository.claim(batch.stream().map(MailOutboxMessage::getId).toList(), leaseExpiresAt);
+        }
+        return batch;
+    }
+
+    /**
+     * Send the whole batch over one connection.
+     *
+     * @return the failed messages with their exceptions
+     */
+    private Map<Object, Exception> send(Map<MimeMessage, MailOutboxMessage> prepared) {
+        if (prepared.isEmpty()) {
+            return Collections.emptyMap();
+        }
+        try {
+            mailSender.send(prepared.keySet().toArray(new MimeMessage[0]));
+            return Collections.emptyMap();
+        } catch (MailSendException e) {
+            if (!e.getFailedMessages().isEmpty()) {
+                return e.getFailedMessages();
+            }
+            return failAll(prepared, e);
+        } catch (MailException e) {
+            // Connection or authentication failure: nothing in the batch was sent
+            return failAll(prepared, e);
+        }
+    }
+
+    private Map<Object, Exception> failAll(Map<MimeMessage, MailOutboxMessage> prepared, Exception e) {
+        Map<Object, Exception> failures = new LinkedHashMap<>();
+        prepared.keySet().forEach(mimeMessage -> failures.put(mimeMessage, e));
+        return failures;
+    }
+
+    private MimeMessage toMimeMessage(MailOutboxMessage message) throws MessagingException {
+        MimeMessage mimeMessage = mailSender.createMimeMessage();
+        MimeMessageHelper helper = new MimeMessageHelper(mimeMessage, Boolean.TRUE.equals(message.getHtml()), "UTF-8");
+
+        helper.setFrom(fromEmail);
+        helper.setTo(message.getRecipient());
+        helper.setSubject(message.getSubject());
+        helper.setText(message.getBody(), Boolean.TRUE.equals(message.getHtml()));
+        return mimeMessage;
+    }
+
+    /**
+     * Record a failed attempt: retry with backoff, or dead-letter after the maximum number of attempts.
+     * The message's attempts are as loaded, before the claim counted this attempt.
+     */
+    private void markFailed(MailOutboxMessage message, LocalDateTime leaseExpiresAt, Exception e) {
+        int attempts = message.getAttempts() + 1;
+        String lastError = truncate(e.getMessage());
+
+        if (attempts >= maxAttempts) {
+            mailOutboxRepository.markFailed(message.getId(), leaseExpiresAt, MailOutboxMessage.STATUS_DEAD,
+                    message.getNextAttemptAt(), lastError);
+            deadCounter.increment();
+            log.error("Giving up on mail {} after {} attempts: {}", message.getId(), attempts, e.getMessage());
+            return;
+        }
+
+        long backoff = Math.min(initialBackoffMillis << Math.min(attempts - 1, 20), maxBackoffMillis);
+        mailOutboxRepository.markFailed(message.getId(), leaseExpiresAt, MailOutboxMessage.STATUS_PENDING,
+                LocalDateTime.now().plusNanos(backoff * 1_000_000), lastError);
+        retryCounter.increment();
+        log.warn("Failed to send mail {} (attempt {}), retrying in {} ms: {}",
+                message.getId(), attempts, backoff, e.getMessage());
+    }
+
+    private static String truncate(String error) {
+        if (error == null || error.length() <= MAX_ERROR_LENGTH) {
+            return error;
+        }
+        return error.substring(0, MAX_ERROR_LENGTH);
+    }
+}
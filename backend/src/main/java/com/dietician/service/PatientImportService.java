@@ -0,0 +1,644 @@
+package com.dietician.service;
+
+import com.dietician.dto.AdminDto.CreateUserRequest;
+import com.dietician.dto.AdminDto.ImportJobResponse;
+import com.dietician.dto.AdminDto.ImportRowResult;
+import com.dietician.exception.ResourceNotFoundException;
+import com.dietician.model.Role;
+import com.dietician.repository.RoleRepository;
+import com.dietician.util.BoundedTtlCache;
+import com.dietician.util.EmailHashUtil;
+import com.dietician.util.EncryptionUtil;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import jakarta.annotation.PreDestroy;
+import jakarta.validation.ConstraintViolation;
+import jakarta.validation.Validator;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.RowCallbackHandler;
+import org.springframework.security.crypto.password.PasswordEncoder;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+/**
+ * Bulk patient import from CSV or NDJSON.
+ * The upload is spooled to a temporary file and processed by a background job, chunk by chunk:
+ * rows are validated, email hashes computed on a bounded worker pool, duplicates found with one
+ * email_search = ANY(...) probe per chunk, then AES-GCM encryption and BCrypt run on the same pool
+ * and the chunk is written with one multi-row INSERT. Progress and the per-row report are polled by job id.
+ */
+@Slf4j
+@Service
+public class PatientImportService {
+
+    public enum Format {
+        CSV,
+        NDJSON;
+
+        public static Format parse(String value) {
+            for (Format format : values()) {
+                if (format.name().equalsIgnoreCase(value)) {
+                    return format;
+                }
+            }
+            throw new IllegalArgumentException("Unsupported import format: " + value + ". Use csv or ndjson.");
+        }
+    }
+
+    public static final String STATUS_RUNNING = "RUNNING";
+    public static final String STATUS_COMPLETED = "COMPLETED";
+    public static final String STATUS_FAILED = "FAILED";
+
+    public static final String ROW_CREATED = "CREATED";
+    public static final String ROW_DUPLICATE = "DUPLICATE";
+    public static final String ROW_INVALID = "INVALID";
+    public static final String ROW_FAILED = "FAILED";
+
+    private static final String PATIENT_ROLE = "PATIENT";
+    private static final String[] USER_COLUMNS = {"email", "email_search", "password", "full_name", "role_id",
+            "is_active", "email_verified", "created_by", "created_date"};
+
+    private final JdbcTemplate jdbcTemplate;
+    private final TransactionTemplate transactionTemplate;
+    private final PasswordEncoder passwordEncoder;
+    private final EncryptionUtil encryptionUtil;
+    private final EmailService emailService;
+    private final RoleRepository roleRepository;
+    private final Validator validator;
+    private final ObjectMapper objectMapper;
+
+    private final BoundedTtlCache<String, ImportJob> jobs;
+    private final ThreadPoolExecutor jobExecutor;
+    private final ExecutorService workers;
+
+    private final int chunkSize;
+    private final int maxRows;
+    private final long maxBytes;
+
+    private final Map<String, Counter> rowCounters = new HashMap<>();
+    private final Timer chunkTimer;
+
+    public PatientImportService(JdbcTemplate jdbcTemplate,
+                                PlatformTransactionManager transactionManager,
+                                PasswordEncoder passwordEncoder,
+                                EncryptionUtil encryptionUtil,
+                                EmailService emailService,
+                                RoleRepository roleRepository,
+                                Validator validator,
+                                ObjectMapper objectMapper,
+                                MeterRegistry meterRegistry,
+                                @Value("${app.admin.import.chunk-size:500}") int chunkSize,
+                                @Value("${app.admin.import.workers:0}") int workerCount,
+                                @Value("${app.admin.import.max-rows:20000}") int maxRows,
+                                @Value("${app.admin.import.max-bytes:20971520}") long maxBytes,
+                                @Value("${app.admin.import.max-queued-jobs:4}") int maxQueuedJobs,
+                                @Value("${app.admin.import.job-ttl-ms:86400000}") long jobTtlMillis) {
+        this.jdbcTemplate = jdbcTemplate;
+        this.transactionTemplate = new TransactionTemplate(transactionManager);
+        this.passwordEncoder = passwordEncoder;
+        this.encryptionUtil = encryptionUtil;
+        this.emailService = emailService;
+        this.roleRepository = roleRepository;
+        this.validator = validator;
+        this.objectMapper = objectMapper;
+        // 9 bind parameters per row, Postgres allows at most 65535 per statement
+        this.chunkSize = Math.max(1, Math.min(chunkSize, 5000));
+        this.maxRows = maxRows;
+        this.maxBytes = maxBytes;
+
+        this.jobs = new BoundedTtlCache<>(1000, jobTtlMillis);
+        // One job at a time, a few queued; BCrypt already keeps every worker busy
+        this.jobExecutor = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(Math.max(1, maxQueuedJobs)), namedThreads("patient-import"));
+        // A quarter of the cores by default, so an import cannot starve logins, which hash BCrypt on request threads
+        int threads = workerCount > 0 ? workerCount : Math.max(1, Runtime.getRuntime().availableProcessors() / 4);
+        this.workers = Executors.newFixedThreadPool(threads, namedThreads("patient-import-worker"));
+
+        for (String result : List.of(ROW_CREATED, ROW_DUPLICATE, ROW_INVALID, ROW_FAILED)) {
+            rowCounters.put(result, Counter.builder("admin.import.rows")
+                    .tag("result", result.toLowerCase(Locale.ROOT))
+                    .description("Rows processed by bulk patient imports")
+                    .register(meterRegistry));
+        }
+        this.chunkTimer = Timer.builder("admin.import.chunk")
+                .description("Time taken to import one chunk of patients")
+                .register(meterRegistry);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        jobExecutor.shutdownNow();
+        workers.shutdownNow();
+    }
+
+    /**
+     * Spool the upload and queue it for import.
+     *
+     * @return the new job, still running
+     */
+    public ImportJobResponse startImport(InputStream body, Format format, String startedBy) throws IOException {
+        Path spool = Files.createTempFile("patient-import-", "." + format.name().toLowerCase(Locale.ROOT));
+        long size;
+        try {
+            size = copyWithLimit(body, spool);
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(spool);
+            throw e;
+        }
+
+        ImportJob job = new ImportJob(UUID.randomUUID().toString());
+        jobs.put(job.id, job);
+        try {
+            jobExecutor.execute(() -> run(job, spool, format, startedBy));
+        } catch (RejectedExecutionException e) {
+            jobs.invalidate(job.id);
+            Files.deleteIfExists(spool);
+            throw new IllegalStateException("Too many imports in progress, try again later");
+        }
+        log.info("Patient import {} queued by {} ({} bytes, {})", job.id, startedBy, size, format);
+        return job.toResponse(false);
+    }
+
+    /**
+     * Progress of an import job.
+     *
+     * @param includeRows whether to include the per-row report
+     */
+    public ImportJobResponse getJob(String jobId, boolean includeRows) {
+        ImportJob job = jobs.get(jobId);
+        if (job == null) {
+            throw new ResourceNotFoundException("Import job not found: " + jobId);
+        }
+        return job.toResponse(includeRows);
+    }
+
+    private long copyWithLimit(InputStream body, Path spool) throws IOException {
+        byte[] buffer = new byte[64 * 1024];
+        long total = 0;
+        try (OutputStream out = Files.newOutputStream(spool)) {
+            int read;
+            while ((read = body.read(buffer)) != -1) {
+                total += read;
+                if (total > maxBytes) {
+                    throw new IllegalArgumentException("Import file exceeds " + maxBytes + " bytes");
+                }
+                out.write(buffer, 0, read);
+            }
+        }
+        return total;
+    }
+
+    private void run(ImportJob job, Path spool, Format format, String startedBy) {
+        long start = System.nanoTime();
+        try (BufferedReader reader = Files.newBufferedReader(spool, StandardCharsets.UTF_8)) {
+            Long roleId = roleRepository.findByRoleCode(PATIENT_ROLE)
+                    .map(Role::getId)
+                    .orElseThrow(() -> new IllegalStateException("Role not found: " + PATIENT_ROLE));
+            RowReader rows = format == Format.CSV ? new CsvRowReader(reader) : new NdjsonRowReader(reader, objectMapper);
+            Set<String> seenHashes = new HashSet<>();
+
+            List<ImportRow> chunk = new ArrayList<>(chunkSize);
+            ImportRow row;
+            while ((row = rows.next()) != null) {
+                if (row.rowNumber() > maxRows) {
+                    job.setMessage("Only the first " + maxRows + " rows were imported");
+                    break;
+                }
+                chunk.add(row);
+                if (chunk.size() == chunkSize) {
+                    job.addResults(processChunk(chunk, roleId, startedBy, seenHashes));
+                    chunk = new ArrayList<>(chunkSize);
+                }
+            }
+            if (!chunk.isEmpty()) {
+                job.addResults(processChunk(chunk, roleId, startedBy, seenHashes));
+            }
+
+            job.finish(STATUS_COMPLETED, null);
+            ImportJobResponse summary = job.toResponse(false);
+            log.info("Patient import {} completed: {} rows, {} created in {} ms", job.id, summary.getProcessedRows(),
+                    summary.getCreatedRows(), TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+        } catch (Exception e) {
+            log.error("Patient import {} failed after {} rows", job.id, job.toResponse(false).getProcessedRows(), e);
+            job.finish(STATUS_FAILED, e.getMessage());
+        } finally {
+            try {
+                Files.deleteIfExists(spool);
+            } catch (IOException e) {
+                log.warn("Failed to delete import spool file {}", spool, e);
+            }
+        }
+    }
+
+    private List<ImportRowResult> processChunk(List<ImportRow> chunk, Long roleId, String startedBy,
+                                               Set<String> seenHashes) {
+        long start = System.nanoTime();
+        List<ImportRowResult> results = new ArrayList<>(chunk.size());
+
+        // Validate
+        List<ImportRow> valid = new ArrayList<>(chunk.size());
+        for (ImportRow row : chunk) {
+            String error = row.error() != null ? row.error() : validate(row);
+            if (error != null) {
+                results.add(new ImportRowResult(row.rowNumber(), ROW_INVALID, null, error));
+            } else {
+                valid.add(row);
+            }
+        }
+
+        // Hash, then drop duplicates within the file and already registered emails
+        List<String> hashes = parallelMap(valid, row -> EmailHashUtil.hash(row.email()));
+        Set<String> existing = findExistingHashes(hashes);
+        List<ImportRow> fresh = new ArrayList<>(valid.size());
+        List<String> freshHashes = new ArrayList<>(valid.size());
+        for (int i = 0; i < valid.size(); i++) {
+            String hash = hashes.get(i);
+            if (existing.contains(hash) || !seenHashes.add(hash)) {
+                results.add(new ImportRowResult(valid.get(i).rowNumber(), ROW_DUPLICATE, null,
+                        "User already exists with this email"));
+            } else {
+                fresh.add(valid.get(i));
+                freshHashes.add(hash);
+            }
+        }
+
+        // Encrypt and hash passwords only for rows that will be inserted
+        List<PreparedUser> prepared = parallelMap(indexes(fresh.size()), i -> prepare(fresh.get(i), freshHashes.get(i)));
+        if (!prepared.isEmpty()) {
+            try {
+                results.addAll(transactionTemplate.execute(status -> insert(prepared, roleId, startedBy)));
+            } catch (Exception e) {
+                log.error("Patient import chunk of {} rows failed", prepared.size(), e);
+                for (PreparedUser user : prepared) {
+                    results.add(new ImportRowResult(user.row().rowNumber(), ROW_FAILED, null, "Insert failed"));
+                }
+            }
+        }
+
+        results.forEach(result -> rowCounters.get(result.getStatus()).increment());
+        chunkTimer.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+        results.sort(Comparator.comparingInt(ImportRowResult::getRowNumber));
+        return results;
+    }
+
+    private String validate(ImportRow row) {
+        CreateUserRequest request = new CreateUserRequest();
+        request.setEmail(row.email());
+        request.setFullName(row.fullName());
+        request.setRole(PATIENT_ROLE);
+        request.setPassword(row.password());
+
+        Set<ConstraintViolation<CreateUserRequest>> violations = validator.validate(request);
+        if (violations.isEmpty()) {
+            return null;
+        }
+        return violations.stream()
+                .map(ConstraintViolation::getMessage)
+                .sorted()
+                .collect(Collectors.joining("; "));
+    }
+
+    private Set<String> findExistingHashes(List<String> hashes) {
+        if (hashes.isEmpty()) {
+            return Set.of();
+        }
+        return new HashSet<>(jdbcTemplate.queryForList(
+                "SELECT email_search FROM diet.users WHERE email_search = ANY(?)",
+                String.class, (Object) hashes.toArray(new String[0])));
+    }
+
+    private PreparedUser prepare(ImportRow row, String emailHash) {
+        String tempPassword = row.password() == null || row.password().isEmpty()
+                ? AdminService.generateTempPassword()
+                : null;
+        String password = tempPassword != null ? tempPassword : row.password();
+        return new PreparedUser(row, emailHash, encryptionUtil.encrypt(row.email()),
+                passwordEncoder.encode(password), tempPassword);
+    }
+
+    /**
+     * Insert a chunk with one multi-row statement and queue the temporary password mails.
+     * Rows that lost a race with a concurrent registration are reported as duplicates.
+     */
+    private List<ImportRowResult> insert(List<PreparedUser> users, Long roleId, String startedBy) {
+        String placeholders = "(?, ?, ?, ?, ?, ?, ?, ?, now())";
+        StringBuilder sql = new StringBuilder("INSERT INTO diet.users (")
+                .append(String.join(", ", USER_COLUMNS)).append(") VALUES ");
+        List<Object> args = new ArrayList<>(users.size() * 8);
+        for (int i = 0; i < users.size(); i++) {
+            if (i > 0) {
+                sql.append(", ");
+            }
+            sql.append(placeholders);
+            PreparedUser user = users.get(i);
+            Collections.addAll(args, user.encryptedEmail(), user.emailHash(), user.passwordHash(),
+                    user.row().fullName().trim(), roleId, true, false, startedBy);
+        }
+        sql.append(" ON CONFLICT (email_search) DO NOTHING RETURNING id, email_search");
+
+        Map<String, Long> ids = new HashMap<>();
+        jdbcTemplate.query(sql.toString(), (RowCallbackHandler) rs -> ids.put(rs.getString(2), rs.getLong(1)),
+                args.toArray());
+
+        List<ImportRowResult> results = new ArrayList<>(users.size());
+        for (PreparedUser user : users) {
+            Long id = ids.get(user.emailHash());
+            if (id == null) {
+                results.add(new ImportRowResult(user.row().rowNumber(), ROW_DUPLICATE, null,
+                        "User already exists with this email"));
+                continue;
+            }
+            if (user.tempPassword() != null) {
+                emailService.sendAccountCreatedEmail(user.row().email().trim(), user.tempPassword(),
+                        user.row().fullName().trim());
+            }
+            results.add(new ImportRowResult(user.row().rowNumber(), ROW_CREATED, id, null));
+        }
+        return results;
+    }
+
+    /**
+     * Apply a function to every item on the worker pool, keeping the order.
+     */
+    private <T, R> List<R> parallelMap(List<T> items, Function<T, R> function) {
+        List<CompletableFuture<R>> futures = new ArrayList<>(items.size());
+        for (T item : items) {
+            futures.add(CompletableFuture.supplyAsync(() -> function.apply(item), workers));
+        }
+        List<R> results = new ArrayList<>(items.size());
+        try {
+            for (CompletableFuture<R> future : futures) {
+                results.add(future.join());
+            }
+        } catch (CompletionException e) {
+            futures.forEach(future -> future.cancel(false));
+            if (e.getCause() instanceof RuntimeException cause) {
+                throw cause;
+            }
+            throw e;
+        }
+        return results;
+    }
+
+    private static List<Integer> indexes(int size) {
+        List<Integer> indexes = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            indexes.add(i);
+        }
+        return indexes;
+    }
+
+    private static ThreadFactory namedThreads(String prefix) {
+        AtomicInteger counter = new AtomicInteger();
+        return runnable -> {
+            Thread thread = new Thread(runnable, prefix + "-" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    /**
+     * One parsed input row; error is set when the row could not be parsed.
+     */
+    private record ImportRow(int rowNumber, String email, String fullName, String password, String error) {
+    }
+
+    private record PreparedUser(ImportRow row, String emailHash, String encryptedEmail, String passwordHash,
+                                String tempPassword) {
+    }
+
+    private interface RowReader {
+        /**
+         * @return the next row, or null at the end of the input
+         */
+        ImportRow next() throws IOException;
+    }
+
+    /**
+     * CSV with a header row naming the email, full_name (or fullName) and optional password columns.
+     * Quoted fields may contain commas, doubled quotes and line breaks.
+     */
+    private static final class CsvRowReader implements RowReader {
+
+        private final Reader reader;
+        private final int emailColumn;
+        private final int fullNameColumn;
+        private final int passwordColumn;
+        private int rowNumber;
+
+        CsvRowReader(Reader reader) throws IOException {
+            this.reader = reader;
+            List<String> header = readRecord();
+            if (header == null) {
+                throw new IllegalArgumentException("CSV file is empty");
+            }
+            Map<String, Integer> columns = new HashMap<>();
+            for (int i = 0; i < header.size(); i++) {
+                columns.put(header.get(i).trim().replace("_", "").toLowerCase(Locale.ROOT), i);
+            }
+            if (!columns.containsKey("email") || !columns.containsKey("fullname")) {
+                throw new IllegalArgumentException("CSV header must contain email and full_name columns");
+            }
+            this.emailColumn = columns.get("email");
+            this.fullNameColumn = columns.get("fullname");
+            this.passwordColumn = columns.getOrDefault("password", -1);
+        }
+
+        @Override
+        public ImportRow next() throws IOException {
+            List<String> record;
+            do {
+                record = readRecord();
+                if (record == null) {
+                    return null;
+                }
+            } while (record.size() == 1 && record.get(0).isBlank());
+
+            rowNumber++;
+            return new ImportRow(rowNumber, column(record, emailColumn), column(record, fullNameColumn),
+                    column(record, passwordColumn), null);
+        }
+
+        private static String column(List<String> record, int index) {
+            return index >= 0 && index < record.size() ? record.get(index) : null;
+        }
+
+        private List<String> readRecord() throws IOException {
+            List<String> fields = new ArrayList<>();
+            StringBuilder field = new StringBuilder();
+            boolean quoted = false;
+            int c = reader.read();
+            if (c == -1) {
+                return null;
+            }
+            while (c != -1) {
+                if (quoted) {
+                    if (c == '"') {
+                        reader.mark(1);
+                        int next = reader.read();
+                        if (next == '"') {
+                            field.append('"');
+                        } else {
+                            quoted = false;
+                            reader.reset();
+                        }
+                    } else {
+                        field.append((char) c);
+                    }
+                } else if (c == '"' && field.isEmpty()) {
+                    quoted = true;
+                } else if (c == ',') {
+                    fields.add(field.toString());
+                    field.setLength(0);
+                } else if (c == '\n') {
+                    break;
+                } else if (c != '\r') {
+                    field.append((char) c);
+                }
+                c = reader.read();
+            }
+            fields.add(field.toString());
+            return fields;
+        }
+    }
+
+    /**
+     * One JSON object per line with email, fullName (or full_name) and optional password.
+     */
+    private static final class NdjsonRowReader implements RowReader {
+
+        private final BufferedReader reader;
+        private final ObjectMapper objectMapper;
+        private int rowNumber;
+
+        NdjsonRowReader(BufferedReader reader, ObjectMapper objectMapper) {
+            this.reader = reader;
+            this.objectMapper = objectMapper;
+        }
+
+        @Override
+        public ImportRow next() throws IOException {
+            String line;
+            do {
+                line = reader.readLine();
+                if (line == null) {
+                    return null;
+                }
+            } while (line.isBlank());
+
+            rowNumber++;
+            try {
+                JsonNode node = objectMapper.readTree(line);
+                JsonNode fullName = node.has("fullName") ? node.get("fullName") : node.get("full_name");
+                return new ImportRow(rowNumber, text(node.get("email")), text(fullName), text(node.get("password")), null);
+            } catch (IOException e) {
+                return new ImportRow(rowNumber, null, null, null, "Invalid JSON");
+            }
+        }
+
+        private static String text(JsonNode node) {
+            return node == null || node.isNull() ? null : node.asText();
+        }
+    }
+
+    /**
+     * Mutable job state, written by the import thread and read by pollers.
+     */
+    private static final class ImportJob {
+
+        private final String id;
+        private final LocalDateTime startedDate = LocalDateTime.now();
+        private final List<ImportRowResult> results = new ArrayList<>();
+        private String status = STATUS_RUNNING;
+        private String message;
+        private LocalDateTime finishedDate;
+        private int processed;
+        private int created;
+        private int duplicates;
+        private int invalid;
+        private int failed;
+
+        ImportJob(String id) {
+            this.id = id;
+        }
+
+        synchronized void addResults(List<ImportRowResult> chunkResults) {
+            results.addAll(chunkResults);
+            for (ImportRowResult result : chunkResults) {
+                processed++;
+                switch (result.getStatus()) {
+                    case ROW_CREATED -> created++;
+                    case ROW_DUPLICATE -> duplicates++;
+                    case ROW_INVALID -> invalid++;
+                    default -> failed++;
+                }
+            }
+        }
+
+        synchronized void setMessage(String message) {
+            this.message = message;
+        }
+
+        synchronized void finish(String status, String failureMessage) {
+            this.status = status;
+            if (failureMessage != null) {
+                this.message = failureMessage;
+            }
+            this.finishedDate = LocalDateTime.now();
+        }
+
+        synchronized ImportJobResponse toResponse(boolean includeRows) {
+            return ImportJobResponse.builder()
+                    .jobId(id)
+                    .status(status)
+                    .message(message)
+                    .startedDate(startedDate)
+                    .finishedDate(finishedDate)
+                    .processedRows(processed)
+                    .createdRows(created)
+                    .duplicateRows(duplicates)
+                    .invalidRows(invalid)
+                    .failedRows(failed)
+                    .rows(includeRows ? new ArrayList<>(results) : null)
+                    .build();
+        }
+    }
+}
@@ -0,0 +1,260 @@
+package com.dietician.service;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Service;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.ImageOutputStream;
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Pre-sized profile photo derivatives (64, 256 and 1024 px on the long side, JPEG).
+ * The original is decoded once on a background executor, subsampled while decoding when it is far
+ * larger than the biggest size, and every derivative is scaled from that one image. Derivatives are
+ * named after the SHA-256 of the original, so their URLs never change content and can be cached for a year;
+ * a new photo gets a new key. Until the key is recorded on the profile, clients use the original URL.
+ */
+@Slf4j
+@Service
+public class ProfilePhotoDerivativeService {
+
+    public static final String CATEGORY = "avatars";
+    public static final List<Integer> SIZES = List.of(64, 256, 1024);
+
+    private static final String ORIGINAL_CATEGORY = "profile-photos";
+    private static final float JPEG_QUALITY = 0.85f;
+
+    private final JdbcTemplate jdbcTemplate;
+    private final FileStorageService fileStorageService;
+    private final ProfileResponseCache profileResponseCache;
+    private final ThreadPoolExecutor executor;
+    private final MeterRegistry meterRegistry;
+
+    public ProfilePhotoDerivativeService(JdbcTemplate jdbcTemplate,
+                                         FileStorageService fileStorageService,
+                                         ProfileResponseCache profileResponseCache,
+                                         MeterRegistry meterRegistry,
+                                         @Value("${app.profile-photo.derivative-threads:2}") int threads,
+                                         @Value("${app.profile-photo.max-queued:100}") int maxQueued) {
+        this.jdbcTemplate = jdbcTemplate;
+        this.fileStorageService = fileStorageService;
+        this.profileResponseCache = profileResponseCache;
+        this.meterRegistry = meterRegistry;
+
+        AtomicInteger threadCount = new AtomicInteger();
+        int poolSize = Math.max(1, threads);
+        this.executor = new ThreadPoolExecutor(poolSize, poolSize, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(Math.max(1, maxQueued)), runnable -> {
+                    Thread thread = new Thread(runnable, "photo-derivatives-" + threadCount.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                });
+        meterRegistry.gauge("profile.photo.derivatives.queued", executor, pool -> pool.getQueue().size());
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * URLs of a photo's derivatives by size, or null if they have not been generated.
+     */
+    public static Map<Integer, String> derivativeUrls(String key) {
+        if (key == null) {
+            return null;
+        }
+        Map<Integer, String> urls = new LinkedHashMap<>();
+        for (int size : SIZES) {
+            urls.put(size, "/api/files/" + CATEGORY + "/" + derivativeFilename(key, size));
+        }
+        return urls;
+    }
+
+    /**
+     * Queue derivative generation for a user's newly stored photo. Call once the photo URL is committed.
+     * When the queue is full the photo is served without derivatives; the next upload retries.
+     */
+    public void schedule(Long userId, String photoUrl) {
+        try {
+            executor.execute(() -> generate(userId, photoUrl));
+        } catch (RejectedExecutionException e) {
+            log.warn("Derivative queue full, photo of user {} served at original size only", userId);
+            record("rejected", 0L);
+        }
+    }
+
+    /**
+     * Delete a key's derivatives once no profile uses it any more (the same photo may be shared).
+     */
+    public void deleteIfUnreferenced(String key) {
+        if (key == null) {
+            return;
+        }
+        Integer references = jdbcTemplate.queryForObject(
+                "SELECT COUNT(*) FROM diet.user_profiles WHERE profile_photo_key = ?", Integer.class, key);
+        if (references != null && references > 0) {
+            return;
+        }
+        for (int size : SIZES) {
+            try {
+                fileStorageService.deleteFile(CATEGORY, derivativeFilename(key, size));
+            } catch (Exception e) {
+                log.warn("Failed to delete photo derivative {}: {}", derivativeFilename(key, size), e.getMessage());
+            }
+        }
+    }
+
+    private void generate(Long userId, String photoUrl) {
+        long start = System.nanoTime();
+        try {
+            byte[] original = fileStorageService.readFile(ORIGINAL_CATEGORY, photoUrl.substring(photoUrl.lastIndexOf('/') + 1));
+            String key = sha256(original);
+
+            BufferedImage image = decode(original, SIZES.get(SIZES.size() - 1));
+            if (image == null) {
+                log.warn("Photo of user {} is not a decodable image, no derivatives generated", userId);
+                record("undecodable", start);
+                return;
+            }
+            for (int size : SIZES) {
+                fileStorageService.storeFile(CATEGORY, derivativeFilename(key, size), encodeJpeg(scale(image, size)));
+            }
+
+            // Only record the key if the photo was not replaced meanwhile
+            int updated = jdbcTemplate.update("""
+                    UPDATE diet.user_profiles SET profile_photo_key = ?, modified_date = now()
+                    WHERE user_id = ? AND profile_photo_url = ?
+                    """, key, userId, photoUrl);
+            if (updated > 0) {
+                profileResponseCache.evict(userId);
+            } else {
+                deleteIfUnreferenced(key);
+            }
+            log.info("Photo derivatives generated for user: {} ({}x{})", userId, image.getWidth(), image.getHeight());
+            record("generated", start);
+        } catch (Exception e) {
+            log.error("Failed to generate photo derivatives for user: {}", userId, e);
+            record("failed", start);
+        }
+    }
+
+    private void record(String result, long start) {
+        Timer.builder("profile.photo.derivatives")
+                .tag("result", result)
+                .description("Time taken to generate the size derivatives of one profile photo")
+                .register(meterRegistry)
+                .record(start == 0L ? 0L : System.nanoTime() - start, TimeUnit.NANOSECONDS);
+    }
+
+    private static String derivativeFilename(String key, int size) {
+        return key + "-" + size + ".jpg";
+    }
+
+    /**
+     * Decode the image, subsampling rows and columns while reading when it is at least twice as large as
+     * needed, so a 5 MB camera photo never becomes a full-resolution raster. Null if no reader supports it.
+     */
+    private static BufferedImage decode(byte[] content, int largestSize) throws IOException {
+        try (ImageInputStream input = ImageIO.createImageInputStream(new ByteArrayInputStream(content))) {
+            Iterator<ImageReader> readers = ImageIO.getImageReaders(input);
+            if (!readers.hasNext()) {
+                return null;
+            }
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(input, true, true);
+                int longSide = Math.max(reader.getWidth(0), reader.getHeight(0));
+                ImageReadParam param = reader.getDefaultReadParam();
+                int subsampling = Math.max(1, longSide / (2 * largestSize));
+                param.setSourceSubsampling(subsampling, subsampling, 0, 0);
+                return reader.read(0, param);
+            } finally {
+                reader.dispose();
+            }
+        }
+    }
+
+    /**
+     * Scale to fit a size x size box without upscaling, halving in steps for a smooth result,
+     * onto an opaque RGB canvas (transparent areas become white, as JPEG has no alpha).
+     */
+    private static BufferedImage scale(BufferedImage source, int size) {
+        double ratio = Math.min(1.0, (double) size / Math.max(source.getWidth(), source.getHeight()));
+        int targetWidth = Math.max(1, (int) Math.round(source.getWidth() * ratio));
+        int targetHeight = Math.max(1, (int) Math.round(source.getHeight() * ratio));
+
+        BufferedImage current = source;
+        int width = source.getWidth();
+        int height = source.getHeight();
+        do {
+            width = Math.max(targetWidth, width / 2);
+            height = Math.max(targetHeight, height / 2);
+            BufferedImage step = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+            Graphics2D graphics = step.createGraphics();
+            try {
+                graphics.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+                graphics.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
+                graphics.setColor(Color.WHITE);
+                graphics.fillRect(0, 0, width, height);
+                graphics.drawImage(current, 0, 0, width, height, null);
+            } finally {
+                graphics.dispose();
+            }
+            current = step;
+        } while (width != targetWidth || height != targetHeight);
+        return current;
+    }
+
+    private static byte[] encodeJpeg(BufferedImage image) throws IOException {
+        ImageWriter writer = ImageIO.getImageWritersByFormatName("jpeg").next();
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        try (ImageOutputStream imageOutput = ImageIO.createImageOutputStream(output)) {
+            writer.setOutput(imageOutput);
+            ImageWriteParam param = writer.getDefaultWriteParam();
+            param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+            param.setCompressionQuality(JPEG_QUALITY);
+            writer.write(null, new IIOImage(image, null, null), param);
+        } finally {
+            writer.dispose();
+        }
+        return output.toByteArray();
+    }
+
+    private static String sha256(byte[] content) {
+        try {
+            return HexFormat.of().formatHex(MessageDigest.getInstance("SHA-256").digest(content));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 not available", e);
+        }
+    }
+}
@@ -0,0 +1,70 @@
+package com.dietician.service;
+
+import com.dietician.dto.UserProfileDto;
+import com.dietician.util.BoundedTtlCache;
+import com.dietician.util.TransactionUtils;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * Bounded, TTL-based cache of assembled profile responses keyed by user ID.
+ * Sits in front of the profile projection query so reading one's own profile is a single lookup.
+ * Entries are evicted explicitly when the profile, the user's name, email or verification status changes;
+ * the TTL bounds how stale a change made elsewhere (another node, manual SQL) or the computed age can get.
+ * Cached responses are shared and must not be modified by callers.
+ */
+@Slf4j
+@Component
+public class ProfileResponseCache {
+
+    private final BoundedTtlCache<Long, UserProfileDto.ProfileResponse> cache;
+    // Bumped on every eviction, so a response loaded before a concurrent change is never stored
+    private final AtomicLong generation = new AtomicLong();
+
+    public ProfileResponseCache(
+            @Value("${app.profile.cache.max-size:10000}") int maxSize,
+            @Value("${app.profile.cache.ttl-ms:300000}") long ttlMillis,
+            MeterRegistry meterRegistry) {
+        this.cache = new BoundedTtlCache<Long, UserProfileDto.ProfileResponse>(maxSize, ttlMillis)
+                .registerMetrics(meterRegistry, "profiles");
+
+        log.info("ProfileResponseCache initialized with max size: {}, ttl: {} ms", maxSize, ttlMillis);
+    }
+
+    /**
+     * Cached response for the user, loading and caching it on a miss. A null load result is returned but not cached.
+     */
+    public UserProfileDto.ProfileResponse get(Long userId, Supplier<UserProfileDto.ProfileResponse> loader) {
+        UserProfileDto.ProfileResponse cached = cache.get(userId);
+        if (cached != null) {
+            return cached;
+        }
+        long before = generation.get();
+        UserProfileDto.ProfileResponse loaded = loader.get();
+        if (loaded != null && generation.get() == before) {
+            cache.put(userId, loaded);
+        }
+        return loaded;
+    }
+
+    /**
+     * Evict a user's profile now and again once the current transaction commits.
+     */
+    public void evict(Long userId) {
+        if (userId == null) {
+            return;
+        }
+        Runnable evict = () -> {
+            generation.incrementAndGet();
+            cache.invalidate(userId);
+        };
+        evict.run();
+        TransactionUtils.afterCommit(evict);
+        log.debug("Evicted cached profile for user: {}", userId);
+    }
+}
@@ -0,0 +1,112 @@
+package com.dietician.service;
+
+import com.dietician.dto.AdminDto.RoleResponse;
+import com.dietician.security.RoleActionsChangedEvent;
+import com.dietician.util.BoundedTtlCache;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.event.TransactionPhase;
+import org.springframework.transaction.event.TransactionalEventListener;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * Serialized reference data (roles, actions and role-action assignments) with strong ETags.
+ * Responses are serialized once and served as bytes until the role actions change, so repeat
+ * calls cost neither a query nor a serialization pass, and a matching If-None-Match costs nothing but the compare.
+ * Changes committed on this node clear the cache at once; entries also expire after a TTL, which bounds how long
+ * other nodes serve (and validate ETags against) data changed elsewhere.
+ */
+@Slf4j
+@Component
+public class ReferenceDataCache {
+
+    private static final String ROLES_KEY = "roles";
+    private static final String ACTIONS_KEY = "actions";
+
+    private final AdminService adminService;
+    private final ObjectMapper objectMapper;
+
+    private final BoundedTtlCache<String, CachedResponse> responses;
+    // Bumped on every invalidation, so a response built from data read before it is never stored
+    private final AtomicLong generation = new AtomicLong();
+
+    public ReferenceDataCache(AdminService adminService,
+                              ObjectMapper objectMapper,
+                              MeterRegistry meterRegistry,
+                              @Value("${app.reference-data.cache.max-size:1000}") int maxSize,
+                              @Value("${app.reference-data.cache.ttl-ms:30000}") long ttlMillis) {
+        this.adminService = adminService;
+        this.objectMapper = objectMapper;
+        this.responses = new BoundedTtlCache<String, CachedResponse>(maxSize, ttlMillis)
+                .registerMetrics(meterRegistry, "reference-data");
+    }
+
+    public CachedResponse roles() {
+        return get(ROLES_KEY, adminService::getAllRoles);
+    }
+
+    public CachedResponse actions() {
+        return get(ACTIONS_KEY, adminService::getAllActions);
+    }
+
+    /**
+     * Actions with their assignment to the role. Only existing roles are cached.
+     */
+    public CachedResponse roleActions(Long roleId) {
+        String key = "role-actions:" + roleId;
+        CachedResponse cached = responses.get(key);
+        if (cached != null) {
+            return cached;
+        }
+        boolean knownRole = adminService.getAllRoles().stream().map(RoleResponse::getId).anyMatch(roleId::equals);
+        return knownRole
+                ? get(key, () -> adminService.getRoleActions(roleId))
+                : serialize(adminService.getRoleActions(roleId));
+    }
+
+    @TransactionalEventListener(phase = TransactionPhase.AFTER_COMMIT, fallbackExecution = true)
+    public void onRoleActionsChanged(RoleActionsChangedEvent event) {
+        generation.incrementAndGet();
+        responses.clear();
+        log.info("Role actions changed for role: {}, reference data cache cleared", event.roleId());
+    }
+
+    private CachedResponse get(String key, Supplier<List<?>> loader) {
+        CachedResponse cached = responses.get(key);
+        if (cached != null) {
+            return cached;
+        }
+        long before = generation.get();
+        CachedResponse loaded = serialize(loader.get());
+        if (generation.get() == before) {
+            responses.put(key, loaded);
+        }
+        return loaded;
+    }
+
+    private CachedResponse serialize(Object value) {
+        try {
+            byte[] body = objectMapper.writeValueAsBytes(value);
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(body);
+            return new CachedResponse(body, "\"" + HexFormat.of().formatHex(digest, 0, 16) + "\"");
+        } catch (JsonProcessingException | NoSuchAlgorithmException e) {
+            throw new IllegalStateException("Failed to serialize reference data", e);
+        }
+    }
+
+    /**
+     * Serialized JSON body and its strong ETag (quoted, derived from the body).
+     */
+    public record CachedResponse(byte[] body, String etag) {
+    }
+}
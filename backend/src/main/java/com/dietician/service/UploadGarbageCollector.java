@@ -0,0 +1,307 @@
+package com.dietician.service;
+
+import com.dietician.storage.ObjectStore;
+import com.dietician.storage.ObjectStore.StoredObject;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.RowCallbackHandler;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Predicate;
+
+/**
+ * Mark-and-sweep removal of uploaded files nothing references any more: photos replaced while the old file
+ * could not be deleted, stores whose transaction rolled back, and temporary files of interrupted uploads.
+ * Mark streams every referenced file URL into a hash set; sweep lists the object store and deletes files older
+ * than the grace period that are not in it. The listing is throttled to a maximum number of files per second.
+ * With a shared (S3) store a Postgres advisory lock lets only one node collect at a time; with a local store
+ * every node collects its own disk.
+ * Every table column holding /api/files/ URLs must be listed in REFERENCE_QUERIES.
+ */
+@Slf4j
+@Service
+public class UploadGarbageCollector {
+
+    private static final String URL_PREFIX = "/api/files/";
+    private static final String TEMP_FILE_PREFIX = ".tmp-";
+    private static final int FETCH_SIZE = 1000;
+    // Arbitrary key for pg_try_advisory_lock, so only one node collects a shared store at a time
+    private static final long ADVISORY_LOCK_KEY = 0x75706c6f61646763L;
+
+    // Every query returns file URLs that are still in use
+    private static final List<String> REFERENCE_QUERIES = List.of(
+            "SELECT profile_photo_url FROM diet.user_profiles WHERE profile_photo_url LIKE '/api/files/%'",
+            "SELECT profile_picture_url FROM diet.users WHERE profile_picture_url LIKE '/api/files/%'");
+    // Keys whose size derivatives are in use
+    private static final String DERIVATIVE_KEYS_QUERY =
+            "SELECT profile_photo_key FROM diet.user_profiles WHERE profile_photo_key IS NOT NULL";
+
+    private final JdbcTemplate jdbcTemplate;
+    private final TransactionTemplate readTransaction;
+    private final FileStorageService fileStorageService;
+    private final ObjectStore objectStore;
+    private final AtomicBoolean running = new AtomicBoolean();
+    private final ThreadPoolExecutor executor = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS,
+            new ArrayBlockingQueue<>(1), runnable -> {
+                Thread thread = new Thread(runnable, "upload-gc");
+                thread.setDaemon(true);
+                return thread;
+            });
+
+    private final Counter filesDeleted;
+    private final Counter bytesReclaimed;
+    private final Timer runTimer;
+
+    @Value("${app.upload.gc.grace-hours:24}")
+    private long graceHours;
+
+    @Value("${app.upload.gc.max-files-per-second:1000}")
+    private int maxFilesPerSecond;
+
+    @Value("${app.upload.gc.dry-run:false}")
+    private boolean dryRun;
+
+    public UploadGarbageCollector(JdbcTemplate jdbcTemplate,
+                                  PlatformTransactionManager transactionManager,
+                                  FileStorageService fileStorageService,
+                                  ObjectStore objectStore,
+                                  MeterRegistry meterRegistry) {
+        this.jdbcTemplate = jdbcTemplate;
+        // A transaction keeps the cursor open, so the driver streams rows by fetch size
+        this.readTransaction = new TransactionTemplate(transactionManager);
+        this.readTransaction.setReadOnly(true);
+        this.fileStorageService = fileStorageService;
+        this.objectStore = objectStore;
+        this.filesDeleted = Counter.builder("upload.gc.files.deleted")
+                .description("Unreferenced uploaded files deleted")
+                .register(meterRegistry);
+        this.bytesReclaimed = Counter.builder("upload.gc.bytes.reclaimed")
+                .description("Disk space reclaimed from unreferenced uploaded files")
+                .baseUnit("bytes")
+                .register(meterRegistry);
+        this.runTimer = Timer.builder("upload.gc")
+                .description("Time taken by one upload garbage collection run")
+                .register(meterRegistry);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * Start a collection run on the collector's own thread. The run throttles itself by sleeping, which must
+     * not happen on the shared scheduler threads that also dispatch the mail outbox.
+     */
+    @Scheduled(cron = "${app.upload.gc.cron:0 15 3 * * *}")
+    public void collect() {
+        if (!running.compareAndSet(false, true)) {
+            log.info("Upload garbage collection already running, skipping");
+            return;
+        }
+        try {
+            executor.execute(() -> {
+                try {
+                    if (objectStore.isShared()) {
+                        runLocked();
+                    } else {
+                        runTimer.record(this::run);
+                    }
+                } catch (Exception e) {
+                    log.error("Upload garbage collection failed", e);
+                } finally {
+                    running.set(false);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            running.set(false);
+            log.warn("Upload garbage collection not started: executor shut down");
+        }
+    }
+
+    /**
+     * Run while holding the advisory lock on a connection of its own, or skip if another node holds it
+     */
+    private void runLocked() {
+        jdbcTemplate.execute((Connection connection) -> {
+            if (!tryLock(connection)) {
+                log.info("Upload garbage collection already running on another node, skipping");
+                return null;
+            }
+            try {
+                runTimer.record(this::run);
+            } finally {
+                unlock(connection);
+            }
+            return null;
+        });
+    }
+
+    private boolean tryLock(Connection connection) throws SQLException {
+        try (PreparedStatement statement = connection.prepareStatement("SELECT pg_try_advisory_lock(?)")) {
+            statement.setLong(1, ADVISORY_LOCK_KEY);
+            try (ResultSet resultSet = statement.executeQuery()) {
+                return resultSet.next() && resultSet.getBoolean(1);
+            }
+        }
+    }
+
+    private void unlock(Connection connection) throws SQLException {
+        try (PreparedStatement statement = connection.prepareStatement("SELECT pg_advisory_unlock(?)")) {
+            statement.setLong(1, ADVISORY_LOCK_KEY);
+            statement.executeQuery().close();
+        }
+    }
+
+    private void run() {
+        Duration grace = Duration.ofHours(graceHours);
+        // Files written after this point may be referenced by rows the mark did not see
+        Instant cutoff = Instant.now().minus(grace);
+
+        Set<String> referenced = mark();
+        Sweep sweep = new Sweep(referenced, cutoff, grace);
+        try {
+            objectStore.list(sweep);
+        } catch (IOException e) {
+            log.error("Upload garbage collection listing failed after {} files", sweep.visited, e);
+        }
+        log.info("Upload garbage collection {}: {} files checked, {} referenced, {} deleted, {} bytes reclaimed",
+                dryRun ? "(dry run)" : "finished", sweep.visited, referenced.size(), sweep.deleted, sweep.reclaimed);
+    }
+
+    /**
+     * Logical keys (category/filename) of every referenced file
+     */
+    private Set<String> mark() {
+        Set<String> referenced = new HashSet<>();
+        readTransaction.executeWithoutResult(status -> {
+            for (String query : REFERENCE_QUERIES) {
+                stream(query, resultSet -> addUrl(referenced, resultSet.getString(1)));
+            }
+            stream(DERIVATIVE_KEYS_QUERY, resultSet -> ProfilePhotoDerivativeService
+                    .derivativeUrls(resultSet.getString(1)).values()
+                    .forEach(url -> addUrl(referenced, url)));
+        });
+        return referenced;
+    }
+
+    private void stream(String query, RowCallbackHandler handler) {
+        jdbcTemplate.query(connection -> {
+            PreparedStatement statement = connection.prepareStatement(query);
+            statement.setFetchSize(FETCH_SIZE);
+            return statement;
+        }, handler);
+    }
+
+    private static void addUrl(Set<String> referenced, String url) {
+        if (url != null && url.startsWith(URL_PREFIX)) {
+            referenced.add(url.substring(URL_PREFIX.length()));
+        }
+    }
+
+    private final class Sweep implements Predicate<StoredObject> {
+        private final Set<String> referenced;
+        private final Instant cutoff;
+        private final Duration grace;
+        private final long startNanos = System.nanoTime();
+
+        private long visited;
+        private long deleted;
+        private long reclaimed;
+
+        private Sweep(Set<String> referenced, Instant cutoff, Duration grace) {
+            this.referenced = referenced;
+            this.cutoff = cutoff;
+            this.grace = grace;
+        }
+
+        /**
+         * Delete the object if it is unreferenced and old enough; false once the run is interrupted
+         */
+        @Override
+        public boolean test(StoredObject object) {
+            if (Thread.currentThread().isInterrupted()) {
+                return false;
+            }
+            throttle(++visited);
+            String key = object.key();
+            int categoryEnd = key.indexOf('/');
+            if (categoryEnd < 0 || Instant.ofEpochMilli(object.lastModified()).isAfter(cutoff)) {
+                return true;
+            }
+            String category = key.substring(0, categoryEnd);
+            String filename = key.substring(key.lastIndexOf('/') + 1);
+            if (referenced.contains(category + "/" + filename)) {
+                return true;
+            }
+
+            try {
+                boolean removed;
+                if (dryRun) {
+                    removed = true;
+                } else if (filename.startsWith(TEMP_FILE_PREFIX)) {
+                    objectStore.delete(key);
+                    removed = true;
+                } else if (!key.equals(fileStorageService.objectKey(category, filename))) {
+                    // Not where the file would be looked up, so not something deleteOrphan can address
+                    log.warn("Upload outside its expected location left alone: {}", key);
+                    removed = false;
+                } else {
+                    removed = fileStorageService.deleteOrphan(category, filename, grace);
+                }
+                if (removed) {
+                    deleted++;
+                    reclaimed += object.size();
+                    if (!dryRun) {
+                        filesDeleted.increment();
+                        bytesReclaimed.increment(object.size());
+                    }
+                    log.debug("Unreferenced upload {}: {} ({} bytes)", dryRun ? "found" : "deleted", key, object.size());
+                }
+            } catch (Exception e) {
+                log.warn("Failed to delete unreferenced upload {}: {}", key, e.getMessage());
+            }
+            return true;
+        }
+
+        /**
+         * Sleep as needed to stay under the configured files per second
+         */
+        private void throttle(long count) {
+            if (maxFilesPerSecond <= 0) {
+                return;
+            }
+            long aheadNanos = count * TimeUnit.SECONDS.toNanos(1) / maxFilesPerSecond - (System.nanoTime() - startNanos);
+            if (aheadNanos > TimeUnit.MILLISECONDS.toNanos(10)) {
+                try {
+                    TimeUnit.NANOSECONDS.sleep(aheadNanos);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+    }
+}
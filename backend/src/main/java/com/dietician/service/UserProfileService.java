@@ -6,19 +6,31 @@ import com.dietician.model.User;
 import com.dietician.model.UserProfile;
 import com.dietician.repository.UserProfileRepository;
 import com.dietician.repository.UserRepository;
+import com.dietician.security.PrincipalCache;
+import com.dietician.security.SecurityEpochRegistry;
+import com.dietician.util.ContentTypeSniffer;
 import com.dietician.util.EmailHashUtil;
 import com.dietician.util.EncryptionUtil;
+import com.dietician.util.ResourceVersion;
+import com.dietician.util.TransactionUtils;
 import jakarta.persistence.EntityManager;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.http.MediaType;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionTemplate;
 import org.springframework.web.multipart.MultipartFile;
 
+import java.io.IOException;
+import java.io.InputStream;
 import java.security.SecureRandom;
+import java.time.LocalDate;
 import java.time.LocalDateTime;
 import java.time.Period;
+import java.util.List;
 import java.util.Optional;
+import java.util.Set;
 
 /**
  * Service for managing user profile operations
@@ -29,6 +41,11 @@ import java.util.Optional;
 @RequiredArgsConstructor
 public class UserProfileService {
 
+    private static final long MAX_PHOTO_BYTES = 5 * 1024 * 1024;
+    // Checked against the sniffed content, not the client's Content-Type
+    private static final Set<MediaType> PHOTO_TYPES = Set.of(MediaType.IMAGE_JPEG, MediaType.IMAGE_PNG,
+            MediaType.IMAGE_GIF, ContentTypeSniffer.IMAGE_WEBP, ContentTypeSniffer.IMAGE_HEIC);
+
     private final UserProfileRepository profileRepository;
     private final UserRepository userRepository;
     private final EntityManager entityManager;
@@ -37,38 +54,110 @@ public class UserProfileService {
     private final EmailService emailService;
     private final com.dietician.security.JwtTokenProvider tokenProvider;
     private final EncryptionUtil encryptionUtil;
+    private final PrincipalCache principalCache;
+    private final SecurityEpochRegistry securityEpochRegistry;
+    private final ProfileResponseCache profileResponseCache;
+    private final ProfilePhotoDerivativeService photoDerivativeService;
+    // Photo uploads are received outside any transaction and recorded in a short one
+    private final TransactionTemplate transactionTemplate;
     private final SecureRandom secureRandom = new SecureRandom();
 
     /**
      * Get user profile by user ID
+     * Served from the per-user response cache; a miss costs one projection query and one email decrypt
      */
     @Transactional(readOnly = true)
     public UserProfileDto.ProfileResponse getProfile(Long userId) {
-        UserProfile profile = profileRepository.findByUserId(userId)
-                .orElse(null);
+        UserProfileDto.ProfileResponse response = profileResponseCache.get(userId, () -> loadProfile(userId));
+        return response != null ? response : new UserProfileDto.ProfileResponse();
+    }
+
+    /**
+     * Version of the user's profile for conditional GETs, or null if the user does not exist.
+     * One indexed lookup of the modified dates, no decryption or response building.
+     */
+    @Transactional(readOnly = true)
+    public ResourceVersion getProfileVersion(Long userId) {
+        List<?> rows = entityManager.createNativeQuery("""
+                SELECT u.id, GREATEST(u.created_date, u.modified_date, p.created_date, p.modified_date)
+                FROM diet.users u
+                LEFT JOIN diet.user_profiles p ON p.user_id = u.id
+                WHERE u.id = :userId
+                """)
+                .setParameter("userId", userId)
+                .getResultList();
+        return rows.isEmpty() ? null : ResourceVersion.fromRow((Object[]) rows.get(0));
+    }
+
+    /**
+     * Load everything the profile response needs in a single query, or null if the user does not exist
+     */
+    private UserProfileDto.ProfileResponse loadProfile(Long userId) {
+        List<?> rows = entityManager.createNativeQuery("""
+                SELECT p.id, p.first_name, p.middle_name, p.last_name, p.date_of_birth, p.gender,
+                       p.country_code, p.mobile_number, p.country, p.state, p.address_line, p.pincode,
+                       p.profile_photo_url, u.full_name, u.email_verified, u.email, u.google_id IS NOT NULL,
+                       p.profile_photo_key
+                FROM diet.users u
+                LEFT JOIN diet.user_profiles p ON p.user_id = u.id
+                WHERE u.id = :userId
+                """)
+                .setParameter("userId", userId)
+                .getResultList();
+        if (rows.isEmpty()) {
+            return null;
+        }
+
+        Object[] row = (Object[]) rows.get(0);
+        UserProfileDto.ProfileResponse response = new UserProfileDto.ProfileResponse();
+        if (row[0] == null) {
+            // User without a profile yet
+            return response;
+        }
+
+        String firstName = (String) row[1];
+        String middleName = (String) row[2];
+        String lastName = (String) row[3];
+        LocalDate dateOfBirth = row[4] instanceof java.sql.Date date ? date.toLocalDate() : (LocalDate) row[4];
+        String countryCode = (String) row[6];
+        String mobileNumber = (String) row[7];
+        boolean isOAuthUser = Boolean.TRUE.equals(row[16]);
 
-        // Fetch email from database (decrypt it for the response)
         String email = null;
-        Boolean isOAuthUser = false;
-        if (profile != null) {
+        if (row[15] != null) {
             try {
-                Object[] result = (Object[]) entityManager.createNativeQuery(
-                        "SELECT u.email, u.google_id FROM diet.users u WHERE u.id = :userId")
-                        .setParameter("userId", userId)
-                        .getSingleResult();
-                if (result != null && result[0] != null) {
-                    String encryptedEmail = (String) result[0];
-                    email = encryptionUtil.decrypt(encryptedEmail);
-                }
-                if (result != null && result[1] != null) {
-                    isOAuthUser = true;
-                }
+                email = encryptionUtil.decrypt((String) row[15]);
             } catch (Exception e) {
-                log.warn("Could not fetch email for user: {}", userId);
+                log.warn("Could not decrypt email for user: {}", userId);
             }
         }
 
-        return mapToResponse(profile, email, null, null, false, isOAuthUser);
+        response.setId(((Number) row[0]).longValue());
+        response.setUserId(userId);
+        response.setFirstName(firstName);
+        response.setMiddleName(middleName);
+        response.setLastName(lastName);
+        response.setDateOfBirth(dateOfBirth);
+        response.setAge(calculateAge(dateOfBirth));
+        response.setGender((String) row[5]);
+        response.setCountryCode(countryCode);
+        response.setMobileNumber(mobileNumber);
+        if (countryCode != null && mobileNumber != null) {
+            response.setFullPhoneNumber(countryCode + " " + mobileNumber);
+        }
+        response.setEmail(email);
+        response.setCountry((String) row[8]);
+        response.setState((String) row[9]);
+        response.setAddressLine((String) row[10]);
+        response.setPincode((String) row[11]);
+        response.setProfilePhotoUrl((String) row[12]);
+        response.setProfilePhotoSizes(ProfilePhotoDerivativeService.derivativeUrls((String) row[17]));
+        response.setEmailVerified((Boolean) row[14]);
+        response.setEmailChanged(false);
+        response.setForceLogout(false);
+        response.setIsOAuthUser(isOAuthUser);
+        response.setFullName(buildFullName(firstName, middleName, lastName, (String) row[13]));
+        return response;
     }
 
     /**
@@ -126,6 +215,7 @@ public class UserProfileService {
 
         profile = profileRepository.save(profile);
         log.info("Profile saved for user: {} (profile ID: {})", userId, profile.getId());
+        profileResponseCache.evict(userId);
 
         // Create audit log
         String action = (profile.getId() != null && profile.getCreatedBy() != null) ? "UPDATE" : "INSERT";
@@ -138,24 +228,46 @@ public class UserProfileService {
      * Upload profile photo
      * Uses native query to avoid encrypted email field
      */
-    @Transactional
     public UserProfileDto.PhotoUploadResponse uploadProfilePhoto(Long userId, MultipartFile file) {
         // Validate file
         if (file.isEmpty()) {
             throw new RuntimeException("Please select a file to upload");
         }
 
-        // Validate file type
-        String contentType = file.getContentType();
-        if (contentType == null || !contentType.startsWith("image/")) {
-            throw new RuntimeException("Only image files are allowed");
+        // Validate file size (max 5MB)
+        if (file.getSize() > MAX_PHOTO_BYTES) {
+            throw new RuntimeException("File size must not exceed 5MB");
         }
 
-        // Validate file size (max 5MB)
-        if (file.getSize() > 5 * 1024 * 1024) {
+        try (InputStream content = file.getInputStream()) {
+            return uploadProfilePhoto(userId, content, file.getSize());
+        } catch (IOException e) {
+            log.error("Failed to read uploaded photo for user: {}", userId, e);
+            throw new RuntimeException("Failed to store file: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Upload profile photo streamed as the raw request body
+     * The body is read once, straight into storage: the image type is sniffed from the first bytes and
+     * the size limit enforced while it is received, so a bad upload is rejected before it is fully read.
+     * Receiving happens outside any transaction, so a slow client holds no database connection; only the
+     * reference count and profile update run in a transaction.
+     *
+     * @param declaredLength Content-Length of the request, if sent, for rejecting oversized uploads up front
+     */
+    public UserProfileDto.PhotoUploadResponse uploadProfilePhoto(Long userId, InputStream content, Long declaredLength) {
+        if (declaredLength != null && declaredLength > MAX_PHOTO_BYTES) {
             throw new RuntimeException("File size must not exceed 5MB");
         }
 
+        try (FileStorageService.StagedFile staged = fileStorageService.stageFile(content, "profile-photos",
+                MAX_PHOTO_BYTES, PHOTO_TYPES)) {
+            return transactionTemplate.execute(status -> saveProfilePhoto(userId, staged));
+        }
+    }
+
+    private UserProfileDto.PhotoUploadResponse saveProfilePhoto(Long userId, FileStorageService.StagedFile staged) {
         // Check if user exists using native query
         Long userCount = ((Number) entityManager.createNativeQuery(
                 "SELECT COUNT(*) FROM diet.users WHERE id = :userId")
@@ -185,6 +297,9 @@ public class UserProfileService {
             log.info("Updating photo for existing profile for user: {} (profile ID: {})", userId, profile.getId());
         }
 
+        // Upload new file before releasing the old one, so a rejected upload leaves the current photo intact
+        String fileUrl = fileStorageService.storeStaged(staged, userId.toString());
+
         // Delete old photo if exists
         if (profile.getProfilePhotoUrl() != null) {
             String oldFilename = extractFilename(profile.getProfilePhotoUrl());
@@ -195,11 +310,23 @@ public class UserProfileService {
             }
         }
 
-        // Upload new file
-        String fileUrl = fileStorageService.storeFile(file, "profile-photos", userId.toString());
         profile.setProfilePhotoUrl(fileUrl);
         profileRepository.save(profile);
 
+        // Derivatives of the old photo no longer apply; new ones are generated once the new URL is committed
+        String oldPhotoKey = profile.getProfilePhotoKey();
+        entityManager.createNativeQuery("UPDATE diet.user_profiles SET profile_photo_key = NULL WHERE id = :id")
+                .setParameter("id", profile.getId())
+                .executeUpdate();
+        profileResponseCache.evict(userId);
+        TransactionUtils.afterCommit(() -> {
+            photoDerivativeService.schedule(userId, fileUrl);
+            // Re-uploading the same photo keeps its derivatives
+            if (oldPhotoKey != null && !extractFilename(fileUrl).startsWith(oldPhotoKey)) {
+                photoDerivativeService.deleteIfUnreferenced(oldPhotoKey);
+            }
+        });
+
         log.info("Profile photo uploaded for user: {}", userId);
 
         // Create audit log
@@ -308,6 +435,7 @@ public class UserProfileService {
         response.setAddressLine(profile.getAddressLine());
         response.setPincode(profile.getPincode());
         response.setProfilePhotoUrl(profile.getProfilePhotoUrl());
+        response.setProfilePhotoSizes(ProfilePhotoDerivativeService.derivativeUrls(profile.getProfilePhotoKey()));
         response.setEmailVerified(emailVerified);
 
         // Set JWT tokens if email was changed
@@ -317,22 +445,29 @@ public class UserProfileService {
         response.setForceLogout(emailChanged && isOAuthUser);
         response.setIsOAuthUser(isOAuthUser);
 
-        // Build full name
+        response.setFullName(buildFullName(profile.getFirstName(), profile.getMiddleName(),
+                profile.getLastName(), userFullName));
+
+        return response;
+    }
+
+    /**
+     * Build full name from the profile name parts, falling back to the account's full name
+     */
+    private String buildFullName(String firstName, String middleName, String lastName, String userFullName) {
         StringBuilder fullName = new StringBuilder();
-        if (profile.getFirstName() != null) {
-            fullName.append(profile.getFirstName());
+        if (firstName != null) {
+            fullName.append(firstName);
         }
-        if (profile.getMiddleName() != null && !profile.getMiddleName().isEmpty()) {
+        if (middleName != null && !middleName.isEmpty()) {
             if (fullName.length() > 0) fullName.append(" ");
-            fullName.append(profile.getMiddleName());
+            fullName.append(middleName);
         }
-        if (profile.getLastName() != null) {
+        if (lastName != null) {
             if (fullName.length() > 0) fullName.append(" ");
-            fullName.append(profile.getLastName());
+            fullName.append(lastName);
         }
-        response.setFullName(fullName.length() > 0 ? fullName.toString() : userFullName);
-
-        return response;
+        return fullName.length() > 0 ? fullName.toString() : userFullName;
     }
 
     /**
@@ -465,6 +600,10 @@ public class UserProfileService {
         user.setOtpExpiry(null);
         user.setEmailVerified(true);
         userRepository.save(user);
+        principalCache.evictUser(userId);
+        profileResponseCache.evict(userId);
+        // Tokens issued for the old email are revoked; the new ones below carry the new epoch
+        long securityEpoch = securityEpochRegistry.bump(userId);
 
         log.info("Email updated for user: {} to: {}", userId, normalizedEmail);
 
@@ -472,8 +611,9 @@ public class UserProfileService {
         auditLogService.createAuditLog("users", userId, "EMAIL_CHANGE", normalizedEmail, null);
 
         // Generate new JWT tokens with new email
-        String accessToken = tokenProvider.generateToken(normalizedEmail);
-        String refreshToken = tokenProvider.generateRefreshToken(normalizedEmail);
+        String accessToken = tokenProvider.generateToken(
+                normalizedEmail, userId, user.getRole().getRoleCode(), securityEpoch);
+        String refreshToken = tokenProvider.generateRefreshToken(normalizedEmail, securityEpoch);
 
         // Build UserInfo response
         AuthDto.UserInfo userInfo = new AuthDto.UserInfo();
@@ -580,6 +720,9 @@ public class UserProfileService {
         user.setEmailSearch(newEmailHash);
         user.setEmailVerified(true);
         userRepository.save(user);
+        principalCache.evictUser(userId);
+        profileResponseCache.evict(userId);
+        securityEpochRegistry.bump(userId);
 
         log.info("Email updated for OAuth user: {} to: {}", userId, normalizedEmail);
 
@@ -0,0 +1,85 @@
+package com.dietician.storage;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.function.Predicate;
+
+/**
+ * Where uploaded file content lives, addressed by slash-separated keys ({category}/ab/cd/{filename}).
+ * Selected with app.storage.type: local keeps files under app.upload.dir on this node's disk, s3 keeps them
+ * in an S3-compatible bucket shared by every node. Reference counts and locks stay in the database,
+ * so they are shared either way.
+ */
+public interface ObjectStore {
+
+    /**
+     * Directory for temporary files being prepared for put(Path). Local stores return one on their own
+     * filesystem, so the put is a rename.
+     */
+    Path stagingDirectory() throws IOException;
+
+    /**
+     * Store a prepared file under the key, replacing any object there. The file is consumed.
+     */
+    void put(String key, Path file, String contentType) throws IOException;
+
+    /**
+     * Store content under the key, replacing any object there. Readers never see a partial object.
+     */
+    void put(String key, byte[] content, String contentType) throws IOException;
+
+    /**
+     * Size and modification time of the object, or null if there is none
+     */
+    StoredObject stat(String key) throws IOException;
+
+    /**
+     * Open the object's content
+     *
+     * @throws java.nio.file.NoSuchFileException if there is no such object
+     */
+    InputStream read(String key) throws IOException;
+
+    /**
+     * Delete the object if it exists
+     */
+    void delete(String key) throws IOException;
+
+    /**
+     * Visit every object until the visitor returns false
+     */
+    void list(Predicate<StoredObject> visitor) throws IOException;
+
+    /**
+     * Path of the object on this node's disk, or null if the store is remote
+     */
+    Path localPath(String key);
+
+    /**
+     * Whether every node sees the same objects, rather than each node having its own
+     */
+    boolean isShared();
+
+    /**
+     * A URL clients can fetch the object from directly, or null if it must be served through the application
+     *
+     * @param cacheControl       Cache-Control the object is served with
+     * @param contentDisposition Content-Disposition the object is served with
+     */
+    PresignedUrl presignGet(String key, String cacheControl, String contentDisposition);
+
+    /**
+     * An object's key, size in bytes and modification time in epoch milliseconds
+     */
+    record StoredObject(String key, long size, long lastModified) {
+    }
+
+    /**
+     * A pre-signed URL; the same URL is handed out, and may be cached, until reusableUntil
+     */
+    record PresignedUrl(URI uri, Instant reusableUntil) {
+    }
+}
@@ -0,0 +1,462 @@
+package com.dietician.storage;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.StringReader;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.function.Predicate;
+
+/**
+ * Objects in an S3-compatible bucket (AWS S3, MinIO), so every node sees the same files and none keeps state.
+ * Requests are signed with AWS Signature Version 4 over the JDK HTTP client; files larger than the part size
+ * are sent as multipart uploads, one part in memory at a time. Clients download through pre-signed GET URLs.
+ * The signing time of those is rounded down to half their lifetime, so the same URL is handed out for a while
+ * and the browser cache keeps working; every URL handed out stays valid for at least half its lifetime.
+ * Buckets should abort incomplete multipart uploads with a lifecycle rule in case a node dies mid-upload.
+ */
+@Slf4j
+@Component
+@ConditionalOnProperty(name = "app.storage.type", havingValue = "s3")
+public class S3ObjectStore implements ObjectStore {
+
+    private static final String ALGORITHM = "AWS4-HMAC-SHA256";
+    private static final String UNSIGNED_PAYLOAD = "UNSIGNED-PAYLOAD";
+    private static final String SIGNED_HEADERS = "host;x-amz-content-sha256;x-amz-date";
+    private static final DateTimeFormatter AMZ_DATE =
+            DateTimeFormatter.ofPattern("yyyyMMdd'T'HHmmss'Z'").withZone(ZoneOffset.UTC);
+    // S3 rejects parts below 5 MB except the last one
+    private static final int MIN_PART_SIZE = 5 * 1024 * 1024;
+    private static final long MAX_PRESIGN_SECONDS = 7 * 24 * 3600;
+
+    private static final XMLInputFactory XML = XMLInputFactory.newFactory();
+
+    static {
+        XML.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        XML.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+    }
+
+    private final HttpClient httpClient;
+    private final URI endpoint;
+    private final URI publicEndpoint;
+    private final String region;
+    private final String bucket;
+    private final String accessKey;
+    private final String secretKey;
+    private final boolean pathStyle;
+    private final int partSize;
+    private final long presignSeconds;
+    private final Duration requestTimeout;
+
+    public S3ObjectStore(
+            @Value("${app.storage.s3.endpoint}") String endpoint,
+            @Value("${app.storage.s3.public-endpoint:}") String publicEndpoint,
+            @Value("${app.storage.s3.region:us-east-1}") String region,
+            @Value("${app.storage.s3.bucket}") String bucket,
+            @Value("${app.storage.s3.access-key}") String accessKey,
+            @Value("${app.storage.s3.secret-key}") String secretKey,
+            @Value("${app.storage.s3.path-style:true}") boolean pathStyle,
+            @Value("${app.storage.s3.part-size:8388608}") int partSize,
+            @Value("${app.storage.s3.presign-ttl-seconds:900}") long presignSeconds,
+            @Value("${app.storage.s3.request-timeout-ms:60000}") long requestTimeoutMillis) {
+        this.endpoint = URI.create(endpoint);
+        // Clients may reach the store under another name than the nodes do (e.g. MinIO behind nginx)
+        this.publicEndpoint = publicEndpoint.isBlank() ? this.endpoint : URI.create(publicEndpoint);
+        this.region = region;
+        this.bucket = bucket;
+        this.accessKey = accessKey;
+        this.secretKey = secretKey;
+        this.pathStyle = pathStyle;
+        this.partSize = Math.max(MIN_PART_SIZE, partSize);
+        this.presignSeconds = Math.max(2, Math.min(MAX_PRESIGN_SECONDS, presignSeconds));
+        this.requestTimeout = Duration.ofMillis(requestTimeoutMillis);
+        this.httpClient = HttpClient.newBuilder()
+                .connectTimeout(Duration.ofSeconds(10))
+                .build();
+        log.info("Object storage: S3 bucket {} at {}", bucket, this.endpoint);
+    }
+
+    @Override
+    public Path stagingDirectory() throws IOException {
+        return Files.createDirectories(Paths.get(System.getProperty("java.io.tmpdir"), "dietician-uploads"));
+    }
+
+    @Override
+    public void put(String key, Path file, String contentType) throws IOException {
+        try {
+            long size = Files.size(file);
+            if (size <= partSize) {
+                check(send("PUT", key, Map.of(), contentType, HttpRequest.BodyPublishers.ofFile(file)), "PUT", key);
+            } else {
+                putMultipart(key, file, contentType);
+            }
+        } finally {
+            Files.deleteIfExists(file);
+        }
+    }
+
+    @Override
+    public void put(String key, byte[] content, String contentType) throws IOException {
+        check(send("PUT", key, Map.of(), contentType, HttpRequest.BodyPublishers.ofByteArray(content)), "PUT", key);
+    }
+
+    @Override
+    public StoredObject stat(String key) throws IOException {
+        HttpResponse<String> response = send("HEAD", key, Map.of(), null, HttpRequest.BodyPublishers.noBody());
+        if (response.statusCode() == 404) {
+            return null;
+        }
+        check(response, "HEAD", key);
+        long size = response.headers().firstValueAsLong("Content-Length").orElse(0L);
+        long lastModified = response.headers().firstValue("Last-Modified")
+                .map(value -> ZonedDateTime.parse(value, DateTimeFormatter.RFC_1123_DATE_TIME).toInstant().toEpochMilli())
+                .orElse(0L);
+        return new StoredObject(key, size, lastModified);
+    }
+
+    @Override
+    public InputStream read(String key) throws IOException {
+        HttpResponse<InputStream> response = exchange(
+                request("GET", endpoint, key, "", null, HttpRequest.BodyPublishers.noBody()),
+                HttpResponse.BodyHandlers.ofInputStream());
+        if (response.statusCode() / 100 != 2) {
+            try (InputStream body = response.body()) {
+                if (response.statusCode() == 404) {
+                    throw new NoSuchFileException(key);
+                }
+                throw failure("GET", key, response.statusCode(), new String(body.readNBytes(4096), StandardCharsets.UTF_8));
+            }
+        }
+        return response.body();
+    }
+
+    @Override
+    public void delete(String key) throws IOException {
+        HttpResponse<String> response = send("DELETE", key, Map.of(), null, HttpRequest.BodyPublishers.noBody());
+        if (response.statusCode() != 404) {
+            check(response, "DELETE", key);
+        }
+    }
+
+    @Override
+    public void list(Predicate<StoredObject> visitor) throws IOException {
+        String continuationToken = null;
+        do {
+            Map<String, String> query = new TreeMap<>();
+            query.put("list-type", "2");
+            if (continuationToken != null) {
+                query.put("continuation-token", continuationToken);
+            }
+            HttpResponse<String> response = send("GET", "", query, null, HttpRequest.BodyPublishers.noBody());
+            check(response, "LIST", bucket);
+            continuationToken = visitListing(response.body(), visitor);
+        } while (continuationToken != null);
+    }
+
+    @Override
+    public Path localPath(String key) {
+        return null;
+    }
+
+    @Override
+    public boolean isShared() {
+        return true;
+    }
+
+    @Override
+    public PresignedUrl presignGet(String key, String cacheControl, String contentDisposition) {
+        return presignGet(key, cacheControl, contentDisposition, Instant.now());
+    }
+
+    /**
+     * Pre-signed GET as of the given time
+     */
+    PresignedUrl presignGet(String key, String cacheControl, String contentDisposition, Instant now) {
+        long window = presignSeconds / 2;
+        Instant signedAt = Instant.ofEpochSecond(now.getEpochSecond() / window * window);
+        String amzDate = AMZ_DATE.format(signedAt);
+
+        Map<String, String> query = new TreeMap<>();
+        query.put("X-Amz-Algorithm", ALGORITHM);
+        query.put("X-Amz-Credential", accessKey + "/" + scope(amzDate));
+        query.put("X-Amz-Date", amzDate);
+        query.put("X-Amz-Expires", Long.toString(presignSeconds));
+        query.put("X-Amz-SignedHeaders", "host");
+        if (cacheControl != null) {
+            query.put("response-cache-control", cacheControl);
+        }
+        if (contentDisposition != null) {
+            query.put("response-content-disposition", contentDisposition);
+        }
+        String canonicalQuery = canonicalQuery(query);
+        String canonicalRequest = "GET\n" + canonicalPath(key) + "\n" + canonicalQuery + "\n"
+                + "host:" + authority(publicEndpoint) + "\n\nhost\n" + UNSIGNED_PAYLOAD;
+        String signature = sign(amzDate, canonicalRequest);
+
+        URI uri = URI.create(publicEndpoint.getScheme() + "://" + authority(publicEndpoint) + canonicalPath(key)
+                + "?" + canonicalQuery + "&X-Amz-Signature=" + signature);
+        return new PresignedUrl(uri, signedAt.plusSeconds(window));
+    }
+
+    /**
+     * Upload the file in parts; the upload is aborted if any part or the completion fails
+     */
+    private void putMultipart(String key, Path file, String contentType) throws IOException {
+        HttpResponse<String> initiated = send("POST", key, Map.of("uploads", ""), contentType,
+                HttpRequest.BodyPublishers.noBody());
+        check(initiated, "initiate multipart upload of", key);
+        String uploadId = xmlValue(initiated.body(), "UploadId");
+        if (uploadId == null) {
+            throw new IOException("S3 returned no upload id for " + key);
+        }
+
+        try {
+            List<String> etags = new ArrayList<>();
+            byte[] buffer = new byte[partSize];
+            try (InputStream input = Files.newInputStream(file)) {
+                int read;
+                while ((read = input.readNBytes(buffer, 0, partSize)) > 0) {
+                    Map<String, String> query = Map.of(
+                            "partNumber", Integer.toString(etags.size() + 1), "uploadId", uploadId);
+                    HttpResponse<String> part = send("PUT", key, query, null,
+                            HttpRequest.BodyPublishers.ofByteArray(buffer, 0, read));
+                    check(part, "upload part of", key);
+                    etags.add(part.headers().firstValue("ETag")
+                            .orElseThrow(() -> new IOException("S3 returned no ETag for a part of " + key)));
+                }
+            }
+
+            StringBuilder body = new StringBuilder("<CompleteMultipartUpload>");
+            for (int i = 0; i < etags.size(); i++) {
+                body.append("<Part><PartNumber>").append(i + 1).append("</PartNumber><ETag>")
+                        .append(etags.get(i).replace("\"", "&quot;")).append("</ETag></Part>");
+            }
+            body.append("</CompleteMultipartUpload>");
+            HttpResponse<String> completed = send("POST", key, Map.of("uploadId", uploadId), "application/xml",
+                    HttpRequest.BodyPublishers.ofString(body.toString()));
+            check(completed, "complete multipart upload of", key);
+            // Completion can fail after the 200 status has been sent
+            if (completed.body().contains("<Error>")) {
+                throw failure("complete multipart upload of", key, completed.statusCode(), completed.body());
+            }
+            log.debug("Multipart upload of {} completed in {} parts", key, etags.size());
+        } catch (IOException | RuntimeException e) {
+            try {
+                send("DELETE", key, Map.of("uploadId", uploadId), null, HttpRequest.BodyPublishers.noBody());
+            } catch (IOException abortFailure) {
+                log.warn("Failed to abort multipart upload of {}: {}", key, abortFailure.getMessage());
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Visit the objects of one ListObjectsV2 page
+     *
+     * @return the continuation token of the next page, or null if this was the last one or the visitor stopped
+     */
+    private String visitListing(String xml, Predicate<StoredObject> visitor) throws IOException {
+        try {
+            XMLStreamReader reader = XML.createXMLStreamReader(new StringReader(xml));
+            String key = null;
+            long size = 0;
+            long lastModified = 0;
+            boolean truncated = false;
+            String nextToken = null;
+            while (reader.hasNext()) {
+                int event = reader.next();
+                if (event == XMLStreamConstants.START_ELEMENT) {
+                    switch (reader.getLocalName()) {
+                        case "Key" -> key = reader.getElementText();
+                        case "Size" -> size = Long.parseLong(reader.getElementText());
+                        case "LastModified" -> lastModified = Instant.parse(reader.getElementText()).toEpochMilli();
+                        case "IsTruncated" -> truncated = Boolean.parseBoolean(reader.getElementText());
+                        case "NextContinuationToken" -> nextToken = reader.getElementText();
+                        default -> {
+                        }
+                    }
+                } else if (event == XMLStreamConstants.END_ELEMENT && "Contents".equals(reader.getLocalName())) {
+                    if (!visitor.test(new StoredObject(key, size, lastModified))) {
+                        return null;
+                    }
+                }
+            }
+            return truncated ? nextToken : null;
+        } catch (XMLStreamException | RuntimeException e) {
+            throw new IOException("Unreadable S3 object listing: " + e.getMessage(), e);
+        }
+    }
+
+    private HttpResponse<String> send(String method, String key, Map<String, String> query, String contentType,
+                                      HttpRequest.BodyPublisher body) throws IOException {
+        HttpRequest request = request(method, endpoint, key, canonicalQuery(query), contentType, body);
+        return exchange(request, HttpResponse.BodyHandlers.ofString());
+    }
+
+    private <T> HttpResponse<T> exchange(HttpRequest request, HttpResponse.BodyHandler<T> handler) throws IOException {
+        try {
+            return httpClient.send(request, handler);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted during S3 request");
+        }
+    }
+
+    /**
+     * A request signed in the Authorization header. The payload is not part of the signature.
+     */
+    private HttpRequest request(String method, URI base, String key, String canonicalQuery, String contentType,
+                                HttpRequest.BodyPublisher body) {
+        String amzDate = AMZ_DATE.format(Instant.now());
+        String path = canonicalPath(key);
+        String canonicalRequest = method + "\n" + path + "\n" + canonicalQuery + "\n"
+                + "host:" + authority(base) + "\n"
+                + "x-amz-content-sha256:" + UNSIGNED_PAYLOAD + "\n"
+                + "x-amz-date:" + amzDate + "\n\n"
+                + SIGNED_HEADERS + "\n" + UNSIGNED_PAYLOAD;
+        String authorization = ALGORITHM + " Credential=" + accessKey + "/" + scope(amzDate)
+                + ", SignedHeaders=" + SIGNED_HEADERS + ", Signature=" + sign(amzDate, canonicalRequest);
+
+        HttpRequest.Builder builder = HttpRequest.newBuilder(URI.create(base.getScheme() + "://" + authority(base)
+                        + path + (canonicalQuery.isEmpty() ? "" : "?" + canonicalQuery)))
+                .timeout(requestTimeout)
+                .header("x-amz-content-sha256", UNSIGNED_PAYLOAD)
+                .header("x-amz-date", amzDate)
+                .header("Authorization", authorization)
+                .method(method, body);
+        if (contentType != null) {
+            builder.header("Content-Type", contentType);
+        }
+        return builder.build();
+    }
+
+    private String scope(String amzDate) {
+        return amzDate.substring(0, 8) + "/" + region + "/s3/aws4_request";
+    }
+
+    /**
+     * SigV4 signature of a canonical request made at amzDate (yyyyMMdd'T'HHmmss'Z')
+     */
+    String sign(String amzDate, String canonicalRequest) {
+        try {
+            String stringToSign = ALGORITHM + "\n" + amzDate + "\n" + scope(amzDate) + "\n"
+                    + HexFormat.of().formatHex(MessageDigest.getInstance("SHA-256")
+                    .digest(canonicalRequest.getBytes(StandardCharsets.UTF_8)));
+            byte[] signingKey = hmac(("AWS4" + secretKey).getBytes(StandardCharsets.UTF_8), amzDate.substring(0, 8));
+            signingKey = hmac(signingKey, region);
+            signingKey = hmac(signingKey, "s3");
+            signingKey = hmac(signingKey, "aws4_request");
+            return HexFormat.of().formatHex(hmac(signingKey, stringToSign));
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("Cannot sign S3 request", e);
+        }
+    }
+
+    private static byte[] hmac(byte[] key, String data) throws GeneralSecurityException {
+        Mac mac = Mac.getInstance("HmacSHA256");
+        mac.init(new SecretKeySpec(key, "HmacSHA256"));
+        return mac.doFinal(data.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Host (and port) requests go to: the endpoint's, prefixed with the bucket for virtual-hosted addressing
+     */
+    private String authority(URI base) {
+        return pathStyle ? base.getRawAuthority() : bucket + "." + base.getRawAuthority();
+    }
+
+    private String canonicalPath(String key) {
+        if (!pathStyle) {
+            return "/" + encode(key, false);
+        }
+        return "/" + bucket + (key.isEmpty() ? "" : "/" + encode(key, false));
+    }
+
+    private static String canonicalQuery(Map<String, String> query) {
+        StringBuilder canonical = new StringBuilder();
+        for (Map.Entry<String, String> parameter : new TreeMap<>(query).entrySet()) {
+            if (!canonical.isEmpty()) {
+                canonical.append('&');
+            }
+            canonical.append(encode(parameter.getKey(), true)).append('=').append(encode(parameter.getValue(), true));
+        }
+        return canonical.toString();
+    }
+
+    /**
+     * URI-encode as SigV4 requires: everything but unreserved characters, and slashes too unless in a path
+     */
+    private static String encode(String value, boolean encodeSlash) {
+        StringBuilder encoded = new StringBuilder();
+        for (byte b : value.getBytes(StandardCharsets.UTF_8)) {
+            char c = (char) (b & 0xFF);
+            if ((c >= 'A' && c <= 'Z') || (c >= 'a' && c <= 'z') || (c >= '0' && c <= '9')
+                    || c == '-' || c == '_' || c == '.' || c == '~' || (c == '/' && !encodeSlash)) {
+                encoded.append(c);
+            } else {
+                encoded.append('%').append(Character.toUpperCase(Character.forDigit((b >> 4) & 0xF, 16)))
+                        .append(Character.toUpperCase(Character.forDigit(b & 0xF, 16)));
+            }
+        }
+        return encoded.toString();
+    }
+
+    private static void check(HttpResponse<String> response, String operation, String key) throws IOException {
+        if (response.statusCode() / 100 != 2) {
+            throw failure(operation, key, response.statusCode(), response.body());
+        }
+    }
+
+    private static IOException failure(String operation, String key, int status, String body) {
+        String code = body == null ? null : xmlValue(body, "Code");
+        return new IOException("S3 " + operation + " " + key + " failed: " + status + (code != null ? " " + code : ""));
+    }
+
+    /**
+     * Text of the first element with the given name, or null
+     */
+    private static String xmlValue(String xml, String element) {
+        try {
+            XMLStreamReader reader = XML.createXMLStreamReader(new StringReader(xml));
+            while (reader.hasNext()) {
+                if (reader.next() == XMLStreamConstants.START_ELEMENT && element.equals(reader.getLocalName())) {
+                    return reader.getElementText();
+                }
+            }
+        } catch (XMLStreamException e) {
+            log.debug("Unreadable S3 response: {}", e.getMessage());
+        }
+        return null;
+    }
+}
@@ -0,0 +1,200 @@
+package com.dietician.util;
+
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiPredicate;
+import java.util.function.Function;
+
+/**
+ * Small concurrent cache with a per-entry time-to-live and a size bound.
+ * Reads are lock-free. When the size bound is exceeded the oldest inserted entries are evicted first.
+ * Expired entries are treated as misses and overwritten by the next put.
+ *
+ * @param <K> key type
+ * @param <V> value type
+ */
+public class BoundedTtlCache<K, V> {
+
+    private final ConcurrentHashMap<K, Entry<V>> entries = new ConcurrentHashMap<>();
+    private final ConcurrentLinkedQueue<K> insertionOrder = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger queued = new AtomicInteger();
+    private final int maxSize;
+    private final long ttlNanos;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    /**
+     * @param maxSize maximum number of entries kept
+     * @param ttlMillis default (and maximum) time-to-live of an entry in milliseconds
+     */
+    public BoundedTtlCache(int maxSize, long ttlMillis) {
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException("maxSize must be positive");
+        }
+        this.maxSize = maxSize;
+        this.ttlNanos = TimeUnit.MILLISECONDS.toNanos(ttlMillis);
+    }
+
+    /**
+     * Get a live value, or null if absent or expired.
+     */
+    public V get(K key) {
+        Entry<V> entry = entries.get(key);
+        if (entry == null || entry.isExpired(System.nanoTime())) {
+            misses.increment();
+            return null;
+        }
+        hits.increment();
+        return entry.value;
+    }
+
+    /**
+     * Get a live value, loading and caching it on a miss.
+     * A null result from the loader is returned but not cached.
+     */
+    public V get(K key, Function<K, V> loader) {
+        V value = get(key);
+        if (value == null) {
+            value = loader.apply(key);
+            if (value != null) {
+                put(key, value);
+            }
+        }
+        return value;
+    }
+
+    /**
+     * Cache a value for the default time-to-live.
+     */
+    public void put(K key, V value) {
+        putWithTtl(key, value, ttlNanos);
+    }
+
+    /**
+     * Cache a value for at most the given time-to-live (capped at the default).
+     */
+    public void put(K key, V value, long ttlMillis) {
+        putWithTtl(key, value, Math.min(TimeUnit.MILLISECONDS.toNanos(ttlMillis), ttlNanos));
+    }
+
+    private void putWithTtl(K key, V value, long ttl) {
+        if (ttl <= 0) {
+            return;
+        }
+        Entry<V> previous = entries.put(key, new Entry<>(value, System.nanoTime() + ttl));
+        if (previous == null) {
+            insertionOrder.offer(key);
+            queued.incrementAndGet();
+            evictIfNeeded();
+        }
+    }
+
+    /**
+     * Remove a single entry.
+     */
+    public void invalidate(K key) {
+        entries.remove(key);
+    }
+
+    /**
+     * Remove every entry matching the predicate. Walks the whole cache, so keep it off hot paths.
+     */
+    public void invalidateIf(BiPredicate<K, V> predicate) {
+        for (Map.Entry<K, Entry<V>> entry : entries.entrySet()) {
+            if (predicate.test(entry.getKey(), entry.getValue().value)) {
+                entries.remove(entry.getKey(), entry.getValue());
+            }
+        }
+    }
+
+    /**
+     * Remove all entries.
+     */
+    public void clear() {
+        entries.clear();
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    public long hitCount() {
+        return hits.sum();
+    }
+
+    public long missCount() {
+        return misses.sum();
+    }
+
+    public long evictionCount() {
+        return evictions.sum();
+    }
+
+    /**
+     * Register the standard cache.* meters for this cache.
+     */
+    public BoundedTtlCache<K, V> registerMetrics(MeterRegistry registry, String cacheName) {
+        FunctionCounter.builder("cache.gets", hits, LongAdder::sum)
+                .tag("cache", cacheName).tag("result", "hit")
+                .register(registry);
+        FunctionCounter.builder("cache.gets", misses, LongAdder::sum)
+                .tag("cache", cacheName).tag("result", "miss")
+                .register(registry);
+        FunctionCounter.builder("cache.evictions", evictions, LongAdder::sum)
+                .tag("cache", cacheName)
+                .register(registry);
+        Gauge.builder("cache.size", entries, Map::size)
+                .tag("cache", cacheName)
+                .register(registry);
+        return this;
+    }
+
+    private void evictIfNeeded() {
+        while (entries.size() > maxSize) {
+            K eldest = insertionOrder.poll();
+            if (eldest == null) {
+                break;
+            }
+            queued.decrementAndGet();
+            if (entries.remove(eldest) != null) {
+                evictions.increment();
+            }
+        }
+
+        // Invalidated keys leave stale nodes in the queue; drop them once they pile up
+        if (queued.get() > maxSize * 2 + 64) {
+            compactQueue();
+        }
+    }
+
+    private synchronized void compactQueue() {
+        Set<K> seen = new HashSet<>();
+        Iterator<K> iterator = insertionOrder.iterator();
+        while (iterator.hasNext()) {
+            K key = iterator.next();
+            if (!entries.containsKey(key) || !seen.add(key)) {
+                iterator.remove();
+            }
+        }
+        queued.set(seen.size());
+    }
+
+    private record Entry<V>(V value, long expiresAtNanos) {
+        boolean isExpired(long now) {
+            return now - expiresAtNanos >= 0;
+        }
+    }
+}
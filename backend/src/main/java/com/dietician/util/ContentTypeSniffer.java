@@ -0,0 +1,74 @@
+package com.dietician.util;
+
+import org.springframework.http.MediaType;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Detects the type of uploaded content from its leading bytes (magic numbers) rather than the client's
+ * file name or Content-Type, and gives the extension stored files of that type are named with.
+ */
+public final class ContentTypeSniffer {
+    private ContentTypeSniffer() {}
+
+    /**
+     * Number of leading bytes sniff() needs to recognise every supported type
+     */
+    public static final int HEADER_LENGTH = 12;
+
+    public static final MediaType IMAGE_WEBP = MediaType.parseMediaType("image/webp");
+    public static final MediaType IMAGE_HEIC = MediaType.parseMediaType("image/heic");
+
+    private static final byte[] JPEG = {(byte) 0xFF, (byte) 0xD8, (byte) 0xFF};
+    private static final byte[] PNG = {(byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1A, '\n'};
+    private static final byte[] GIF87A = ascii("GIF87a");
+    private static final byte[] GIF89A = ascii("GIF89a");
+    private static final byte[] RIFF = ascii("RIFF");
+    private static final byte[] WEBP = ascii("WEBP");
+    private static final byte[] FTYP = ascii("ftyp");
+    private static final byte[] PDF = ascii("%PDF-");
+
+    /**
+     * The detected type, or null if the header matches none of the supported types
+     */
+    public static SniffedType sniff(byte[] header) {
+        if (startsWith(header, 0, JPEG)) {
+            return new SniffedType(MediaType.IMAGE_JPEG, ".jpg");
+        }
+        if (startsWith(header, 0, PNG)) {
+            return new SniffedType(MediaType.IMAGE_PNG, ".png");
+        }
+        if (startsWith(header, 0, GIF87A) || startsWith(header, 0, GIF89A)) {
+            return new SniffedType(MediaType.IMAGE_GIF, ".gif");
+        }
+        if (startsWith(header, 0, RIFF) && startsWith(header, 8, WEBP)) {
+            return new SniffedType(IMAGE_WEBP, ".webp");
+        }
+        if (startsWith(header, 4, FTYP) && header.length >= 12) {
+            String brand = new String(header, 8, 4, StandardCharsets.US_ASCII);
+            if (brand.equals("heic") || brand.equals("heix") || brand.equals("mif1") || brand.equals("heif")) {
+                return new SniffedType(IMAGE_HEIC, ".heic");
+            }
+        }
+        if (startsWith(header, 0, PDF)) {
+            return new SniffedType(MediaType.APPLICATION_PDF, ".pdf");
+        }
+        return null;
+    }
+
+    private static boolean startsWith(byte[] header, int offset, byte[] signature) {
+        return header.length >= offset + signature.length
+                && Arrays.equals(header, offset, offset + signature.length, signature, 0, signature.length);
+    }
+
+    private static byte[] ascii(String value) {
+        return value.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * A detected content type and the file extension used for it
+     */
+    public record SniffedType(MediaType mediaType, String extension) {
+    }
+}
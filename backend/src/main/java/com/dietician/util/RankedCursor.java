@@ -0,0 +1,39 @@
+package com.dietician.util;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+
+/**
+ * Opaque keyset cursor for relevance-ranked lists: the (score, id) sort key of the last row of a page.
+ * Scores are kept as float, matching Postgres real, so the cursor compares exactly against the next query.
+ */
+public record RankedCursor(float score, long id) {
+
+    private static final char SEPARATOR = '|';
+
+    public String encode() {
+        String raw = Float.toString(score) + SEPARATOR + id;
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(raw.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Decode a cursor produced by encode().
+     *
+     * @return the cursor, or null if the value is empty (first page)
+     * @throws IllegalArgumentException if the cursor is malformed
+     */
+    public static RankedCursor decode(String cursor) {
+        if (cursor == null || cursor.isBlank()) {
+            return null;
+        }
+        try {
+            String raw = new String(Base64.getUrlDecoder().decode(cursor), StandardCharsets.UTF_8);
+            int separator = raw.lastIndexOf(SEPARATOR);
+            return new RankedCursor(
+                    Float.parseFloat(raw.substring(0, separator)),
+                    Long.parseLong(raw.substring(separator + 1)));
+        } catch (IllegalArgumentException | IndexOutOfBoundsException e) {
+            throw new IllegalArgumentException("Invalid pagination cursor");
+        }
+    }
+}
@@ -0,0 +1,29 @@
+package com.dietician.util;
+
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+
+/**
+ * Version of a resource for conditional GETs: its id and the latest modified date of the rows it is built from.
+ * Gives a weak ETag (the representation is assembled, not byte-stored) and the Last-Modified value.
+ */
+public record ResourceVersion(long id, Instant modifiedDate) {
+
+    public String etag() {
+        return "W/\"" + id + "-" + ChronoUnit.MICROS.between(Instant.EPOCH, modifiedDate) + "\"";
+    }
+
+    public long lastModifiedMillis() {
+        return modifiedDate.toEpochMilli();
+    }
+
+    /**
+     * Build from a native (id, timestamp) row, or null if the row is missing.
+     */
+    public static ResourceVersion fromRow(Object[] row) {
+        if (row == null || row[0] == null || row[1] == null) {
+            return null;
+        }
+        return new ResourceVersion(((Number) row[0]).longValue(), ((java.sql.Timestamp) row[1]).toInstant());
+    }
+}
@@ -0,0 +1,29 @@
+package com.dietician.util;
+
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+/**
+ * Helpers for running work relative to the current Spring-managed transaction.
+ */
+public final class TransactionUtils {
+    private TransactionUtils() {}
+
+    /**
+     * Run the task after the current transaction commits, or immediately if there is no transaction.
+     * Used for cache invalidation, so a concurrent reader cannot re-cache uncommitted state,
+     * and for side effects that must only happen once the change is durable.
+     */
+    public static void afterCommit(Runnable task) {
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                @Override
+                public void afterCommit() {
+                    task.run();
+                }
+            });
+        } else {
+            task.run();
+        }
+    }
+}
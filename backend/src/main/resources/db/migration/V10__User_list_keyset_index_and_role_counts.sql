@@ -0,0 +1,98 @@
+-- V10__User_list_keyset_index_and_role_counts.sql
+-- Admin user list: keyset pagination on (created_date, id) and per-role totals kept in a counter table.
+-- Every page becomes one short index range scan, and totals no longer COUNT(*) the users/roles join.
+
+-- ============================================
+-- KEYSET INDEXES
+-- ============================================
+
+-- ORDER BY created_date DESC, id DESC, with and without a role filter
+CREATE INDEX idx_users_created_date_id ON diet.users(created_date, id);
+CREATE INDEX idx_users_role_created_date_id ON diet.users(role_id, created_date, id);
+
+-- Superseded by idx_users_role_created_date_id
+DROP INDEX IF EXISTS diet.idx_users_role;
+
+-- ============================================
+-- PER-ROLE USER COUNTS
+-- ============================================
+
+CREATE TABLE diet.user_role_counts (
+    role_id BIGINT PRIMARY KEY,
+    user_count BIGINT NOT NULL DEFAULT 0,
+    CONSTRAINT fk_user_role_counts_role FOREIGN KEY (role_id) REFERENCES diet.roles(id) ON DELETE CASCADE
+);
+
+COMMENT ON TABLE diet.user_role_counts IS 'Number of users per role, maintained by triggers on users';
+
+-- Apply the per-role deltas of one statement. Statement-level triggers with transition tables,
+-- so a bulk insert touches each counter row once instead of once per user.
+CREATE OR REPLACE FUNCTION diet.apply_user_role_count_deltas(deltas diet.user_role_counts[])
+RETURNS VOID AS $$
+BEGIN
+    INSERT INTO diet.user_role_counts (role_id, user_count)
+    SELECT d.role_id, d.user_count
+    FROM unnest(deltas) d
+    WHERE d.user_count <> 0
+    ORDER BY d.role_id
+    ON CONFLICT (role_id) DO UPDATE
+        SET user_count = diet.user_role_counts.user_count + EXCLUDED.user_count;
+END;
+$$ LANGUAGE plpgsql;
+
+CREATE OR REPLACE FUNCTION diet.users_role_count_on_insert()
+RETURNS TRIGGER AS $$
+BEGIN
+    PERFORM diet.apply_user_role_count_deltas(ARRAY(
+        SELECT ROW(role_id, count(*))::diet.user_role_counts FROM new_rows GROUP BY role_id));
+    RETURN NULL;
+END;
+$$ LANGUAGE plpgsql;
+
+CREATE OR REPLACE FUNCTION diet.users_role_count_on_delete()
+RETURNS TRIGGER AS $$
+BEGIN
+    PERFORM diet.apply_user_role_count_deltas(ARRAY(
+        SELECT ROW(role_id, -count(*))::diet.user_role_counts FROM old_rows GROUP BY role_id));
+    RETURN NULL;
+END;
+$$ LANGUAGE plpgsql;
+
+CREATE OR REPLACE FUNCTION diet.users_role_count_on_update()
+RETURNS TRIGGER AS $$
+BEGIN
+    PERFORM diet.apply_user_role_count_deltas(ARRAY(
+        SELECT ROW(role_id, sum(delta))::diet.user_role_counts
+        FROM (
+            SELECT o.role_id, -1 AS delta
+            FROM old_rows o JOIN new_rows n ON n.id = o.id
+            WHERE n.role_id <> o.role_id
+            UNION ALL
+            SELECT n.role_id, 1
+            FROM old_rows o JOIN new_rows n ON n.id = o.id
+            WHERE n.role_id <> o.role_id
+        ) changes
+        GROUP BY role_id));
+    RETURN NULL;
+END;
+$$ LANGUAGE plpgsql;
+
+CREATE TRIGGER trg_users_role_count_insert
+    AFTER INSERT ON diet.users
+    REFERENCING NEW TABLE AS new_rows
+    FOR EACH STATEMENT EXECUTE FUNCTION diet.users_role_count_on_insert();
+
+CREATE TRIGGER trg_users_role_count_delete
+    AFTER DELETE ON diet.users
+    REFERENCING OLD TABLE AS old_rows
+    FOR EACH STATEMENT EXECUTE FUNCTION diet.users_role_count_on_delete();
+
+CREATE TRIGGER trg_users_role_count_update
+    AFTER UPDATE ON diet.users
+    REFERENCING OLD TABLE AS old_rows NEW TABLE AS new_rows
+    FOR EACH STATEMENT EXECUTE FUNCTION diet.users_role_count_on_update();
+
+-- Seed from the current data
+INSERT INTO diet.user_role_counts (role_id, user_count)
+SELECT r.id, (SELECT count(*) FROM diet.users u WHERE u.role_id = r.id)
+FROM diet.roles r;
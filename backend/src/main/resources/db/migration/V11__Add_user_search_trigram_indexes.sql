@@ -0,0 +1,16 @@
+-- V11__Add_user_search_trigram_indexes.sql
+-- Trigram GIN indexes for the admin fuzzy user search (AdminService.searchUsers).
+-- They serve both the word-similarity operator (<%) and substring ILIKE, so typeahead queries
+-- are bitmap index scans instead of sequential scans over users and user_profiles.
+-- The extension needs a role allowed to create it (superuser, or owner on PostgreSQL 13+ trusted extensions).
+
+CREATE EXTENSION IF NOT EXISTS pg_trgm;
+
+CREATE INDEX idx_users_full_name_trgm ON diet.users USING GIN (full_name gin_trgm_ops);
+
+-- Must match the name expression used by the search query exactly
+CREATE INDEX idx_user_profiles_name_trgm ON diet.user_profiles USING GIN (
+    (COALESCE(first_name, '') || ' ' || COALESCE(middle_name, '') || ' ' || COALESCE(last_name, '')) gin_trgm_ops);
+CREATE INDEX idx_user_profiles_mobile_trgm ON diet.user_profiles USING GIN (mobile_number gin_trgm_ops);
+CREATE INDEX idx_user_profiles_state_trgm ON diet.user_profiles USING GIN (state gin_trgm_ops);
+CREATE INDEX idx_user_profiles_pincode_trgm ON diet.user_profiles USING GIN (pincode gin_trgm_ops);
@@ -0,0 +1,6 @@
+-- V12__Pooled_mail_outbox_sequence.sql
+-- Pooled id allocation for the mail outbox (allocationSize = 50, pooled-lo), as V7 did for audit and profiles.
+-- Bulk admin operations queue hundreds of mails per transaction; with a pooled sequence Hibernate
+-- batches those inserts instead of calling nextval once per message.
+
+ALTER SEQUENCE mail_outbox_id_seq INCREMENT BY 50;
@@ -0,0 +1,9 @@
+-- V13__Add_profile_photo_derivative_key.sql
+-- Content hash of the profile photo whose 64/256/1024 px derivatives have been written.
+-- NULL until the background pipeline has produced them (clients fall back to profile_photo_url).
+-- Derivative files are named after the key, so their URLs are immutable and cacheable for a year.
+
+ALTER TABLE user_profiles ADD COLUMN profile_photo_key VARCHAR(64);
+
+-- Shared keys (the same photo uploaded twice) are checked before derivatives are deleted
+CREATE INDEX idx_user_profiles_photo_key ON user_profiles(profile_photo_key) WHERE profile_photo_key IS NOT NULL;
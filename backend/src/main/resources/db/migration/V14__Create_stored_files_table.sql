@@ -0,0 +1,20 @@
+-- V14__Create_stored_files_table.sql
+-- Reference counts of content-addressed uploads.
+-- Uploads are stored once per category under their SHA-256 ({hash}{ext}), sharded into two levels of
+-- hex directories ({category}/ab/cd/...), so identical uploads share one file and no directory grows unbounded.
+-- The file is deleted when its last reference is released.
+
+CREATE TABLE stored_files (
+    category VARCHAR(50) NOT NULL,
+    filename VARCHAR(100) NOT NULL,
+    size_bytes BIGINT NOT NULL,
+    ref_count INTEGER NOT NULL DEFAULT 1,
+    created_date TIMESTAMP WITHOUT TIME ZONE NOT NULL DEFAULT now(),
+    modified_date TIMESTAMP WITHOUT TIME ZONE,
+    CONSTRAINT pk_stored_files PRIMARY KEY (category, filename),
+    CONSTRAINT chk_stored_files_ref_count CHECK (ref_count >= 0)
+);
+
+COMMENT ON TABLE stored_files IS 'Reference counts of content-addressed uploaded files';
+COMMENT ON COLUMN stored_files.filename IS 'SHA-256 of the content (hex) plus extension, also the logical URL name';
+COMMENT ON COLUMN stored_files.ref_count IS 'Number of stores not yet released by deleteFile';
@@ -0,0 +1,12 @@
+-- V15__Add_mail_outbox_sending_lease.sql
+-- Messages are claimed in a short transaction (status SENDING until lease_expires_at) and sent over SMTP
+-- after it commits, so no row lock or pooled connection is held for the duration of the SMTP conversation.
+-- A claim whose dispatcher died is picked up again once its lease has expired.
+
+ALTER TABLE mail_outbox ADD COLUMN lease_expires_at TIMESTAMP WITHOUT TIME ZONE;
+
+CREATE INDEX idx_mail_outbox_sending ON mail_outbox(lease_expires_at) WHERE status = 'SENDING';
+
+COMMENT ON COLUMN mail_outbox.status IS 'PENDING, SENDING (claimed by a dispatcher), SENT or DEAD (gave up after max attempts)';
+COMMENT ON COLUMN mail_outbox.attempts IS 'Delivery attempts, counted when a message is claimed';
+COMMENT ON COLUMN mail_outbox.lease_expires_at IS 'When a SENDING claim lapses and the message may be claimed again';
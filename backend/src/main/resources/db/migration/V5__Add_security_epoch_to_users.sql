@@ -0,0 +1,6 @@
+-- V5__Add_security_epoch_to_users.sql
+-- Per-user security epoch carried in access tokens.
+-- Bumping it revokes every access token issued before the change (deactivation, role change, email change).
+
+ALTER TABLE diet.users
+ADD COLUMN IF NOT EXISTS security_epoch BIGINT NOT NULL DEFAULT 0;
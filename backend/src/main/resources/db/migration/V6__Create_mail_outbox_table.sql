@@ -0,0 +1,29 @@
+-- V6__Create_mail_outbox_table.sql
+-- Transactional outbox for outbound mail.
+-- Rows are written in the same transaction as the change that triggers the mail
+-- and delivered in batches by MailOutboxDispatcher.
+
+CREATE SEQUENCE IF NOT EXISTS mail_outbox_id_seq;
+
+CREATE TABLE mail_outbox (
+    id BIGINT PRIMARY KEY DEFAULT nextval('mail_outbox_id_seq'),
+    recipient VARCHAR(500) NOT NULL,
+    subject VARCHAR(255) NOT NULL,
+    body TEXT NOT NULL,
+    html BOOLEAN NOT NULL DEFAULT FALSE,
+    status VARCHAR(20) NOT NULL DEFAULT 'PENDING',
+    attempts INTEGER NOT NULL DEFAULT 0,
+    next_attempt_at TIMESTAMP WITHOUT TIME ZONE NOT NULL DEFAULT now(),
+    last_error VARCHAR(1000),
+    sent_date TIMESTAMP WITHOUT TIME ZONE,
+    created_date TIMESTAMP WITHOUT TIME ZONE NOT NULL DEFAULT now()
+);
+
+-- Only pending rows are polled, so keep the index to them
+CREATE INDEX idx_mail_outbox_pending ON mail_outbox(next_attempt_at, id) WHERE status = 'PENDING';
+CREATE INDEX idx_mail_outbox_sent_date ON mail_outbox(sent_date) WHERE status = 'SENT';
+
+COMMENT ON TABLE mail_outbox IS 'Outbound mail queue (transactional outbox)';
+COMMENT ON COLUMN mail_outbox.recipient IS 'Encrypted recipient address';
+COMMENT ON COLUMN mail_outbox.body IS 'Encrypted message body (may contain OTP codes)';
+COMMENT ON COLUMN mail_outbox.status IS 'PENDING, SENT or DEAD (gave up after max attempts)';
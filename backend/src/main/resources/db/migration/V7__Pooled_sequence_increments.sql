@@ -0,0 +1,10 @@
+-- V7__Pooled_sequence_increments.sql
+-- Sequences backing entities with pooled id allocation (allocationSize = 50, pooled-lo optimizer).
+-- Hibernate reserves [nextval, nextval + 49] per call, so it can batch inserts without a round trip per id.
+-- The increment must match allocationSize or Hibernate refuses to start.
+-- Column defaults still call nextval, so native inserts keep working (each takes one block's first value).
+
+ALTER SEQUENCE audit_logs_id_seq INCREMENT BY 50;
+ALTER SEQUENCE audit_log_details_id_seq INCREMENT BY 50;
+ALTER SEQUENCE user_profiles_id_seq INCREMENT BY 50;
+ALTER SEQUENCE role_actions_id_seq INCREMENT BY 50;
@@ -0,0 +1,117 @@
+-- V8__Partition_audit_tables_by_month.sql
+-- Convert audit_logs and audit_log_details to monthly range partitions on changed_date.
+-- Each month gets its own small indexes, so insert cost stays flat and date-bounded queries prune partitions.
+-- Old months are detached, archived and dropped by AuditPartitionMaintenance.
+--
+-- Partitioned primary keys must include the partition key, so details carry their log's changed_date.
+-- The foreign key from details to logs is dropped: a referenced partition cannot be detached while rows point at it,
+-- and both tables are written only by AuditLogWriter and retired together month by month.
+
+ALTER TABLE diet.audit_log_details RENAME TO audit_log_details_legacy;
+ALTER TABLE diet.audit_logs RENAME TO audit_logs_legacy;
+
+ALTER INDEX diet.idx_audit_table_record RENAME TO idx_audit_legacy_table_record;
+ALTER INDEX diet.idx_audit_changed_by RENAME TO idx_audit_legacy_changed_by;
+ALTER INDEX diet.idx_audit_changed_date RENAME TO idx_audit_legacy_changed_date;
+ALTER INDEX diet.idx_audit_details_log RENAME TO idx_audit_legacy_details_log;
+ALTER INDEX diet.idx_audit_details_field RENAME TO idx_audit_legacy_details_field;
+
+-- ============================================
+-- PARTITIONED AUDIT TABLES
+-- ============================================
+
+CREATE TABLE diet.audit_logs (
+    id BIGINT NOT NULL DEFAULT nextval('diet.audit_logs_id_seq'),
+    table_name VARCHAR(50) NOT NULL,
+    record_id BIGINT NOT NULL,
+    action VARCHAR(20) NOT NULL,
+    changed_by VARCHAR(100) NOT NULL,
+    changed_date TIMESTAMP WITHOUT TIME ZONE NOT NULL DEFAULT CURRENT_TIMESTAMP,
+    ip_address VARCHAR(45),
+    user_agent VARCHAR(255),
+    PRIMARY KEY (id, changed_date)
+) PARTITION BY RANGE (changed_date);
+
+CREATE INDEX idx_audit_table_record ON diet.audit_logs(table_name, record_id);
+CREATE INDEX idx_audit_changed_by ON diet.audit_logs(changed_by);
+CREATE INDEX idx_audit_changed_date ON diet.audit_logs(changed_date);
+
+COMMENT ON TABLE diet.audit_logs IS 'Audit log for tracking all data changes (partitioned by month on changed_date)';
+COMMENT ON COLUMN diet.audit_logs.action IS 'Action type: INSERT, UPDATE, DELETE';
+
+CREATE TABLE diet.audit_log_details (
+    id BIGINT NOT NULL DEFAULT nextval('diet.audit_log_details_id_seq'),
+    audit_log_id BIGINT NOT NULL,
+    changed_date TIMESTAMP WITHOUT TIME ZONE NOT NULL,
+    field_name VARCHAR(50) NOT NULL,
+    old_value TEXT,
+    new_value TEXT,
+    PRIMARY KEY (id, changed_date)
+) PARTITION BY RANGE (changed_date);
+
+CREATE INDEX idx_audit_details_log ON diet.audit_log_details(audit_log_id);
+CREATE INDEX idx_audit_details_field ON diet.audit_log_details(field_name);
+
+COMMENT ON TABLE diet.audit_log_details IS 'Detailed field-level changes for audit logs (partitioned by month on changed_date)';
+COMMENT ON COLUMN diet.audit_log_details.changed_date IS 'Copy of audit_logs.changed_date, the partition key';
+
+-- Safety net for rows outside every monthly partition; kept empty by creating months ahead of time
+CREATE TABLE diet.audit_logs_default PARTITION OF diet.audit_logs DEFAULT;
+CREATE TABLE diet.audit_log_details_default PARTITION OF diet.audit_log_details DEFAULT;
+
+-- ============================================
+-- PARTITION MANAGEMENT
+-- ============================================
+
+-- Create the monthly partitions (audit_logs_yYYYYmMM / audit_log_details_yYYYYmMM) from from_month to to_month.
+-- Existing partitions are left alone. Returns the number of months created.
+CREATE OR REPLACE FUNCTION diet.ensure_audit_partitions(from_month DATE, to_month DATE)
+RETURNS INTEGER AS $$
+DECLARE
+    month_start DATE := date_trunc('month', from_month)::date;
+    month_end DATE;
+    suffix TEXT;
+    created INTEGER := 0;
+BEGIN
+    WHILE month_start <= to_month LOOP
+        month_end := (month_start + INTERVAL '1 month')::date;
+        suffix := to_char(month_start, '"y"YYYY"m"MM');
+
+        IF to_regclass('diet.audit_logs_' || suffix) IS NULL THEN
+            EXECUTE format('CREATE TABLE diet.%I PARTITION OF diet.audit_logs FOR VALUES FROM (%L) TO (%L)',
+                           'audit_logs_' || suffix, month_start, month_end);
+            created := created + 1;
+        END IF;
+
+        IF to_regclass('diet.audit_log_details_' || suffix) IS NULL THEN
+            EXECUTE format('CREATE TABLE diet.%I PARTITION OF diet.audit_log_details FOR VALUES FROM (%L) TO (%L)',
+                           'audit_log_details_' || suffix, month_start, month_end);
+        END IF;
+
+        month_start := month_end;
+    END LOOP;
+
+    RETURN created;
+END;
+$$ LANGUAGE plpgsql;
+
+-- Partitions for every month with existing data, plus the next three months
+SELECT diet.ensure_audit_partitions(
+    COALESCE((SELECT min(changed_date) FROM diet.audit_logs_legacy), now())::date,
+    (now() + INTERVAL '3 months')::date);
+
+-- ============================================
+-- MIGRATE EXISTING DATA
+-- ============================================
+
+INSERT INTO diet.audit_logs (id, table_name, record_id, action, changed_by, changed_date, ip_address, user_agent)
+SELECT id, table_name, record_id, action, changed_by, changed_date, ip_address, user_agent
+FROM diet.audit_logs_legacy;
+
+INSERT INTO diet.audit_log_details (id, audit_log_id, changed_date, field_name, old_value, new_value)
+SELECT d.id, d.audit_log_id, l.changed_date, d.field_name, d.old_value, d.new_value
+FROM diet.audit_log_details_legacy d
+JOIN diet.audit_logs_legacy l ON l.id = d.audit_log_id;
+
+DROP TABLE diet.audit_log_details_legacy;
+DROP TABLE diet.audit_logs_legacy;
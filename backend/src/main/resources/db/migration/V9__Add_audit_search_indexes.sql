@@ -0,0 +1,18 @@
+-- V9__Add_audit_search_indexes.sql
+-- Composite indexes for the keyset-paginated admin audit search (ORDER BY changed_date DESC, id DESC).
+-- Each filter combination is answered by one backward range scan that stops after a page,
+-- instead of sorting every matching row. They supersede the single-purpose indexes from V1.
+-- Created on the partitioned parents, so every monthly partition (current and future) gets them.
+
+DROP INDEX IF EXISTS diet.idx_audit_table_record;
+DROP INDEX IF EXISTS diet.idx_audit_changed_by;
+DROP INDEX IF EXISTS diet.idx_audit_changed_date;
+
+CREATE INDEX idx_audit_changed_date_id ON diet.audit_logs(changed_date, id);
+CREATE INDEX idx_audit_table_record_date ON diet.audit_logs(table_name, record_id, changed_date, id);
+CREATE INDEX idx_audit_changed_by_date ON diet.audit_logs(changed_by, changed_date, id);
+CREATE INDEX idx_audit_action_date ON diet.audit_logs(action, changed_date, id);
+
+-- Batched details fetch for a page: audit_log_id IN (...) ordered by id
+DROP INDEX IF EXISTS diet.idx_audit_details_log;
+CREATE INDEX idx_audit_details_log ON diet.audit_log_details(audit_log_id, id);
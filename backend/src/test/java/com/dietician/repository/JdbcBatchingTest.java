@@ -0,0 +1,181 @@
+package com.dietician.repository;
+
+import com.dietician.config.JpaAuditingConfig;
+import com.dietician.model.Action;
+import com.dietician.model.Role;
+import com.dietician.model.RoleAction;
+import com.dietician.model.User;
+import com.dietician.model.UserProfile;
+import com.dietician.util.EncryptionUtil;
+import com.dietician.util.StringEncryptionConverter;
+import net.ttddyy.dsproxy.ExecutionInfo;
+import net.ttddyy.dsproxy.QueryInfo;
+import net.ttddyy.dsproxy.listener.QueryExecutionListener;
+import net.ttddyy.dsproxy.support.ProxyDataSourceBuilder;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.config.BeanPostProcessor;
+import org.springframework.boot.test.autoconfigure.orm.jpa.DataJpaTest;
+import org.springframework.boot.test.autoconfigure.orm.jpa.TestEntityManager;
+import org.springframework.boot.test.context.TestConfiguration;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Import;
+
+import javax.sql.DataSource;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Checks that entities with pooled sequence ids are inserted in JDBC batches of hibernate.jdbc.batch_size,
+ * with one sequence call per block of 50 ids. Runs against embedded H2 with the schema generated from the
+ * entities; statements are counted by a datasource-proxy around the test DataSource.
+ */
+@DataJpaTest(properties = {
+        "spring.flyway.enabled=false",
+        "spring.jpa.hibernate.ddl-auto=create-drop",
+        "encryption.key=MDEyMzQ1Njc4OWFiY2RlZjAxMjM0NTY3ODlhYmNkZWY="
+})
+@Import({JpaAuditingConfig.class, EncryptionUtil.class, StringEncryptionConverter.class,
+        JdbcBatchingTest.StatementCounterConfig.class})
+class JdbcBatchingTest {
+
+    @Autowired
+    private TestEntityManager entityManager;
+
+    @Autowired
+    private UserProfileRepository userProfileRepository;
+
+    @Autowired
+    private RoleActionRepository roleActionRepository;
+
+    @Autowired
+    private StatementCounter statements;
+
+    private Role role;
+
+    @BeforeEach
+    void setUp() {
+        role = entityManager.persist(Role.builder()
+                .roleCode("DIETICIAN")
+                .roleName("Dietician")
+                .isActive(true)
+                .build());
+    }
+
+    @Test
+    void userProfilesAreInsertedInBatches() {
+        List<User> users = new ArrayList<>();
+        for (int i = 0; i < 120; i++) {
+            users.add(entityManager.persist(User.builder()
+                    .email("user" + i + "@example.com")
+                    .emailSearch("search-" + i)
+                    .emailVerified(true)
+                    .isActive(true)
+                    .role(role)
+                    .build()));
+        }
+        entityManager.flush();
+        statements.clear();
+
+        List<UserProfile> profiles = new ArrayList<>();
+        for (User user : users) {
+            profiles.add(UserProfile.builder().user(user).firstName("First").lastName("Last").build());
+        }
+        userProfileRepository.saveAll(profiles);
+        entityManager.flush();
+
+        assertThat(statements.batchSizes("insert into user_profiles")).containsExactly(50, 50, 20);
+        assertThat(statements.count("user_profiles_id_seq")).isEqualTo(3);
+    }
+
+    @Test
+    void roleActionsAreInsertedInBatches() {
+        List<Action> actions = new ArrayList<>();
+        for (int i = 0; i < 60; i++) {
+            actions.add(entityManager.persist(Action.builder()
+                    .actionCode("ACTION_" + i)
+                    .actionName("Action " + i)
+                    .module("TEST")
+                    .isActive(true)
+                    .build()));
+        }
+        entityManager.flush();
+        statements.clear();
+
+        List<RoleAction> roleActions = new ArrayList<>();
+        for (Action action : actions) {
+            roleActions.add(RoleAction.builder().role(role).action(action).build());
+        }
+        roleActionRepository.saveAll(roleActions);
+        entityManager.flush();
+
+        assertThat(statements.batchSizes("insert into role_actions")).containsExactly(50, 10);
+        assertThat(statements.count("role_actions_id_seq")).isEqualTo(2);
+    }
+
+    /**
+     * Records every statement executed through the proxied DataSource
+     */
+    static class StatementCounter implements QueryExecutionListener {
+
+        private final List<Execution> executions = new ArrayList<>();
+
+        @Override
+        public void beforeQuery(ExecutionInfo execInfo, List<QueryInfo> queryInfoList) {
+        }
+
+        @Override
+        public synchronized void afterQuery(ExecutionInfo execInfo, List<QueryInfo> queryInfoList) {
+            String sql = queryInfoList.isEmpty() ? "" : queryInfoList.get(0).getQuery().toLowerCase(Locale.ROOT);
+            executions.add(new Execution(sql, execInfo.isBatch() ? execInfo.getBatchSize() : 1));
+        }
+
+        synchronized void clear() {
+            executions.clear();
+        }
+
+        /**
+         * Rows sent per round trip for the statements containing sqlFragment
+         */
+        synchronized List<Integer> batchSizes(String sqlFragment) {
+            return executions.stream()
+                    .filter(execution -> execution.sql().contains(sqlFragment))
+                    .map(Execution::rows)
+                    .toList();
+        }
+
+        synchronized int count(String sqlFragment) {
+            return batchSizes(sqlFragment).size();
+        }
+
+        private record Execution(String sql, int rows) {
+        }
+    }
+
+    @TestConfiguration
+    static class StatementCounterConfig {
+
+        @Bean
+        StatementCounter statementCounter() {
+            return new StatementCounter();
+        }
+
+        @Bean
+        static BeanPostProcessor dataSourceProxy(ObjectProvider<StatementCounter> counter) {
+            return new BeanPostProcessor() {
+                @Override
+                public Object postProcessAfterInitialization(Object bean, String beanName) {
+                    if (bean instanceof DataSource dataSource) {
+                        return ProxyDataSourceBuilder.create(dataSource).listener(counter.getObject()).build();
+                    }
+                    return bean;
+                }
+            };
+        }
+    }
+}
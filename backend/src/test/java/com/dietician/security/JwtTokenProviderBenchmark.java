@@ -0,0 +1,91 @@
+package com.dietician.security;
+
+import io.jsonwebtoken.Claims;
+import io.jsonwebtoken.Jwts;
+import io.jsonwebtoken.security.Keys;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import javax.crypto.SecretKey;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Per-request cost of authenticating a bearer token: the old filter path, which built a parser and verified the
+ * token twice (validateToken, then getUsernameFromToken), against one parseAndValidate with the verified-token
+ * cache off and on.
+ * Not a test; run with main() from the IDE, or
+ * mvn test-compile exec:java -Dexec.classpathScope=test -Dexec.mainClass=com.dietician.security.JwtTokenProviderBenchmark
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class JwtTokenProviderBenchmark {
+
+    private static final String SECRET = "benchmark-secret-key-that-is-at-least-256-bits-long-for-hmac-sha";
+
+    private SecretKey secretKey;
+    private JwtTokenProvider uncached;
+    private JwtTokenProvider cached;
+    private String token;
+
+    @Setup
+    public void setUp() {
+        secretKey = Keys.hmacShaKeyFor(SECRET.getBytes(StandardCharsets.UTF_8));
+
+        PermissionMatrix.Snapshot snapshot = mock(PermissionMatrix.Snapshot.class);
+        when(snapshot.actionBits("DIETICIAN")).thenReturn(new long[]{0x7fff_ffffL});
+        when(snapshot.getFingerprint()).thenReturn(42L);
+        PermissionMatrix permissionMatrix = mock(PermissionMatrix.class);
+        when(permissionMatrix.current()).thenReturn(snapshot);
+
+        // A zero TTL keeps nothing in the cache, so every call verifies the signature
+        uncached = new JwtTokenProvider(SECRET, 3_600_000L, 86_400_000L, 10_000, 0L,
+                permissionMatrix, new SimpleMeterRegistry());
+        cached = new JwtTokenProvider(SECRET, 3_600_000L, 86_400_000L, 10_000, 300_000L,
+                permissionMatrix, new SimpleMeterRegistry());
+        token = cached.generateToken("dietician@example.com", 1001L, "DIETICIAN", 3L);
+    }
+
+    @Benchmark
+    public String doubleParse() {
+        // The filter before parseAndValidate: a new parser per call and two signature checks
+        Jwts.parser().verifyWith(secretKey).build().parseSignedClaims(token);
+        return Jwts.parser().verifyWith(secretKey).build().parseSignedClaims(token).getPayload().getSubject();
+    }
+
+    @Benchmark
+    public Claims parseAndValidateUncached() {
+        return uncached.parseAndValidate(token).orElseThrow();
+    }
+
+    @Benchmark
+    public Claims parseAndValidateCached() {
+        return cached.parseAndValidate(token).orElseThrow();
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+                .include(JwtTokenProviderBenchmark.class.getSimpleName())
+                .build())
+                .run();
+    }
+}
@@ -0,0 +1,70 @@
+package com.dietician.service;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import org.mockito.invocation.Invocation;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.transaction.PlatformTransactionManager;
+
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.LongStream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.mockingDetails;
+import static org.mockito.Mockito.when;
+
+/**
+ * Checks that a queued batch reaches the database as one id query and one multi-row insert per table.
+ */
+class AuditLogWriterTest {
+
+    @Test
+    void writesBatchInOneStatementPerTable() throws InterruptedException {
+        JdbcTemplate jdbcTemplate = mock(JdbcTemplate.class);
+        // One block start per requested block of 50 ids
+        when(jdbcTemplate.queryForList(anyString(), eq(Long.class), any())).thenAnswer(invocation -> {
+            int blocks = invocation.getArgument(2);
+            return LongStream.range(0, blocks).mapToObj(block -> 1 + block * 50).toList();
+        });
+        AuditLogWriter writer = new AuditLogWriter(jdbcTemplate, mock(PlatformTransactionManager.class),
+                new SimpleMeterRegistry(), 10_000, 200, 60_000);
+        writer.start();
+
+        for (long id = 1; id <= 120; id++) {
+            writer.submit(new AuditLogWriter.AuditEvent("users", id, "UPDATE", "admin@example.com",
+                    LocalDateTime.now(), "127.0.0.1", "test", List.of(
+                    new AuditLogWriter.AuditEvent.Detail("full_name", "Old", "New"),
+                    new AuditLogWriter.AuditEvent.Detail("is_active", "true", "false"))));
+        }
+        writer.stop();
+
+        List<Object[]> idQueries = invocations(jdbcTemplate, "queryForList");
+        assertThat(idQueries).extracting(arguments -> (String) arguments[0])
+                .containsExactly(
+                        "SELECT nextval('diet.audit_logs_id_seq') FROM generate_series(1, ?)",
+                        "SELECT nextval('diet.audit_log_details_id_seq') FROM generate_series(1, ?)");
+
+        List<Object[]> inserts = invocations(jdbcTemplate, "update");
+        assertThat(inserts).hasSize(2);
+        assertThat((String) inserts.get(0)[0]).startsWith("INSERT INTO diet.audit_logs ");
+        assertThat((Object[]) inserts.get(0)[1]).hasSize(120 * 8);
+        assertThat((String) inserts.get(1)[0]).startsWith("INSERT INTO diet.audit_log_details ");
+        assertThat((Object[]) inserts.get(1)[1]).hasSize(240 * 6);
+    }
+
+    private static List<Object[]> invocations(Object mock, String methodName) {
+        List<Object[]> calls = new ArrayList<>();
+        for (Invocation invocation : mockingDetails(mock).getInvocations()) {
+            if (invocation.getMethod().getName().equals(methodName)) {
+                calls.add(invocation.getRawArguments());
+            }
+        }
+        return calls;
+    }
+}
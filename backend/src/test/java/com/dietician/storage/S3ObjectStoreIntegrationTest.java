@@ -0,0 +1,133 @@
+package com.dietician.storage;
+
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.testcontainers.containers.Container.ExecResult;
+import org.testcontainers.containers.MinIOContainer;
+import org.testcontainers.junit.jupiter.Container;
+import org.testcontainers.junit.jupiter.Testcontainers;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+/**
+ * S3ObjectStore against a MinIO container: put (single and multipart), stat, read, list, delete and presigned GET.
+ * Skipped when Docker is not available.
+ */
+@Testcontainers(disabledWithoutDocker = true)
+class S3ObjectStoreIntegrationTest {
+
+    private static final String BUCKET = "dietician-test";
+    private static final int PART_SIZE = 5 * 1024 * 1024;
+
+    @Container
+    private static final MinIOContainer MINIO = new MinIOContainer("minio/minio:RELEASE.2024-05-10T01-41-38Z");
+
+    private static S3ObjectStore store;
+
+    @BeforeAll
+    static void createBucket() throws Exception {
+        exec("mc", "alias", "set", "local", "http://localhost:9000", MINIO.getUserName(), MINIO.getPassword());
+        exec("mc", "mb", "local/" + BUCKET);
+        store = new S3ObjectStore(MINIO.getS3URL(), "", "us-east-1", BUCKET,
+                MINIO.getUserName(), MINIO.getPassword(), true, PART_SIZE, 900, 60_000);
+    }
+
+    @Test
+    void putStatReadDelete() throws IOException {
+        byte[] content = "hello object store".getBytes(StandardCharsets.UTF_8);
+
+        store.put("profile-photos/ab/cd/hello.txt", content, "text/plain");
+
+        ObjectStore.StoredObject stored = store.stat("profile-photos/ab/cd/hello.txt");
+        assertThat(stored).isNotNull();
+        assertThat(stored.size()).isEqualTo(content.length);
+        assertThat(stored.lastModified()).isPositive();
+        try (InputStream in = store.read("profile-photos/ab/cd/hello.txt")) {
+            assertThat(in.readAllBytes()).isEqualTo(content);
+        }
+
+        store.delete("profile-photos/ab/cd/hello.txt");
+
+        assertThat(store.stat("profile-photos/ab/cd/hello.txt")).isNull();
+        assertThatThrownBy(() -> store.read("profile-photos/ab/cd/hello.txt")).isInstanceOf(NoSuchFileException.class);
+        // Deleting a missing object is not an error
+        store.delete("profile-photos/ab/cd/hello.txt");
+    }
+
+    @Test
+    void putsLargeFilesInParts(@TempDir Path tempDir) throws IOException {
+        byte[] content = new byte[2 * PART_SIZE + 1234];
+        new Random(42).nextBytes(content);
+        Path file = Files.write(tempDir.resolve("large.bin"), content);
+
+        store.put("documents/ef/01/large.bin", file, "application/octet-stream");
+
+        assertThat(file).doesNotExist();
+        assertThat(store.stat("documents/ef/01/large.bin").size()).isEqualTo(content.length);
+        try (InputStream in = store.read("documents/ef/01/large.bin")) {
+            assertThat(in.readAllBytes()).isEqualTo(content);
+        }
+    }
+
+    @Test
+    void listsEveryObjectUntilTheVisitorStops() throws IOException {
+        for (int i = 0; i < 5; i++) {
+            store.put("listing/00/0" + i + "/file-" + i + ".txt", new byte[i + 1], "text/plain");
+        }
+
+        List<ObjectStore.StoredObject> listed = new ArrayList<>();
+        store.list(object -> {
+            if (object.key().startsWith("listing/")) {
+                listed.add(object);
+            }
+            return true;
+        });
+        assertThat(listed).extracting(ObjectStore.StoredObject::key)
+                .containsExactly("listing/00/00/file-0.txt", "listing/00/01/file-1.txt", "listing/00/02/file-2.txt",
+                        "listing/00/03/file-3.txt", "listing/00/04/file-4.txt");
+        assertThat(listed).extracting(ObjectStore.StoredObject::size).containsExactly(1L, 2L, 3L, 4L, 5L);
+
+        List<String> firstTwo = new ArrayList<>();
+        store.list(object -> {
+            firstTwo.add(object.key());
+            return firstTwo.size() < 2;
+        });
+        assertThat(firstTwo).hasSize(2);
+    }
+
+    @Test
+    void presignedUrlServesTheObjectWithTheRequestedHeaders() throws Exception {
+        byte[] content = "presigned".getBytes(StandardCharsets.UTF_8);
+        store.put("profile-photos/12/34/photo 1.jpg", content, "image/jpeg");
+
+        ObjectStore.PresignedUrl url = store.presignGet("profile-photos/12/34/photo 1.jpg",
+                "public, max-age=60", "inline; filename=\"photo 1.jpg\"");
+        HttpResponse<byte[]> response = HttpClient.newHttpClient().send(
+                HttpRequest.newBuilder(url.uri()).GET().build(), HttpResponse.BodyHandlers.ofByteArray());
+
+        assertThat(response.statusCode()).isEqualTo(200);
+        assertThat(response.body()).isEqualTo(content);
+        assertThat(response.headers().firstValue("Cache-Control")).hasValue("public, max-age=60");
+        assertThat(response.headers().firstValue("Content-Disposition")).hasValue("inline; filename=\"photo 1.jpg\"");
+    }
+
+    private static void exec(String... command) throws IOException, InterruptedException {
+        ExecResult result = MINIO.execInContainer(command);
+        assertThat(result.getExitCode()).as(result.getStderr()).isZero();
+    }
+}